@@ -0,0 +1,1012 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.DeadObjectException;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Our aidl interface impl - everything the {@link BatteryStatsService} does
+ * apart from its lifecycle.  Where the statistics and file contents come from
+ * is passed in, so it can be built and driven on the JVM too; only the
+ * wakelock sampler and subscriptions need a Context, and they're set up
+ * separately by {@link #start}.
+ */
+class BatteryStatsBinder extends IBatteryStatsService.Stub {
+    private static final String TAG = "BatteryStatsBinder";
+    private static final int MAX_CHUNK_SNAPSHOTS = 16;
+    /** Callback payloads bigger than this go through a file descriptor */
+    private static final int MAX_INLINE_CALLBACK_BYTES = 32 * 1024;
+    /** The most one root read may take, however many files it is for */
+    private static final long ROOT_READ_TIMEOUT_MS = 3000;
+    /** Each root shell read is a su process - don't let a burst of binder calls start dozens. */
+    private static final int MAX_CONCURRENT_ROOT_SHELLS = 2;
+    static final String WAKEUP_SOURCES_FILE = "/sys/kernel/debug/wakeup_sources";
+    private static final int ASYNC_THREADS = 3;
+    private static final int ASYNC_QUEUE_SIZE = 32;
+    private static final int CPU_TIME_THREADS = 4;
+    private static final int SNAPSHOT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int SNAPSHOT_MAX_SEGMENTS = 8;
+    private static final long DEFAULT_SNAPSHOT_STORE_INTERVAL_MS = 15 * 60 * 1000;
+    private final boolean mHasBatteryStatsPermission;
+    private final BatteryStatsBinding mBatteryStatsBinding;
+    private final ProcFileReader mProcFileReader;
+    /** Null to always read through the root shell */
+    private final RootHelperSession mRootHelper;
+    private final RootShellFileReader mRootShellReader;
+    private final File mCacheDir;
+    private final WakeupSourcesParser mWakeupSourcesParser = new WakeupSourcesParser(System.currentTimeMillis() * 1000);
+    // Set up by start() and read from binder threads - volatile so they're safely published.
+    private volatile WakelockSampler mWakelockSampler;
+    private volatile SubscriptionManager mSubscriptionManager;
+    /** Runs the oneway request* calls - bounded, so a flood of requests can't run away with us. */
+    private final ThreadPoolExecutor mAsyncExecutor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE));
+    /** The file snapshots chunked reads are being served from, by token - least recently used first */
+    private final LinkedHashMap<Long, ChunkSnapshot> mChunkSnapshots = new LinkedHashMap<Long, ChunkSnapshot>(MAX_CHUNK_SNAPSHOTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ChunkSnapshot> eldest) {
+            // Someone abandoned their reads part way through (or there are a lot of
+            // readers) - they'll be told to start over.
+            return size() > MAX_CHUNK_SNAPSHOTS;
+        }
+    };
+    private final AtomicLong mNextChunkToken = new AtomicLong(new Random().nextLong() & Long.MAX_VALUE);
+    /** The codec (and level) each calling uid negotiated through setPayloadCodec */
+    private final ConcurrentHashMap<Integer, int[]> mPayloadCodecs = new ConcurrentHashMap<Integer, int[]>();
+    private final StatisticsSnapshotHistory mSnapshotHistory = new StatisticsSnapshotHistory(4);
+    private final StatisticsCache mStatisticsCache = new StatisticsCache(new StatisticsCache.Loader() {
+        @Override
+        public byte[] load() throws RemoteException {
+            long start = System.nanoTime();
+            byte[] statistics = null;
+            try {
+                statistics = mBatteryStatsBinding.getStatistics();
+            } finally
+            {
+                mMetrics.record(ServiceMetrics.SYSTEM_GET_STATISTICS, start, statistics);
+            }
+            maybeStoreSnapshot(statistics);
+            return statistics;
+        }
+    });
+    /** Persisted statistics history - null if it couldn't be opened. */
+    private final SnapshotStore mSnapshotStore;
+    private volatile long mSnapshotStoreIntervalMs = DEFAULT_SNAPSHOT_STORE_INTERVAL_MS;
+    private final AtomicLong mLastSnapshotStoreTime = new AtomicLong();
+    private final ServiceMetrics mMetrics = new ServiceMetrics();
+    private final ProcFileAccessStrategies mAccessStrategies;
+    private final CpuTimeCollector mCpuTimeCollector;
+    private final StatisticsProjector mStatisticsProjector = new StatisticsProjector();
+    /** Publishes the cached statistics for getStatisticsFd and onStatisticsFd */
+    private final StatisticsFileTransport mStatisticsTransport;
+
+    /**
+     * @param binding Where the statistics come from
+     * @param procFileReader Reads files directly
+     * @param rootHelper Reads files as root, or null to always use the root shell
+     * @param rootShell Runs the root shell commands files fall back to
+     * @param filesDir Where learned access strategies and stored snapshots are kept
+     * @param cacheDir Where large results are published for clients
+     * @param hasBatteryStatsPermission Whether we were granted BATTERY_STATS
+     */
+    BatteryStatsBinder(BatteryStatsBinding binding, ProcFileReader procFileReader, RootHelperSession rootHelper,
+            RootShellFileReader.Shell rootShell, File filesDir, File cacheDir, boolean hasBatteryStatsPermission)
+    {
+        mBatteryStatsBinding = binding;
+        mProcFileReader = procFileReader;
+        mRootHelper = rootHelper;
+        mRootShellReader = new RootShellFileReader(MAX_CONCURRENT_ROOT_SHELLS, ROOT_READ_TIMEOUT_MS, rootShell);
+        mCacheDir = cacheDir;
+        mHasBatteryStatsPermission = hasBatteryStatsPermission;
+        mStatisticsTransport = new StatisticsFileTransport(cacheDir);
+        mAccessStrategies = new ProcFileAccessStrategies(new File(filesDir, "access_strategies"), mAsyncExecutor);
+        mAsyncExecutor.allowCoreThreadTimeOut(true);
+        mCpuTimeCollector = new CpuTimeCollector(new CpuTimeCollector.Reader() {
+            @Override
+            public ProcFileResult readDirect(String path) {
+                return readProcFileWithoutRoot(path);
+            }
+
+            @Override
+            public ProcFileResult[] readAsRoot(String[] paths) {
+                return readProcFilesAsRootAndLearn(paths);
+            }
+        }, Math.min(CPU_TIME_THREADS, Runtime.getRuntime().availableProcessors()));
+        SnapshotStore snapshotStore = null;
+        try {
+            snapshotStore = new SnapshotStore(new File(filesDir, "snapshots"), SNAPSHOT_SEGMENT_SIZE, SNAPSHOT_MAX_SEGMENTS);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open snapshot store - history won't be kept", e);
+        }
+        mSnapshotStore = snapshotStore;
+    }
+
+    /**
+     * Starts the wakelock sampler and subscriptions, which schedule themselves
+     * through the system.
+     */
+    void start(Context context)
+    {
+        mWakelockSampler = new WakelockSampler(context, new WakelockSampler.Source() {
+            @Override
+            public byte[] read() {
+                return readProcFileContent(WAKEUP_SOURCES_FILE);
+            }
+        }, mWakeupSourcesParser, WakelockSampler.DEFAULT_CAPACITY);
+        mSubscriptionManager = new SubscriptionManager(context, new SubscriptionManager.Collector() {
+            @Override
+            public byte[] collectStatistics() throws RemoteException {
+                return mStatisticsCache.get();
+            }
+
+            @Override
+            public WakeupSourceTable collectWakeupSources() throws RemoteException {
+                return parseWakeupSources(readProcFileContent(WAKEUP_SOURCES_FILE), -1);
+            }
+        }, mAsyncExecutor, mSnapshotHistory, mCacheDir);
+    }
+
+    /**
+     * Pauses background wakelock sampling while nobody is bound to fetch it.
+     */
+    void setSamplingPaused(boolean paused)
+    {
+        mWakelockSampler.setPaused(paused);
+    }
+
+    void shutdown()
+    {
+        mProcFileReader.closeAll();
+        if (mWakelockSampler != null)
+        {
+            mWakelockSampler.shutdown();
+            mSubscriptionManager.shutdown();
+        }
+        mCpuTimeCollector.shutdown();
+        if (mRootHelper != null)
+        {
+            mRootHelper.stop();
+        }
+        mAsyncExecutor.shutdownNow();
+        mStatisticsTransport.close();
+        if (mSnapshotStore != null)
+        {
+            mSnapshotStore.close();
+        }
+    }
+
+    void dump(PrintWriter writer)
+    {
+        ServiceMetrics.dump(mMetrics.snapshot(mBatteryStatsBinding.getStats(), mStatisticsCache.getStats()), writer);
+        mAccessStrategies.dump(writer);
+        if (mWakelockSampler != null)
+        {
+            mWakelockSampler.dump(writer);
+            mSubscriptionManager.dump(writer);
+        }
+    }
+
+    /**
+     * Reads files we don't have permission to read directly.  We first try our
+     * persistent root helper; if that can't be started we fall back to a RootTools
+     * shell and simply cat the files instead - all of them in a single command.
+     * @return For each file, the result of reading it (without a duration)
+     */
+    private ProcFileResult[] readProcFilesAsRoot(String[] fileNames) {
+        long start = System.nanoTime();
+        ProcFileResult[] results = readProcFilesAsRootUninstrumented(fileNames);
+        long bytes = 0;
+        for (ProcFileResult result : results)
+        {
+            bytes += (result.content == null) ? 0 : result.content.length;
+            mMetrics.countStatus(ServiceMetrics.ROOT_READ, result.status);
+        }
+        mMetrics.record(ServiceMetrics.ROOT_READ, start, bytes, false);
+        return results;
+    }
+
+    private ProcFileResult[] readProcFilesAsRootUninstrumented(String[] fileNames) {
+        if (mRootHelper == null)
+        {
+            return mRootShellReader.read(fileNames);
+        }
+        try {
+            ProcFileResult[] results = new ProcFileResult[fileNames.length];
+            String[] errors = new String[fileNames.length];
+            byte[][] contents = mRootHelper.readFiles(fileNames, ROOT_READ_TIMEOUT_MS, errors);
+            for (int i = 0; i < fileNames.length; i++)
+            {
+                if (errors[i] != null)
+                {
+                    Log.d(TAG, "Unable to read file: "+fileNames[i]+". "+errors[i]);
+                    results[i] = ProcFileResult.failure(ProcFileResult.SOURCE_ROOT_HELPER, errors[i]);
+                } else
+                {
+                    results[i] = ProcFileResult.success(ProcFileResult.SOURCE_ROOT_HELPER, ProcFileReader.truncateAtNul(contents[i]));
+                }
+            }
+            return results;
+        } catch (IOException e) {
+            Log.d(TAG, "Root helper unavailable, falling back to shell: "+e.getMessage());
+        }
+        return mRootShellReader.read(fileNames);
+    }
+
+    /**
+     * Reads a file directly.
+     * @return The result, or null if we were denied and need root - this happens
+     * when SELinux is set to enforcing (most Lollipop ROMs).
+     */
+    private ProcFileResult readProcFileDirect(String fileName) {
+        try {
+            // The common case - the reader keeps the file open and already strips at '\0'
+            return ProcFileResult.success(ProcFileResult.SOURCE_DIRECT, mProcFileReader.read(fileName));
+        } catch (java.io.IOException e) {
+            if (e.getMessage().contains("EACCES"))
+            {
+                return null;
+            }
+            Log.e(TAG, e.getMessage(), e);
+            return ProcFileResult.failure(ProcFileResult.SOURCE_DIRECT, e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a file, directly if we can and through root if SELinux won't let us.
+     * Files we've learned need root skip the direct attempt, and files we've
+     * learned can't be read at all fail straight away.  Not recorded in the
+     * metrics - the callers do that.
+     */
+    private ProcFileResult readProcFileResultInternal(String fileName) {
+        long start = System.nanoTime();
+        ProcFileResult result = readProcFileWithoutRoot(fileName);
+        if (result == null)
+        {
+            result = readProcFilesAsRootAndLearn(new String[]{fileName})[0];
+        }
+        result.durationUs = (System.nanoTime() - start) / 1000;
+        return result;
+    }
+
+    /**
+     * The part of a read that doesn't need root: the failure we already know
+     * the file gives, or the result of reading it directly.
+     * @return The result, or null if the file needs root
+     */
+    private ProcFileResult readProcFileWithoutRoot(String fileName) {
+        int strategy = mAccessStrategies.get(fileName);
+        if (strategy == ProcFileAccessStrategies.STRATEGY_NONE)
+        {
+            ProcFileResult known = mAccessStrategies.getKnownFailure(fileName);
+            if (known != null)
+            {
+                return known;
+            }
+        }
+        ProcFileResult result = (strategy == ProcFileAccessStrategies.STRATEGY_ROOT) ? null : readProcFileDirect(fileName);
+        if (result != null)
+        {
+            mAccessStrategies.learn(fileName, result);
+        }
+        return result;
+    }
+
+    /**
+     * readProcFilesAsRoot, learning from each result.
+     */
+    private ProcFileResult[] readProcFilesAsRootAndLearn(String[] fileNames) {
+        ProcFileResult[] results = readProcFilesAsRoot(fileNames);
+        for (int i = 0; i < fileNames.length; i++)
+        {
+            mAccessStrategies.learn(fileNames[i], results[i]);
+        }
+        return results;
+    }
+
+    /**
+     * readProcFile without the metrics, for our own internal reads.
+     */
+    private byte[] readProcFileContent(String fileName) {
+        return readProcFileResultInternal(fileName).toLegacyBytes();
+    }
+
+    /**
+     * The body of getWakeupSources, without the metrics - our own internal reads
+     * (subscriptions) use it directly.
+     * @param content wakeup_sources, as readProcFileContent returns it
+     */
+    private WakeupSourceTable parseWakeupSources(byte[] content, long knownNamesVersion) throws RemoteException {
+        synchronized (mWakeupSourcesParser)
+        {
+            if (!mWakeupSourcesParser.parse(content, content.length))
+            {
+                throw new RemoteException("Unable to read "+WAKEUP_SOURCES_FILE);
+            }
+            return new WakeupSourceTable(mWakeupSourcesParser, knownNamesVersion != mWakeupSourcesParser.getNamesVersion());
+        }
+    }
+
+    /**
+     * The body of readProcFiles.  The call itself is recorded by the caller;
+     * the 'R'/'E' result of each file is counted here.
+     */
+    private byte[] readProcFilesBlob(String[] fileNames) {
+        byte[][] contents = new byte[fileNames.length][];
+        int[] needRoot = new int[fileNames.length];
+        int needRootCount = 0;
+        for (int i = 0; i < fileNames.length; i++)
+        {
+            ProcFileResult result = readProcFileWithoutRoot(fileNames[i]);
+            if (result == null)
+            {
+                needRoot[needRootCount++] = i;
+                continue;
+            }
+            contents[i] = result.toLegacyBytes();
+        }
+        if (needRootCount > 0)
+        {
+            String[] rootFileNames = new String[needRootCount];
+            for (int i = 0; i < needRootCount; i++)
+            {
+                rootFileNames[i] = fileNames[needRoot[i]];
+            }
+            ProcFileResult[] rootResults = readProcFilesAsRootAndLearn(rootFileNames);
+            for (int i = 0; i < needRootCount; i++)
+            {
+                contents[needRoot[i]] = rootResults[i].toLegacyBytes();
+            }
+        }
+
+        int size = 4;
+        for (byte[] content : contents)
+        {
+            size += 4 + content.length;
+            mMetrics.countResult(ServiceMetrics.READ_PROC_FILES, content);
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        result.putInt(contents.length);
+        for (byte[] content : contents)
+        {
+            result.putInt(content.length);
+            result.put(content);
+        }
+        return result.array();
+    }
+
+    /**
+     * Persists a freshly loaded statistics snapshot (compressed) if the store
+     * interval has passed since the last one.  We only piggyback on loads that
+     * happen anyway - nothing is ever loaded just to be stored.
+     */
+    private void maybeStoreSnapshot(final byte[] statistics) {
+        final SnapshotStore store = mSnapshotStore;
+        long interval = mSnapshotStoreIntervalMs;
+        long now = System.currentTimeMillis();
+        long last = mLastSnapshotStoreTime.get();
+        if (store == null || interval <= 0 || (now - last < interval && now >= last)
+                || !mLastSnapshotStoreTime.compareAndSet(last, now))
+        {
+            return;
+        }
+        try {
+            mAsyncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        store.append(System.currentTimeMillis(), PayloadCodec.encode(PayloadCodec.CODEC_DEFLATE, Deflater.DEFAULT_COMPRESSION, statistics));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to store statistics snapshot", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Busy - the next load will try again
+            mLastSnapshotStoreTime.compareAndSet(now, last);
+        }
+    }
+
+    /**
+     * A snapshot of a file being read in chunks - only served back to the
+     * caller that took it, for the same file.
+     */
+    private static final class ChunkSnapshot {
+        final int mUid;
+        final String mFileName;
+        final byte[] mContent;
+
+        ChunkSnapshot(int uid, String fileName, byte[] content)
+        {
+            mUid = uid;
+            mFileName = fileName;
+            mContent = content;
+        }
+    }
+
+    /**
+     * Queues an asynchronous request, telling the callback if we're too busy to take it.
+     */
+    private void submitAsync(int requestId, IBatteryStatsCallback callback, Runnable request) {
+        try {
+            mAsyncExecutor.execute(request);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Rejecting async request "+requestId+" - too many outstanding");
+            try {
+                callback.onError(requestId, "Too many outstanding requests");
+            } catch (RemoteException e1) {
+                // Caller went away
+            }
+        }
+    }
+
+    /**
+     * Hands the result of a request* call to its callback: inline if it's small,
+     * otherwise through a file descriptor, since the client's oneway buffer is
+     * shared and a big byte[] would fail with TransactionTooLargeException.  A
+     * delivery that fails for any other reason than the client dying is
+     * reported through onError, so the request doesn't go unanswered.
+     * @param fileName The file read, or null for statistics
+     */
+    private void deliverAsync(int requestId, IBatteryStatsCallback callback, String fileName, byte[] content) {
+        ParcelFileDescriptor fd = null;
+        try {
+            if (content.length <= MAX_INLINE_CALLBACK_BYTES)
+            {
+                if (fileName == null)
+                {
+                    callback.onStatistics(requestId, content);
+                } else
+                {
+                    callback.onProcFile(requestId, fileName, content);
+                }
+                return;
+            }
+            fd = (fileName == null) ? mStatisticsTransport.publishSnapshot(content) : StatisticsFileTransport.publish(mCacheDir, content);
+            if (fileName == null)
+            {
+                callback.onStatisticsFd(requestId, fd);
+            } else
+            {
+                callback.onProcFileFd(requestId, fileName, fd);
+            }
+        } catch (DeadObjectException e) {
+            Log.d(TAG, "Caller went away before request "+requestId+" was answered");
+        } catch (RemoteException e) {
+            Log.d(TAG, "Unable to deliver request "+requestId+" to callback: "+e);
+            deliverError(requestId, callback, "Unable to deliver result: "+e);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to publish result of request "+requestId, e);
+            deliverError(requestId, callback, "Unable to publish result: "+e.getMessage());
+        } finally
+        {
+            // The transaction has its own copy of the descriptor by now.
+            closeQuietly(fd);
+        }
+    }
+
+    private static void deliverError(int requestId, IBatteryStatsCallback callback, String message) {
+        try {
+            callback.onError(requestId, message);
+        } catch (RemoteException e) {
+            Log.d(TAG, "Unable to deliver error for request "+requestId+" to callback: "+e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        if (fd != null)
+        {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    @Override
+    /**
+     * Retrieve the BatteryStatsImpl statistics in parcel form, which you can then
+     * unparcel with the following call (likely using reflection):
+     * com.android.internal.os.BatteryStatsImpl.CREATOR.createFromParcel(parcel)
+     */
+    public byte[] getStatistics() throws RemoteException {
+        long start = System.nanoTime();
+        byte[] result = null;
+        try {
+            result = mStatisticsCache.get();
+            return result;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_STATISTICS, start, result);
+        }
+    }
+
+    @Override
+    /**
+     * Chooses the compression used by getStatisticsCompressed for the calling app.
+     * codec is one of the PayloadCodec.CODEC_* values and level a Deflater level,
+     * 1-9 or -1 for zlib's default (only used by CODEC_DEFLATE).  Returns the codec that will actually be used -
+     * CODEC_NONE if the requested one isn't supported by this version.
+     */
+    public int setPayloadCodec(int codec, int level) throws RemoteException {
+        if (!PayloadCodec.isSupported(codec))
+        {
+            codec = PayloadCodec.CODEC_NONE;
+        }
+        if (level != Deflater.DEFAULT_COMPRESSION)
+        {
+            level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        }
+        mPayloadCodecs.put(Binder.getCallingUid(), new int[]{codec, level});
+        return codec;
+    }
+
+    @Override
+    /**
+     * Like getStatistics, but compressed with the codec negotiated through
+     * setPayloadCodec (uncompressed if none was).  Decode it with PayloadCodec.decode.
+     */
+    public byte[] getStatisticsCompressed() throws RemoteException {
+        int[] codec = mPayloadCodecs.get(Binder.getCallingUid());
+        if (codec == null)
+        {
+            codec = new int[]{PayloadCodec.CODEC_NONE, Deflater.DEFAULT_COMPRESSION};
+        }
+        long start = System.nanoTime();
+        byte[] result = null;
+        try {
+            result = PayloadCodec.encode(codec[0], codec[1], mStatisticsCache.get());
+            return result;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_STATISTICS_COMPRESSED, start, result);
+        }
+    }
+
+    @Override
+    /**
+     * Sets how long (in ms) a statistics snapshot may be served from the
+     * service's cache.  0 disables caching, but concurrent requests are still
+     * coalesced into a single system_server call.
+     */
+    public void setStatisticsCacheTtl(long ttlMs) throws RemoteException {
+        mStatisticsCache.setTtl(ttlMs);
+    }
+
+    @Override
+    /**
+     * Returns the statistics cache counters: hits, misses, coalesced requests
+     * and the current TTL (ms).
+     */
+    public long[] getStatisticsCacheStats() throws RemoteException {
+        return mStatisticsCache.getStats();
+    }
+
+    @Override
+    /**
+     * Sets the minimum time (in ms) between statistics snapshots being written
+     * to the on-device history.  0 stops storing them.  Snapshots are only taken
+     * from loads that happen anyway (getStatistics etc. and subscriptions).
+     */
+    public void setSnapshotStoreInterval(long intervalMs) throws RemoteException {
+        mSnapshotStoreIntervalMs = Math.max(intervalMs, 0);
+    }
+
+    @Override
+    /**
+     * Returns the timestamps (System.currentTimeMillis) of the stored statistics
+     * snapshots between fromTime and toTime inclusive, oldest first.
+     */
+    public long[] getStoredSnapshotTimes(long fromTime, long toTime) throws RemoteException {
+        SnapshotStore store = mSnapshotStore;
+        return (store == null) ? new long[0] : store.getTimestamps(fromTime, toTime);
+    }
+
+    @Override
+    /**
+     * Returns the stored statistics snapshot taken at timestamp (as returned by
+     * getStoredSnapshotTimes), compressed - decode it with PayloadCodec.decode.
+     * Returns null if there is no such snapshot (it may have aged out).
+     */
+    public byte[] getStoredSnapshot(long timestamp) throws RemoteException {
+        SnapshotStore store = mSnapshotStore;
+        if (store == null)
+        {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] result = null;
+        boolean threw = true;
+        try {
+            result = store.read(timestamp);
+            threw = false;
+            return result;
+        } catch (IOException e) {
+            String msg = "Exception reading stored snapshot: " + e.getMessage();
+            Log.e(TAG, msg, e);
+            throw new RemoteException(msg);
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_STORED_SNAPSHOT, start, (result == null) ? 0 : result.length, threw);
+        }
+    }
+
+    @Override
+    /**
+     * Returns per-method call counts, bytes returned, error results and latency
+     * percentiles, along with the system binding and statistics cache counters.
+     * The same information is available through
+     * 'adb shell dumpsys activity service com.gsamlabs.bbm.rootcompanion'.
+     */
+    public ServiceMetricsSnapshot getServiceMetrics() throws RemoteException {
+        return mMetrics.snapshot(mBatteryStatsBinding.getStats(), mStatisticsCache.getStats());
+    }
+
+    @Override
+    /**
+     * Returns how the service has learned each file it has been asked for can be
+     * read, one "path=STRATEGY (age in s)" per file, where STRATEGY is DIRECT,
+     * ROOT or NONE.  For diagnostics.
+     */
+    public String[] getFileAccessStrategies() throws RemoteException {
+        return mAccessStrategies.describe();
+    }
+
+    @Override
+    /**
+     * Collects every core's cpufreq time_in_state and the per-uid CPU times
+     * (/proc/uid_cputime) in one call, reading the files in parallel.  Pass the
+     * timestamp of the last CpuTimes you received to get just the changes since
+     * then (check baseTimestamp - you get the full values if that one has aged
+     * out), or 0 for the full values.
+     */
+    public CpuTimes getCpuTimes(long baseTimestamp) throws RemoteException {
+        long start = System.nanoTime();
+        CpuTimes result = null;
+        try {
+            result = mCpuTimeCollector.collect(baseTimestamp);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted collecting CPU times");
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_CPU_TIMES, start,
+                    (result == null) ? 0 : (result.freqTimes.length + result.uids.length * 2) * 8, result == null);
+        }
+    }
+
+    @Override
+    /**
+     * Determine if this service has access to retrieve the battery stats.  This
+     * is useful in diagnosing problems from the client end.
+     */
+    public boolean hasBatteryStatsPermission() throws RemoteException {
+        return mHasBatteryStatsPermission;
+    }
+
+    @Override
+    /**
+     * Reads the specified file into the byte buffer.  This should be used when
+     * the calling program is unable to read the file for some reason (typically
+     * permission denied).  The kernel wakelock (wakeup_sources) file for example.  
+     * The whole file is returned - use readProcFileChunk if it may be too big
+     * for a single binder transaction.  On failure this returns 'R' (root denied)
+     * or 'E' (optionally followed by an exit code); readProcFileResult reports
+     * failures without the ambiguity.
+     */
+    public byte[] readProcFile(String fileName) throws RemoteException {
+        long start = System.nanoTime();
+        byte[] result = null;
+        try {
+            result = readProcFileContent(fileName);
+            return result;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.READ_PROC_FILE, start, result);
+        }
+    }
+
+    @Override
+    /**
+     * Like readProcFile, but returns a ProcFileResult saying whether the read
+     * worked, how (directly or through root) and if not, why - rather than
+     * the 'R'/'E' sentinel arrays.
+     */
+    public ProcFileResult readProcFileResult(String fileName) throws RemoteException {
+        long start = System.nanoTime();
+        ProcFileResult result = null;
+        try {
+            result = readProcFileResultInternal(fileName);
+            return result;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.READ_PROC_FILE_RESULT, start, (result == null || result.content == null) ? 0 : result.content.length, result == null);
+            if (result != null)
+            {
+                mMetrics.countStatus(ServiceMetrics.READ_PROC_FILE_RESULT, result.status);
+            }
+        }
+    }
+
+    @Override
+    /**
+     * Reads several files in one call.  Any that need root are read with a single
+     * root helper round trip (or shell command).  The result is:
+     *   int count, then for each file: int length, byte[length] content
+     * (big-endian), where each content is exactly what readProcFile would return.
+     */
+    public byte[] readProcFiles(String[] fileNames) throws RemoteException {
+        long start = System.nanoTime();
+        byte[] result = null;
+        try {
+            result = readProcFilesBlob(fileNames);
+            return result;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.READ_PROC_FILES, start, result);
+        }
+    }
+
+    @Override
+    /**
+     * Reads a piece of the specified file, so arbitrarily large files can be
+     * retrieved with bounded memory per call.  Reading at offset 0 takes a fresh
+     * snapshot of the file, and sets chunkInfo[0] to its size (so the caller can
+     * pre-size its buffer) and chunkInfo[1] to a token identifying it.  Pass the
+     * same chunkInfo back for the subsequent offsets: they're served from that
+     * snapshot, so the chunks are consistent with each other.  If the snapshot
+     * has been discarded (too many readers, or the service restarted) this
+     * throws, and the caller must start again from offset 0.  Errors reading
+     * the file are reported exactly as readProcFile does.
+     */
+    public byte[] readProcFileChunk(String fileName, long offset, int maxLen, long[] chunkInfo) throws RemoteException {
+        long startNanos = System.nanoTime();
+        if (chunkInfo == null || chunkInfo.length < 2)
+        {
+            throw new RemoteException("chunkInfo must have room for the size and token");
+        }
+        int uid = Binder.getCallingUid();
+        long token = chunkInfo[1];
+        ChunkSnapshot snapshot;
+        if (offset == 0)
+        {
+            token = mNextChunkToken.incrementAndGet();
+            snapshot = new ChunkSnapshot(uid, fileName, readProcFileContent(fileName));
+            synchronized (mChunkSnapshots)
+            {
+                mChunkSnapshots.put(token, snapshot);
+            }
+            mMetrics.countResult(ServiceMetrics.READ_PROC_FILE_CHUNK, snapshot.mContent);
+        } else
+        {
+            synchronized (mChunkSnapshots)
+            {
+                snapshot = mChunkSnapshots.get(token);
+            }
+            if (snapshot == null || snapshot.mUid != uid || !snapshot.mFileName.equals(fileName))
+            {
+                mMetrics.record(ServiceMetrics.READ_PROC_FILE_CHUNK, startNanos, 0, true);
+                throw new RemoteException("No snapshot of " + fileName + " for this token - restart from offset 0");
+            }
+        }
+        byte[] content = snapshot.mContent;
+        chunkInfo[0] = content.length;
+        chunkInfo[1] = token;
+        int start = (int) Math.min(Math.max(offset, 0), content.length);
+        int end = (int) Math.min((long) start + Math.max(maxLen, 0), content.length);
+        if (end >= content.length)
+        {
+            // That's the last chunk - no need to hold on to the snapshot.
+            synchronized (mChunkSnapshots)
+            {
+                mChunkSnapshots.remove(token);
+            }
+        }
+        byte[] result = Arrays.copyOfRange(content, start, end);
+        mMetrics.record(ServiceMetrics.READ_PROC_FILE_CHUNK, startNanos, result.length, false);
+        return result;
+    }
+
+    @Override
+    /**
+     * Reads and parses the kernel wakeup_sources table, so the client doesn't have
+     * to parse the text itself.  Pass the namesVersion of the last table you
+     * received (or -1); the name table is only sent when it has changed.
+     */
+    public WakeupSourceTable getWakeupSources(long knownNamesVersion) throws RemoteException {
+        long start = System.nanoTime();
+        byte[] content = readProcFileContent(WAKEUP_SOURCES_FILE);
+        boolean parsed = false;
+        try {
+            WakeupSourceTable table = parseWakeupSources(content, knownNamesVersion);
+            parsed = true;
+            return table;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_WAKEUP_SOURCES, start, content.length, !parsed);
+            mMetrics.countResult(ServiceMetrics.GET_WAKEUP_SOURCES, content);
+        }
+    }
+
+    @Override
+    /**
+     * Starts (or with 0, stops) background sampling of wakeup_sources at the
+     * given interval.  The sampler never wakes the device by itself, and samples
+     * less often on battery when the screen is off or nothing is changing.
+     */
+    public void setWakelockSampleInterval(long intervalMs) throws RemoteException {
+        mWakelockSampler.setInterval(intervalMs);
+    }
+
+    @Override
+    /**
+     * Returns the per wakeup source deltas the background sampler recorded after
+     * sinceTimestamp (elapsedRealtime).  Pass the timestamp of the last entry you
+     * received to fetch only what changed since.
+     */
+    public WakelockHistory getWakelockHistory(long sinceTimestamp, long knownNamesVersion) throws RemoteException {
+        return mWakelockSampler.getHistory(sinceTimestamp, knownNamesVersion);
+    }
+
+    @Override
+    /**
+     * Returns how the background sampler is scheduling itself and what it costs:
+     * base interval (ms), current interval (ms), samples taken, wall time spent
+     * sampling (us), thread CPU time spent sampling (ms), total time sampling was
+     * active (ms), charging (0/1), screen on (0/1) and backoff factor, in that order.
+     */
+    public long[] getSamplerStats() throws RemoteException {
+        return mWakelockSampler.getSchedulerStats();
+    }
+
+    @Override
+    /**
+     * Asynchronous getStatistics - returns immediately, and the result (or error) is
+     * delivered to the callback along with the caller's requestId.  Oneway calls
+     * share a small buffer in the client, so statistics over 32KB come through
+     * onStatisticsFd instead - read getStatSize() bytes from it, as for
+     * getStatisticsFd.
+     */
+    public void requestStatistics(final int requestId, final IBatteryStatsCallback callback) throws RemoteException {
+        submitAsync(requestId, callback, new Runnable() {
+            @Override
+            public void run() {
+                byte[] statistics;
+                try {
+                    statistics = getStatistics();
+                } catch (RemoteException e) {
+                    deliverError(requestId, callback, e.getMessage());
+                    return;
+                }
+                deliverAsync(requestId, callback, null, statistics);
+            }
+        });
+    }
+
+    @Override
+    /**
+     * Asynchronous readProcFile - returns immediately, and the content is delivered
+     * to the callback along with the caller's requestId.  Errors are reported in the
+     * content exactly as readProcFile does.  Content over 32KB comes through
+     * onProcFileFd instead, as for requestStatistics.
+     */
+    public void requestProcFile(final int requestId, final String fileName, final IBatteryStatsCallback callback) throws RemoteException {
+        submitAsync(requestId, callback, new Runnable() {
+            @Override
+            public void run() {
+                byte[] content;
+                try {
+                    content = readProcFile(fileName);
+                } catch (RemoteException e) {
+                    deliverError(requestId, callback, e.getMessage());
+                    return;
+                }
+                deliverAsync(requestId, callback, fileName, content);
+            }
+        });
+    }
+
+    @Override
+    /**
+     * Subscribes the callback to periodic samples pushed from the service, rather
+     * than polling.  fields is a mask of SubscriptionSample.FIELD_* values.  Samples
+     * arrive in batches through onSamples, with the statistics as deltas (see
+     * SubscriptionSample).  Subscribing again with the same callback replaces its
+     * settings.  As with wakelock sampling, samples may come less often than asked
+     * on battery, when the screen is off or nothing is changing.
+     */
+    public void subscribe(long intervalMs, int fields, IBatteryStatsCallback callback) throws RemoteException {
+        mSubscriptionManager.subscribe(intervalMs, fields, callback);
+    }
+
+    @Override
+    public void unsubscribe(IBatteryStatsCallback callback) throws RemoteException {
+        mSubscriptionManager.unsubscribe(callback);
+    }
+
+    @Override
+    /**
+     * Like getStatistics, but returns a delta against a snapshot the client already
+     * holds.  Pass -1 for the first call.  The response carries a small header
+     * (see StatisticsSnapshotHistory) with the new sequence number and whether
+     * the payload is the full parcel or a StatisticsDeltaCodec delta - we fall
+     * back to the full parcel if the client's base has been evicted.
+     */
+    public byte[] getStatisticsDelta(long baseSeq) throws RemoteException {
+        long start = System.nanoTime();
+        byte[] result = null;
+        try {
+            result = mSnapshotHistory.buildResponse(baseSeq, mStatisticsCache.get());
+            return result;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_STATISTICS_DELTA, start, result);
+        }
+    }
+
+    @Override
+    /**
+     * Like getStatistics, but returns the parcel through a read-only file descriptor
+     * instead of the binder buffer, avoiding TransactionTooLargeException on devices
+     * with huge stats.  The length is the descriptor's stat size (getStatSize()), and
+     * the client can mmap it directly.  getStatistics remains for older clients.
+     */
+    public ParcelFileDescriptor getStatisticsFd() throws RemoteException {
+        long start = System.nanoTime();
+        byte[] statistics = null;
+        boolean published = false;
+        try {
+            statistics = mStatisticsCache.get();
+            ParcelFileDescriptor fd = mStatisticsTransport.publishSnapshot(statistics);
+            published = true;
+            return fd;
+        } catch (IOException e) {
+            String msg = "Exception writing statistics to shared file: " + e.getMessage();
+            Log.e(TAG, msg, e);
+            throw new RemoteException(msg);
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_STATISTICS_FD, start, published ? statistics.length : 0, !published);
+        }
+    }
+
+    @Override
+    /**
+     * Returns just the fields asked for (StatisticsProjection.FIELD_*) from the
+     * statistics, so clients needn't transfer and unparcel all of BatteryStatsImpl
+     * for the handful of values they use.  The service unparcels each snapshot
+     * once, however many projections are taken from it.
+     */
+    public StatisticsProjection getStatisticsProjection(int fieldMask) throws RemoteException {
+        long start = System.nanoTime();
+        StatisticsProjection projection = null;
+        try {
+            projection = mStatisticsProjector.project(mStatisticsCache.get(), fieldMask);
+            return projection;
+        } finally
+        {
+            mMetrics.record(ServiceMetrics.GET_STATISTICS_PROJECTION, start,
+                    (projection == null || projection.uids == null) ? 0 : projection.uids.length * 16, projection == null);
+        }
+    }
+}
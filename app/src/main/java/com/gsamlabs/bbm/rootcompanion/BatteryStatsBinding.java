@@ -0,0 +1,220 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Build;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Our connection to the system's battery stats service (IBatteryStats), which
+ * we can only reach through reflection.
+ *
+ * The reflective lookup is done once - in a holder class, so concurrent first
+ * calls don't each repeat it - and the resulting Method is cached with access
+ * checks disabled, so steady state calls are a single invoke.  We also
+ * register for the binder's death - if system_server restarts, the stale
+ * interface is dropped and we transparently rebind on the next call, rather
+ * than failing until the device is rebooted.
+ *
+ * How long binding and calls take is recorded, for diagnosing slowness.
+ */
+public class BatteryStatsBinding {
+    private static final String TAG = "BatteryStatsBinding";
+
+    private final Object mLock = new Object();
+    private volatile Object mService;
+    private IBinder mBinder;
+
+    private final AtomicLong mBindCount = new AtomicLong();
+    private final AtomicLong mBindTimeNs = new AtomicLong();
+    private final AtomicLong mDeathCount = new AtomicLong();
+    private final AtomicLong mInvokeCount = new AtomicLong();
+    private final AtomicLong mInvokeTimeNs = new AtomicLong();
+    private final AtomicLong mMaxInvokeTimeNs = new AtomicLong();
+
+    private final IBinder.DeathRecipient mDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            Log.d(TAG, "Battery stats service died - will rebind on next use");
+            mDeathCount.incrementAndGet();
+            synchronized (mLock)
+            {
+                mService = null;
+                mBinder = null;
+            }
+        }
+    };
+
+    /**
+     * Retrieves the BatteryStatsImpl statistics parcel.
+     * @throws RemoteException on any error - the message says what went wrong
+     */
+    public byte[] getStatistics() throws RemoteException
+    {
+        Object service = getService();
+        Method method = getStatisticsMethod();
+        try {
+            return invoke(method, service);
+        } catch (InvocationTargetException e) {
+            if (!(e.getCause() instanceof DeadObjectException))
+            {
+                throw failure("Exception invoking getStatistics on battery info service: ", e.getCause());
+            }
+            // We beat the death notification to it - rebind and try once more.
+            invalidate(service);
+            try {
+                return invoke(method, getService());
+            } catch (InvocationTargetException e1) {
+                throw failure("Exception invoking getStatistics on battery info service: ", e1.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return bind count, total bind time (ns), binder deaths seen, invoke count,
+     * total invoke time (ns) and the longest invoke (ns), in that order.
+     */
+    public long[] getStats()
+    {
+        return new long[]{mBindCount.get(), mBindTimeNs.get(), mDeathCount.get(),
+                mInvokeCount.get(), mInvokeTimeNs.get(), mMaxInvokeTimeNs.get()};
+    }
+
+    private byte[] invoke(Method method, Object service) throws InvocationTargetException, RemoteException
+    {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return (byte[]) method.invoke(service, (Object[]) null);
+        } catch (IllegalAccessException e) {
+            throw failure("Exception invoking getStatistics on battery info service: ", e);
+        } finally
+        {
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            mInvokeCount.incrementAndGet();
+            mInvokeTimeNs.addAndGet(elapsed);
+            long max;
+            while (elapsed > (max = mMaxInvokeTimeNs.get()) && !mMaxInvokeTimeNs.compareAndSet(max, elapsed))
+            {
+                // Retry
+            }
+        }
+    }
+
+    static Method getStatisticsMethod() throws RemoteException
+    {
+        if (StatisticsMethodHolder.METHOD == null)
+        {
+            throw failure("Exception obtaining getStatistics method - perhaps this version of android changed? ",
+                    StatisticsMethodHolder.FAILURE);
+        }
+        return StatisticsMethodHolder.METHOD;
+    }
+
+    /**
+     * Looks up IBatteryStats.getStatistics when first used - class initialization
+     * guarantees that happens exactly once, however many threads get here first.
+     */
+    private static final class StatisticsMethodHolder {
+        static final Method METHOD;
+        static final Exception FAILURE;
+
+        static
+        {
+            Method method = null;
+            Exception failure = null;
+            try {
+                method = Class.forName("com.android.internal.app.IBatteryStats").getMethod("getStatistics", (Class<?>[]) null);
+                method.setAccessible(true);
+            } catch (Exception e) {
+                failure = e;
+            }
+            METHOD = method;
+            FAILURE = failure;
+        }
+    }
+
+    private Object getService() throws RemoteException
+    {
+        Object service = mService;
+        if (service != null)
+        {
+            return service;
+        }
+        synchronized (mLock)
+        {
+            if (mService == null)
+            {
+                bindLocked();
+            }
+            return mService;
+        }
+    }
+
+    private void bindLocked() throws RemoteException
+    {
+        long start = SystemClock.elapsedRealtimeNanos();
+        String batteryServiceName = "batterystats";
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+        {
+            batteryServiceName = "batteryinfo";
+        }
+        IBinder binder;
+        Object service;
+        try {
+            binder = (IBinder) Class.forName("android.os.ServiceManager")
+                    .getMethod("getService", String.class).invoke(null, batteryServiceName);
+            service = Class.forName("com.android.internal.app.IBatteryStats$Stub").getDeclaredMethod("asInterface",
+                    IBinder.class).invoke(null, binder);
+        } catch (Exception e) {
+            throw failure("Exception retrieving battery info service: ", e);
+        }
+        if (binder == null || service == null)
+        {
+            throw failure("Battery info service is not available", null);
+        }
+        try {
+            binder.linkToDeath(mDeathRecipient, 0);
+        } catch (RemoteException e) {
+            // Already dead - it'll be back shortly
+            throw failure("Battery info service died while binding: ", e);
+        }
+        mBinder = binder;
+        mService = service;
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        mBindCount.incrementAndGet();
+        mBindTimeNs.addAndGet(elapsed);
+        Log.d(TAG, "Bound to battery info service in " + (elapsed / 1000) + "us");
+    }
+
+    private void invalidate(Object service)
+    {
+        synchronized (mLock)
+        {
+            if (mService == service)
+            {
+                if (mBinder != null)
+                {
+                    mBinder.unlinkToDeath(mDeathRecipient, 0);
+                }
+                mService = null;
+                mBinder = null;
+            }
+        }
+    }
+
+    private static RemoteException failure(String msg, Throwable e)
+    {
+        if (e != null)
+        {
+            msg = msg + e.getMessage();
+        }
+        Log.e(TAG, msg, e);
+        return new RemoteException(msg);
+    }
+}
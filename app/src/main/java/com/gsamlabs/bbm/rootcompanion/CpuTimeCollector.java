@@ -0,0 +1,310 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Collects every core's cpufreq time_in_state and the per-uid CPU times in
+ * one go.  The files are read directly in parallel on a small pool - on
+ * many-core devices reading them one after another is most of the cost - and
+ * parsed straight into primitive arrays.  Any that need root are then read
+ * together, in a single root read.
+ *
+ * The last few collections are kept so a client can ask for just the
+ * changes since the one it last received.
+ */
+public class CpuTimeCollector {
+    private static final String TAG = "CpuTimeCollector";
+    static final String CPU_DIR = "/sys/devices/system/cpu";
+    static final String TIME_IN_STATE_FILE = "cpufreq/stats/time_in_state";
+    static final String UID_CPUTIME_FILE = "/proc/uid_cputime/show_uid_stat";
+    private static final long COLLECT_TIMEOUT_MS = 3000;
+    private static final int HISTORY_SIZE = 4;
+    private static final int QUEUE_SIZE = 64;
+
+    /** Reads the files - directly if it can, through root if it must. */
+    public interface Reader {
+        /** @return The result of reading the file directly, or null if it needs root */
+        ProcFileResult readDirect(String path);
+
+        /** @return For each file, the result of reading it through root */
+        ProcFileResult[] readAsRoot(String[] paths);
+    }
+
+    private final Reader mReader;
+    private final ThreadPoolExecutor mExecutor;
+    private final int[] mCpus;
+    // Guarded by 'this'
+    private final LinkedHashMap<Long, CpuTimes> mHistory = new LinkedHashMap<Long, CpuTimes>();
+    private long mLastTimestamp;
+
+    /**
+     * @param threads How many files to read at once
+     */
+    public CpuTimeCollector(Reader reader, int threads)
+    {
+        mReader = reader;
+        // If the pool is swamped, the binder thread asking does the read itself.
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mCpus = findCpus();
+    }
+
+    public void shutdown()
+    {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @param baseTimestamp The timestamp of a previous collection to get the changes
+     * since, or 0 for the full values.  The full values are returned if that
+     * collection is no longer held (or the cores have changed since).
+     */
+    public CpuTimes collect(long baseTimestamp) throws InterruptedException
+    {
+        // One path per core, then the uid times
+        String[] paths = new String[mCpus.length + 1];
+        List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>(paths.length);
+        for (int i = 0; i < paths.length; i++)
+        {
+            paths[i] = (i < mCpus.length) ? CPU_DIR + "/cpu" + mCpus[i] + "/" + TIME_IN_STATE_FILE : UID_CPUTIME_FILE;
+            tasks.add(parseTask(paths[i], i == mCpus.length));
+        }
+        List<Future<long[]>> futures = mExecutor.invokeAll(tasks, COLLECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        long[][] values = new long[paths.length][];
+        int[] needRoot = new int[paths.length];
+        int needRootCount = 0;
+        for (int i = 0; i < paths.length; i++)
+        {
+            values[i] = result(futures.get(i));
+            if (values[i] == null)
+            {
+                needRoot[needRootCount++] = i;
+            }
+        }
+        if (needRootCount > 0)
+        {
+            String[] rootPaths = new String[needRootCount];
+            for (int i = 0; i < needRootCount; i++)
+            {
+                rootPaths[i] = paths[needRoot[i]];
+            }
+            ProcFileResult[] rootResults = mReader.readAsRoot(rootPaths);
+            for (int i = 0; i < needRootCount; i++)
+            {
+                values[needRoot[i]] = parse(rootResults[i], needRoot[i] == mCpus.length);
+            }
+        }
+        CpuTimes full = build(Arrays.copyOf(values, mCpus.length), values[mCpus.length]);
+
+        CpuTimes base;
+        synchronized (this)
+        {
+            full.timestamp = Math.max(SystemClock.elapsedRealtime(), mLastTimestamp + 1);
+            mLastTimestamp = full.timestamp;
+            mHistory.put(full.timestamp, full);
+            Iterator<Long> it = mHistory.keySet().iterator();
+            while (mHistory.size() > HISTORY_SIZE)
+            {
+                it.next();
+                it.remove();
+            }
+            base = (baseTimestamp == 0) ? null : mHistory.get(baseTimestamp);
+        }
+        if (base == null || !Arrays.equals(base.freqCounts, full.freqCounts) || !Arrays.equals(base.frequencies, full.frequencies))
+        {
+            return full;
+        }
+        return delta(full, base);
+    }
+
+    /**
+     * @return Reads the file directly and parses it - the task returns null if
+     * the file needs root.
+     */
+    private Callable<long[]> parseTask(final String path, final boolean uidTimes)
+    {
+        return new Callable<long[]>() {
+            @Override
+            public long[] call() {
+                ProcFileResult result = mReader.readDirect(path);
+                return (result == null) ? null : parse(result, uidTimes);
+            }
+        };
+    }
+
+    private static long[] parse(ProcFileResult result, boolean uidTimes)
+    {
+        if (result.status != ProcFileResult.STATUS_OK)
+        {
+            return new long[0];
+        }
+        byte[] content = result.content;
+        return uidTimes ? CpuTimeParser.parseUidCpuTimes(content, content.length)
+                : CpuTimeParser.parseTimeInState(content, content.length);
+    }
+
+    /**
+     * @return The task's values, empty if it failed or timed out, or null if
+     * the file needs root.
+     */
+    private static long[] result(Future<long[]> future) throws InterruptedException
+    {
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            Log.d(TAG, "Read timed out - leaving it out");
+        } catch (ExecutionException e) {
+            Log.d(TAG, "Read failed - leaving it out: " + e.getCause());
+        }
+        return new long[0];
+    }
+
+    private CpuTimes build(long[][] timeInStates, long[] uidTimes)
+    {
+        CpuTimes times = new CpuTimes();
+        times.cpus = mCpus.clone();
+        times.freqCounts = new int[mCpus.length];
+        int total = 0;
+        for (int i = 0; i < mCpus.length; i++)
+        {
+            times.freqCounts[i] = timeInStates[i].length / 2;
+            total += times.freqCounts[i];
+        }
+        times.frequencies = new long[total];
+        times.freqTimes = new long[total];
+        int pos = 0;
+        for (long[] timeInState : timeInStates)
+        {
+            for (int j = 0; j < timeInState.length; j += 2)
+            {
+                times.frequencies[pos] = timeInState[j];
+                times.freqTimes[pos++] = timeInState[j + 1];
+            }
+        }
+
+        // Sorted by uid (the kernel already does, but we rely on it for deltas)
+        int count = uidTimes.length / 3;
+        Integer[] order = new Integer[count];
+        boolean sorted = true;
+        for (int i = 0; i < count; i++)
+        {
+            order[i] = i;
+            sorted &= (i == 0 || uidTimes[i * 3] >= uidTimes[(i - 1) * 3]);
+        }
+        if (!sorted)
+        {
+            final long[] values = uidTimes;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long ua = values[a * 3];
+                    long ub = values[b * 3];
+                    return (ua < ub) ? -1 : ((ua == ub) ? 0 : 1);
+                }
+            });
+        }
+        times.uids = new int[count];
+        times.uidUserTimes = new long[count];
+        times.uidSystemTimes = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            int from = order[i] * 3;
+            times.uids[i] = (int) uidTimes[from];
+            times.uidUserTimes[i] = uidTimes[from + 1];
+            times.uidSystemTimes[i] = uidTimes[from + 2];
+        }
+        return times;
+    }
+
+    private static CpuTimes delta(CpuTimes full, CpuTimes base)
+    {
+        CpuTimes delta = new CpuTimes();
+        delta.timestamp = full.timestamp;
+        delta.baseTimestamp = base.timestamp;
+        delta.cpus = full.cpus;
+        delta.freqCounts = full.freqCounts;
+        delta.frequencies = full.frequencies;
+        delta.freqTimes = new long[full.freqTimes.length];
+        for (int i = 0; i < full.freqTimes.length; i++)
+        {
+            delta.freqTimes[i] = difference(full.freqTimes[i], base.freqTimes[i]);
+        }
+
+        int[] uids = new int[full.uids.length];
+        long[] userTimes = new long[full.uids.length];
+        long[] systemTimes = new long[full.uids.length];
+        int count = 0;
+        int b = 0;
+        for (int i = 0; i < full.uids.length; i++)
+        {
+            int uid = full.uids[i];
+            while (b < base.uids.length && base.uids[b] < uid)
+            {
+                b++;
+            }
+            boolean inBase = b < base.uids.length && base.uids[b] == uid;
+            long user = inBase ? difference(full.uidUserTimes[i], base.uidUserTimes[b]) : full.uidUserTimes[i];
+            long system = inBase ? difference(full.uidSystemTimes[i], base.uidSystemTimes[b]) : full.uidSystemTimes[i];
+            if (user != 0 || system != 0)
+            {
+                uids[count] = uid;
+                userTimes[count] = user;
+                systemTimes[count] = system;
+                count++;
+            }
+        }
+        delta.uids = Arrays.copyOf(uids, count);
+        delta.uidUserTimes = Arrays.copyOf(userTimes, count);
+        delta.uidSystemTimes = Arrays.copyOf(systemTimes, count);
+        return delta;
+    }
+
+    /**
+     * Counters only go backwards if they were reset (a core's stats on hotplug,
+     * a uid removed and reused) - in which case everything they have now is new.
+     */
+    private static long difference(long current, long previous)
+    {
+        return (current >= previous) ? current - previous : current;
+    }
+
+    private static int[] findCpus()
+    {
+        String[] names = new File(CPU_DIR).list();
+        if (names == null)
+        {
+            Log.d(TAG, "Unable to list " + CPU_DIR);
+            return new int[0];
+        }
+        int[] cpus = new int[names.length];
+        int count = 0;
+        for (String name : names)
+        {
+            if (name.matches("cpu[0-9]+"))
+            {
+                cpus[count++] = Integer.parseInt(name.substring(3));
+            }
+        }
+        cpus = Arrays.copyOf(cpus, count);
+        Arrays.sort(cpus);
+        return cpus;
+    }
+}
@@ -0,0 +1,76 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.Arrays;
+
+/**
+ * Parses the kernel's CPU time files straight from the raw bytes:
+ * <pre>
+ *   cpufreq/stats/time_in_state:   "&lt;freq kHz&gt; &lt;time in 10ms units&gt;" per line
+ *   /proc/uid_cputime/show_uid_stat: "&lt;uid&gt;: &lt;user us&gt; &lt;system us&gt; ..." per line
+ * </pre>
+ * Results are interleaved primitive arrays, e.g. freq0, time0, freq1, time1...
+ * Lines without enough numbers are skipped.  This class has no android
+ * dependencies.
+ */
+public final class CpuTimeParser {
+    private CpuTimeParser() {
+    }
+
+    /**
+     * @return frequency (kHz), time (10ms units) pairs, interleaved
+     */
+    public static long[] parseTimeInState(byte[] data, int len)
+    {
+        return parseLines(data, len, 2);
+    }
+
+    /**
+     * @return uid, user time (us), system time (us) triples, interleaved
+     */
+    public static long[] parseUidCpuTimes(byte[] data, int len)
+    {
+        return parseLines(data, len, 3);
+    }
+
+    /**
+     * Reads the first fieldsPerLine numbers of each line - anything that isn't
+     * a digit separates numbers.
+     */
+    private static long[] parseLines(byte[] data, int len, int fieldsPerLine)
+    {
+        long[] out = new long[fieldsPerLine * 64];
+        int count = 0;
+        int pos = 0;
+        while (pos < len)
+        {
+            int fields = 0;
+            while (pos < len && data[pos] != '\n')
+            {
+                byte b = data[pos];
+                if (b >= '0' && b <= '9' && fields < fieldsPerLine)
+                {
+                    long value = 0;
+                    while (pos < len && (b = data[pos]) >= '0' && b <= '9')
+                    {
+                        value = value * 10 + (b - '0');
+                        pos++;
+                    }
+                    if (count + fieldsPerLine > out.length)
+                    {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    out[count + fields++] = value;
+                } else
+                {
+                    pos++;
+                }
+            }
+            pos++;
+            if (fields == fieldsPerLine)
+            {
+                count += fieldsPerLine;
+            }
+        }
+        return Arrays.copyOf(out, count);
+    }
+}
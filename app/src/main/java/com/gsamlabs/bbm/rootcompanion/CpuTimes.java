@@ -0,0 +1,84 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Per-core frequency residency and per-uid CPU time, collected together by
+ * the {@link CpuTimeCollector}.
+ *
+ * The frequencies of all cores are flattened into frequencies/freqTimes:
+ * core i's entries start at the sum of freqCounts[0..i-1].  Frequencies are in
+ * kHz, freqTimes in 10ms units (as the kernel reports them) and uid times in
+ * microseconds.
+ *
+ * If baseTimestamp is non-zero this is a delta against the collection taken at
+ * that time: every time is the change since then, and uids whose times didn't
+ * change are left out.
+ */
+public class CpuTimes implements Parcelable {
+    /** When this was collected (SystemClock.elapsedRealtime) - pass it back to get a delta next time */
+    public long timestamp;
+    /** The collection this is a delta against, or 0 if it holds the full values */
+    public long baseTimestamp;
+    /** The core numbers (cpuN) */
+    public int[] cpus;
+    /** How many frequencies each core has (0 if it is offline or has no stats) */
+    public int[] freqCounts;
+    public long[] frequencies;
+    public long[] freqTimes;
+    public int[] uids;
+    public long[] uidUserTimes;
+    public long[] uidSystemTimes;
+
+    public CpuTimes()
+    {
+    }
+
+    private CpuTimes(Parcel in)
+    {
+        timestamp = in.readLong();
+        baseTimestamp = in.readLong();
+        cpus = in.createIntArray();
+        freqCounts = in.createIntArray();
+        frequencies = in.createLongArray();
+        freqTimes = in.createLongArray();
+        uids = in.createIntArray();
+        uidUserTimes = in.createLongArray();
+        uidSystemTimes = in.createLongArray();
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeLong(timestamp);
+        dest.writeLong(baseTimestamp);
+        dest.writeIntArray(cpus);
+        dest.writeIntArray(freqCounts);
+        dest.writeLongArray(frequencies);
+        dest.writeLongArray(freqTimes);
+        dest.writeIntArray(uids);
+        dest.writeLongArray(uidUserTimes);
+        dest.writeLongArray(uidSystemTimes);
+    }
+
+    public static final Parcelable.Creator<CpuTimes> CREATOR = new Parcelable.Creator<CpuTimes>() {
+        @Override
+        public CpuTimes createFromParcel(Parcel in)
+        {
+            return new CpuTimes(in);
+        }
+
+        @Override
+        public CpuTimes[] newArray(int size)
+        {
+            return new CpuTimes[size];
+        }
+    };
+}
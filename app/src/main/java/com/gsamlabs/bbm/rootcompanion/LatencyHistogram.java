@@ -0,0 +1,103 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with HDR-style log-linear buckets: each
+ * power of two is split into 8 equal sub-buckets, so any recorded value is
+ * known to within 12.5%, from single units up to Long.MAX_VALUE, in a fixed
+ * 488 counters.  Recording is two atomic updates and never allocates.
+ *
+ * Values are in whatever unit the caller records (we use microseconds).
+ * This class has no android dependencies.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketFor(value));
+        mTotal.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value))
+        {
+            // Retry
+        }
+    }
+
+    /** @return The sum of all recorded values */
+    public long getTotal()
+    {
+        return mTotal.get();
+    }
+
+    public long getMax()
+    {
+        return mMax.get();
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile
+     * @return The value at that percentile (the top of its bucket, capped at the
+     * max) or 0 if nothing has been recorded
+     */
+    public long getPercentile(double fraction)
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        if (count == 0)
+        {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts[i];
+            if (seen >= target)
+            {
+                return Math.min(highestValue(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    static int bucketFor(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestValue(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        long next = (mantissa + 1) << shift;
+        // The very top bucket ends at Long.MAX_VALUE
+        return (next <= 0) ? Long.MAX_VALUE : next - 1;
+    }
+}
@@ -0,0 +1,352 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses large payloads (the statistics parcel mostly) before they go over
+ * binder.  The parcel is full of zero padding and repeated strings, so even the
+ * fast codec does well.
+ *
+ * Encoded payloads start with a small header:
+ * <pre>
+ *   byte codec, int originalLength (big-endian), then the compressed data
+ * </pre>
+ *
+ * CODEC_DEFLATE is plain zlib (java.util.zip).  CODEC_LZ is a small LZ4-style
+ * codec: each sequence is a token byte (high nibble literal count, low nibble
+ * match length - 4; 15 means more length follows as 255-run bytes), the
+ * literals, then a 2 byte little-endian match offset.  The final sequence has
+ * literals only.
+ *
+ * Hash tables and output buffers are kept per thread and reused.  Deflaters
+ * hold native memory that's only freed by end(), so rather than one per
+ * (binder) thread a few are pooled, and any beyond that are ended.  Decoding
+ * refuses payloads claiming to be larger than MAX_DECODED_LENGTH.
+ * This class has no android dependencies so clients can copy it to decode.
+ */
+public final class PayloadCodec {
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+    public static final int CODEC_LZ = 2;
+    public static final int HEADER_SIZE = 5;
+    /** The largest payload decode will allocate for */
+    public static final int MAX_DECODED_LENGTH = 32 * 1024 * 1024;
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+    /** Don't hang on to output buffers bigger than this between calls. */
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+    private static final int MAX_POOLED_DEFLATERS = 2;
+
+    private static final ArrayBlockingQueue<Deflater> sDeflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED_DEFLATERS);
+    private static final ThreadLocal<int[]> sHashTables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_BITS];
+        }
+    };
+    private static final ThreadLocal<byte[][]> sBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][]{new byte[65536]};
+        }
+    };
+
+    private PayloadCodec() {
+    }
+
+    public static boolean isSupported(int codec)
+    {
+        return codec == CODEC_NONE || codec == CODEC_DEFLATE || codec == CODEC_LZ;
+    }
+
+    /**
+     * @param codec One of the CODEC_* values
+     * @param level The Deflater level (ignored for other codecs)
+     * @param data The payload
+     * @return The header followed by the encoded payload
+     */
+    public static byte[] encode(int codec, int level, byte[] data)
+    {
+        byte[][] holder = sBuffers.get();
+        int len;
+        switch (codec)
+        {
+        case CODEC_DEFLATE:
+            len = deflate(level, data, holder);
+            break;
+        case CODEC_LZ:
+            len = lzCompress(data, holder);
+            break;
+        case CODEC_NONE:
+            len = HEADER_SIZE + data.length;
+            holder[0] = ensure(holder[0], len, 0);
+            System.arraycopy(data, 0, holder[0], HEADER_SIZE, data.length);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+        byte[] out = holder[0];
+        out[0] = (byte) codec;
+        out[1] = (byte) (data.length >>> 24);
+        out[2] = (byte) (data.length >>> 16);
+        out[3] = (byte) (data.length >>> 8);
+        out[4] = (byte) data.length;
+        byte[] result = Arrays.copyOf(out, len);
+        if (out.length > MAX_RETAINED_BUFFER)
+        {
+            holder[0] = new byte[65536];
+        }
+        return result;
+    }
+
+    /**
+     * Reverses {@link #encode(int, int, byte[])}.
+     * @throws IllegalArgumentException if the data is corrupt
+     */
+    public static byte[] decode(byte[] encoded)
+    {
+        if (encoded.length < HEADER_SIZE)
+        {
+            throw new IllegalArgumentException("Corrupt payload: too short");
+        }
+        ByteBuffer header = ByteBuffer.wrap(encoded, 0, HEADER_SIZE);
+        int codec = header.get();
+        int originalLength = header.getInt();
+        if (originalLength < 0 || originalLength > MAX_DECODED_LENGTH)
+        {
+            throw new IllegalArgumentException("Corrupt payload: length " + originalLength);
+        }
+        byte[] out = new byte[originalLength];
+        switch (codec)
+        {
+        case CODEC_NONE:
+            if (encoded.length - HEADER_SIZE != originalLength)
+            {
+                throw new IllegalArgumentException("Corrupt payload: length mismatch");
+            }
+            System.arraycopy(encoded, HEADER_SIZE, out, 0, originalLength);
+            break;
+        case CODEC_DEFLATE:
+            inflate(encoded, out);
+            break;
+        case CODEC_LZ:
+            lzDecompress(encoded, out);
+            break;
+        default:
+            throw new IllegalArgumentException("Corrupt payload: unknown codec " + codec);
+        }
+        return out;
+    }
+
+    private static byte[] ensure(byte[] buffer, int size, int keep)
+    {
+        if (buffer.length >= size)
+        {
+            return buffer;
+        }
+        byte[] bigger = new byte[Math.max(size, buffer.length * 2)];
+        System.arraycopy(buffer, 0, bigger, 0, keep);
+        return bigger;
+    }
+
+    private static int deflate(int level, byte[] data, byte[][] holder)
+    {
+        Deflater deflater = sDeflaters.poll();
+        if (deflater == null)
+        {
+            deflater = new Deflater();
+        }
+        boolean reusable = false;
+        try {
+            deflater.setLevel(level);
+            deflater.setInput(data);
+            deflater.finish();
+            int len = HEADER_SIZE;
+            byte[] out = ensure(holder[0], HEADER_SIZE + data.length / 4 + 64, 0);
+            while (!deflater.finished())
+            {
+                if (len == out.length)
+                {
+                    out = ensure(out, out.length * 2, len);
+                }
+                len += deflater.deflate(out, len, out.length - len);
+            }
+            holder[0] = out;
+            deflater.reset();
+            reusable = true;
+            return len;
+        } finally
+        {
+            if (!reusable || !sDeflaters.offer(deflater))
+            {
+                deflater.end();
+            }
+        }
+    }
+
+    private static void inflate(byte[] encoded, byte[] out)
+    {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, HEADER_SIZE, encoded.length - HEADER_SIZE);
+            int len = 0;
+            while (len < out.length && !inflater.finished())
+            {
+                int read = inflater.inflate(out, len, out.length - len);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                len += read;
+            }
+            if (len != out.length)
+            {
+                throw new IllegalArgumentException("Corrupt payload: inflated " + len + " of " + out.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt payload: " + e.getMessage());
+        } finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static int readInt(byte[] data, int pos)
+    {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8)
+                | ((data[pos + 2] & 0xFF) << 16) | ((data[pos + 3] & 0xFF) << 24);
+    }
+
+    private static int lzCompress(byte[] src, byte[][] holder)
+    {
+        int[] table = sHashTables.get();
+        Arrays.fill(table, -1);
+        // Worst case: all literals plus a length byte per 255 and a token
+        byte[] out = ensure(holder[0], HEADER_SIZE + src.length + src.length / 255 + 16, 0);
+        int op = HEADER_SIZE;
+        int anchor = 0;
+        int i = 0;
+        int limit = src.length - MIN_MATCH;
+        while (i <= limit)
+        {
+            int seq = readInt(src, i);
+            int hash = (seq * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq)
+            {
+                i++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            while (i + matchLen < src.length && src[ref + matchLen] == src[i + matchLen])
+            {
+                matchLen++;
+            }
+            op = writeSequence(out, op, src, anchor, i - anchor, i - ref, matchLen);
+            i += matchLen;
+            anchor = i;
+        }
+        op = writeSequence(out, op, src, anchor, src.length - anchor, 0, 0);
+        holder[0] = out;
+        return op;
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] src, int literalStart, int literalLen, int offset, int matchLen)
+    {
+        int tokenPos = op++;
+        int token = (Math.min(literalLen, 15) << 4);
+        if (literalLen >= 15)
+        {
+            op = writeLength(out, op, literalLen - 15);
+        }
+        System.arraycopy(src, literalStart, out, op, literalLen);
+        op += literalLen;
+        if (matchLen > 0)
+        {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            int extra = matchLen - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if (extra >= 15)
+            {
+                op = writeLength(out, op, extra - 15);
+            }
+        }
+        out[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int len)
+    {
+        while (len >= 255)
+        {
+            out[op++] = (byte) 255;
+            len -= 255;
+        }
+        out[op++] = (byte) len;
+        return op;
+    }
+
+    private static void lzDecompress(byte[] in, byte[] out)
+    {
+        int ip = HEADER_SIZE;
+        int op = 0;
+        try {
+            while (ip < in.length)
+            {
+                int token = in[ip++] & 0xFF;
+                int literalLen = token >>> 4;
+                if (literalLen == 15)
+                {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xFF;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(in, ip, out, op, literalLen);
+                ip += literalLen;
+                op += literalLen;
+                if (ip >= in.length)
+                {
+                    break;
+                }
+                int offset = (in[ip++] & 0xFF) | ((in[ip++] & 0xFF) << 8);
+                int matchLen = token & 0x0F;
+                if (matchLen == 15)
+                {
+                    int b;
+                    do {
+                        b = in[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0)
+                {
+                    throw new IllegalArgumentException("Corrupt payload: bad match offset " + offset);
+                }
+                // Byte by byte, since the match may overlap what it's producing
+                for (int end = op + matchLen; op < end; op++)
+                {
+                    out[op] = out[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt payload: truncated");
+        }
+        if (op != out.length)
+        {
+            throw new IllegalArgumentException("Corrupt payload: produced " + op + " of " + out.length + " bytes");
+        }
+    }
+}
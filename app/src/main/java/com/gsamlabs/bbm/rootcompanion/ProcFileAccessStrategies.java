@@ -0,0 +1,358 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.util.Log;
+
+/**
+ * Remembers, per path, how a file can be read: directly, only through root,
+ * or not at all - so on enforcing ROMs we stop trying (and failing) a direct
+ * open of the same files on every poll, and stop trying files we aren't
+ * allowed to read even with root, or that root was denied for.
+ *
+ * Files that are missing or fail to read teach us nothing: cpufreq and
+ * cpuidle files come and go as cores are hotplugged, and EAGAIN/EIO are
+ * usually transient - so those are simply tried again next time.
+ *
+ * What we've learned is re-checked after RECHECK_INTERVAL_MS, and thrown away
+ * whenever the SELinux mode or boot id changes.  The direct/root strategies
+ * are persisted (along with the boot id and SELinux mode they were learned
+ * under) so a restarted service doesn't have to learn them all over again.
+ * Saving happens on the executor we're given, never on the caller's thread,
+ * and a burst of changes is written out once.
+ *
+ * Only the MAX_ENTRIES most recently used paths are remembered - callers can
+ * ask about any path they like.
+ */
+public class ProcFileAccessStrategies {
+    private static final String TAG = "ProcFileAccessStrategies";
+    public static final int STRATEGY_UNKNOWN = 0;
+    public static final int STRATEGY_DIRECT = 1;
+    public static final int STRATEGY_ROOT = 2;
+    public static final int STRATEGY_NONE = 3;
+    private static final String[] STRATEGY_NAMES = {"UNKNOWN", "DIRECT", "ROOT", "NONE"};
+
+    public static final long RECHECK_INTERVAL_MS = 5 * 60 * 1000;
+    private static final long ENVIRONMENT_CHECK_INTERVAL_MS = 60 * 1000;
+    private static final String SELINUX_ENFORCE_FILE = "/sys/fs/selinux/enforce";
+    private static final String BOOT_ID_FILE = "/proc/sys/kernel/random/boot_id";
+    static final int MAX_ENTRIES = 256;
+
+    private static final class Entry {
+        final int mStrategy;
+        final long mLearnedAtNs;
+        /** For STRATEGY_NONE - the failure to report */
+        final ProcFileResult mFailure;
+
+        Entry(int strategy, long learnedAtNs, ProcFileResult failure)
+        {
+            mStrategy = strategy;
+            mLearnedAtNs = learnedAtNs;
+            mFailure = failure;
+        }
+    }
+
+    private final File mStateFile;
+    private final Executor mSaveExecutor;
+    /** By path, least recently used first - guarded by itself */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ProcFileAccessStrategies.Entry> eldest) {
+            // Not asked about in a while - we'll learn it again if it comes back.
+            return size() > MAX_ENTRIES;
+        }
+    };
+    /** Set while a save is queued - changes made meanwhile go out with it */
+    private final AtomicBoolean mSavePending = new AtomicBoolean();
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            mSavePending.set(false);
+            save();
+        }
+    };
+    private volatile long mLastEnvironmentCheckNs;
+    // Guarded by 'this'
+    private String mBootId;
+    private String mSelinuxMode;
+
+    /**
+     * @param stateFile Where learned strategies are persisted - loaded now if it
+     * was written under the current boot and SELinux mode
+     * @param saveExecutor Where changes are written out
+     */
+    public ProcFileAccessStrategies(File stateFile, Executor saveExecutor)
+    {
+        mStateFile = stateFile;
+        mSaveExecutor = saveExecutor;
+        mBootId = readSmallFile(BOOT_ID_FILE);
+        mSelinuxMode = readSmallFile(SELINUX_ENFORCE_FILE);
+        mLastEnvironmentCheckNs = System.nanoTime();
+        load();
+    }
+
+    /**
+     * @return How the file should be read - STRATEGY_UNKNOWN if we don't know
+     * or it's time to check again (so try direct first).
+     */
+    public int get(String path)
+    {
+        checkEnvironment();
+        Entry entry;
+        synchronized (mEntries)
+        {
+            entry = mEntries.get(path);
+        }
+        if (entry == null || (System.nanoTime() - entry.mLearnedAtNs) / 1000000 >= RECHECK_INTERVAL_MS)
+        {
+            return STRATEGY_UNKNOWN;
+        }
+        return entry.mStrategy;
+    }
+
+    /**
+     * @return For a STRATEGY_NONE path, the failure it last gave (with no
+     * duration), or null if it isn't one.
+     */
+    public ProcFileResult getKnownFailure(String path)
+    {
+        Entry entry;
+        synchronized (mEntries)
+        {
+            entry = mEntries.get(path);
+        }
+        if (entry == null || entry.mStrategy != STRATEGY_NONE)
+        {
+            return null;
+        }
+        ProcFileResult result = new ProcFileResult();
+        result.status = entry.mFailure.status;
+        result.errno = entry.mFailure.errno;
+        result.source = entry.mFailure.source;
+        result.message = entry.mFailure.message;
+        return result;
+    }
+
+    /**
+     * Updates what we know about the path from the result of reading it.
+     */
+    public void learn(String path, ProcFileResult result)
+    {
+        int strategy;
+        switch (result.status)
+        {
+        case ProcFileResult.STATUS_OK:
+            strategy = (result.source == ProcFileResult.SOURCE_DIRECT) ? STRATEGY_DIRECT : STRATEGY_ROOT;
+            break;
+        case ProcFileResult.STATUS_PERMISSION_DENIED:
+        case ProcFileResult.STATUS_ROOT_DENIED:
+            strategy = STRATEGY_NONE;
+            break;
+        default:
+            // Missing (maybe just for now - hotplug), a read error or a root
+            // shell failure - probably transient, so keep whatever we had.
+            return;
+        }
+        Entry previous;
+        synchronized (mEntries)
+        {
+            previous = mEntries.put(path, new Entry(strategy, System.nanoTime(), (strategy == STRATEGY_NONE) ? result : null));
+        }
+        if ((previous == null || previous.mStrategy != strategy) && strategy != STRATEGY_NONE)
+        {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * @return What we've learned, one "path=STRATEGY (age s)" per entry - for diagnostics.
+     */
+    public String[] describe()
+    {
+        long now = System.nanoTime();
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : snapshot())
+        {
+            lines.add(entry.getKey() + "=" + STRATEGY_NAMES[entry.getValue().mStrategy]
+                    + " (" + ((now - entry.getValue().mLearnedAtNs) / 1000000000L) + "s)");
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public void dump(PrintWriter pw)
+    {
+        synchronized (this)
+        {
+            pw.println("File access strategies (boot " + mBootId + ", selinux enforce=" + mSelinuxMode + "):");
+        }
+        for (String line : describe())
+        {
+            pw.println("  " + line);
+        }
+    }
+
+    /**
+     * Forgets everything if the SELinux mode (or boot id) has changed since we last looked.
+     */
+    private void checkEnvironment()
+    {
+        long now = System.nanoTime();
+        if ((now - mLastEnvironmentCheckNs) / 1000000 < ENVIRONMENT_CHECK_INTERVAL_MS)
+        {
+            return;
+        }
+        mLastEnvironmentCheckNs = now;
+        String bootId = readSmallFile(BOOT_ID_FILE);
+        String selinuxMode = readSmallFile(SELINUX_ENFORCE_FILE);
+        synchronized (this)
+        {
+            if (bootId.equals(mBootId) && selinuxMode.equals(mSelinuxMode))
+            {
+                return;
+            }
+            mBootId = bootId;
+            mSelinuxMode = selinuxMode;
+        }
+        synchronized (mEntries)
+        {
+            mEntries.clear();
+        }
+        scheduleSave();
+    }
+
+    private List<Map.Entry<String, Entry>> snapshot()
+    {
+        synchronized (mEntries)
+        {
+            return new ArrayList<Map.Entry<String, Entry>>(new LinkedHashMap<String, Entry>(mEntries).entrySet());
+        }
+    }
+
+    /**
+     * Queues a save, unless one is queued already.
+     */
+    private void scheduleSave()
+    {
+        if (!mSavePending.compareAndSet(false, true))
+        {
+            return;
+        }
+        try {
+            mSaveExecutor.execute(mSaveTask);
+        } catch (RejectedExecutionException e) {
+            // Busy or shutting down - the next change will try again.
+            mSavePending.set(false);
+        }
+    }
+
+    private synchronized void load()
+    {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(mStateFile));
+            if (!mBootId.equals(in.readLine()) || !mSelinuxMode.equals(in.readLine()))
+            {
+                return;
+            }
+            long now = System.nanoTime();
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                int space = line.indexOf(' ');
+                if (space > 0)
+                {
+                    int strategy = Integer.parseInt(line.substring(0, space));
+                    if (strategy == STRATEGY_DIRECT || strategy == STRATEGY_ROOT)
+                    {
+                        synchronized (mEntries)
+                        {
+                            mEntries.put(line.substring(space + 1), new Entry(strategy, now, null));
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // Missing or unreadable - we'll just learn them again.
+        } finally
+        {
+            if (in != null)
+            {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private synchronized void save()
+    {
+        File temp = new File(mStateFile.getPath() + ".tmp");
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(temp));
+            out.println(mBootId);
+            out.println(mSelinuxMode);
+            for (Map.Entry<String, Entry> entry : snapshot())
+            {
+                int strategy = entry.getValue().mStrategy;
+                if (strategy == STRATEGY_DIRECT || strategy == STRATEGY_ROOT)
+                {
+                    out.println(strategy + " " + entry.getKey());
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mStateFile))
+            {
+                throw new IOException("Unable to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to save access strategies: " + e.getMessage());
+        } finally
+        {
+            if (out != null)
+            {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @return The trimmed content of a small world readable file, or "" if it can't be read.
+     */
+    private static String readSmallFile(String path)
+    {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(path));
+            String line = in.readLine();
+            return (line == null) ? "" : line.trim();
+        } catch (IOException e) {
+            return "";
+        } finally
+        {
+            if (in != null)
+            {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads proc/sysfs/debugfs files that get polled over and over (wakeup_sources
+ * at 1Hz for example).  Rather than opening a new stream and allocating a new
+ * buffer every time, we keep each file open and simply re-read it from offset 0
+ * (a pread - the kernel regenerates the content for us) into a direct buffer
+ * that's reused across calls.
+ *
+ * The only allocation per read is the final byte[] we hand back over binder.
+ * A file bigger than MAX_RETAINED_BUFFER_SIZE is read into a temporary buffer
+ * instead, and so is any file whose bigger buffer would take the total kept
+ * across all the open files over MAX_TOTAL_RETAINED_SIZE - any app can ask us
+ * to read a big file, and we'd rather not hold on to megabytes of native
+ * memory for it.
+ */
+public class ProcFileReader {
+    /** Initial buffer size per file - enough for most; we grow if the file is bigger. */
+    public static final int INITIAL_BUFFER_SIZE = 32768;
+    /** Sanity limit so a runaway file can't exhaust our memory. */
+    public static final int MAX_FILE_SIZE = 16 * 1024 * 1024;
+    /** The biggest buffer we keep for a file between reads. */
+    static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+    /** Upper bound on the buffer memory kept across all the open files. */
+    static final int MAX_TOTAL_RETAINED_SIZE = 2 * 1024 * 1024;
+    /** Upper bound on how many files we keep open at once. */
+    private static final int MAX_OPEN_FILES = 32;
+
+    private final ConcurrentHashMap<String, OpenFile> mOpenFiles = new ConcurrentHashMap<String, OpenFile>();
+    /** The capacity of every open file's buffer, added up */
+    private final AtomicInteger mRetainedSize = new AtomicInteger();
+
+    /**
+     * Reads the whole file (up to MAX_FILE_SIZE bytes), truncated at the first '\0'.
+     * @param fileName The file to read
+     * @return The content
+     * @throws IOException on any error opening or reading the file - the message
+     * will contain EACCES if SELinux denied us.
+     */
+    public byte[] read(String fileName) throws IOException
+    {
+        while (true)
+        {
+            OpenFile file = mOpenFiles.get(fileName);
+            if (file == null)
+            {
+                file = new OpenFile(fileName, mRetainedSize);
+                if (mOpenFiles.size() >= MAX_OPEN_FILES)
+                {
+                    closeAll();
+                }
+                OpenFile existing = mOpenFiles.put(fileName, file);
+                if (existing != null)
+                {
+                    existing.close();
+                }
+            }
+            byte[] result;
+            try {
+                result = file.read();
+            } catch (IOException e) {
+                // Don't keep a broken descriptor around - we'll reopen next time.
+                mOpenFiles.remove(fileName, file);
+                file.close();
+                throw e;
+            }
+            // A null result means another thread closed it underneath us - just reopen.
+            if (result != null)
+            {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Closes every file we're holding open.
+     */
+    public void closeAll()
+    {
+        Iterator<OpenFile> it = mOpenFiles.values().iterator();
+        while (it.hasNext())
+        {
+            OpenFile file = it.next();
+            it.remove();
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the index of the first '\0' in the first len bytes of the buffer,
+     * or len if there is none.  Uses absolute gets so nothing is allocated.
+     */
+    static int indexOfZero(ByteBuffer buffer, int len)
+    {
+        for (int i = 0; i < len; i++)
+        {
+            if (buffer.get(i) == 0)
+            {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Returns the content up to (not including) the first '\0' - for content
+     * read some other way (through root) that we haven't already truncated.
+     */
+    public static byte[] truncateAtNul(byte[] buffer)
+    {
+        for (int i = 0; i < buffer.length; i++)
+        {
+            if (buffer[i] == 0)
+            {
+                return Arrays.copyOf(buffer, i);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * For tests - the buffer memory currently kept across the open files.
+     */
+    int getRetainedSize()
+    {
+        return mRetainedSize.get();
+    }
+
+    private static final class OpenFile {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final AtomicInteger mRetainedSize;
+        private ByteBuffer mBuffer;
+        private boolean mClosed = false;
+
+        OpenFile(String fileName, AtomicInteger retainedSize) throws IOException
+        {
+            mFile = new RandomAccessFile(fileName, "r");
+            mChannel = mFile.getChannel();
+            mRetainedSize = retainedSize;
+            mBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+            mRetainedSize.addAndGet(INITIAL_BUFFER_SIZE);
+        }
+
+        synchronized byte[] read() throws IOException
+        {
+            if (mClosed)
+            {
+                return null;
+            }
+            ByteBuffer buffer = mBuffer;
+            buffer.clear();
+            long position = 0;
+            int read;
+            while ((read = mChannel.read(buffer, position)) > 0)
+            {
+                position += read;
+                if (!buffer.hasRemaining())
+                {
+                    if (buffer.capacity() >= MAX_FILE_SIZE)
+                    {
+                        break;
+                    }
+                    // Keep what we have and carry on reading into a bigger buffer.
+                    ByteBuffer bigger = ByteBuffer.allocateDirect(Math.min(buffer.capacity() * 2, MAX_FILE_SIZE));
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+            }
+            int len = indexOfZero(buffer, buffer.position());
+            byte[] result = new byte[len];
+            buffer.flip();
+            buffer.get(result, 0, len);
+            if (buffer != mBuffer)
+            {
+                retain(buffer);
+            }
+            return result;
+        }
+
+        /**
+         * Keeps a buffer we had to grow for subsequent reads of this file, if
+         * it's small enough and there's room for it - otherwise it's dropped
+         * and the next read starts from the buffer we already had.
+         */
+        private void retain(ByteBuffer bigger)
+        {
+            if (bigger.capacity() > MAX_RETAINED_BUFFER_SIZE)
+            {
+                return;
+            }
+            int extra = bigger.capacity() - mBuffer.capacity();
+            while (true)
+            {
+                int retained = mRetainedSize.get();
+                if (retained + extra > MAX_TOTAL_RETAINED_SIZE)
+                {
+                    return;
+                }
+                if (mRetainedSize.compareAndSet(retained, retained + extra))
+                {
+                    mBuffer = bigger;
+                    return;
+                }
+            }
+        }
+
+        synchronized void close()
+        {
+            if (!mClosed)
+            {
+                mClosed = true;
+                mRetainedSize.addAndGet(-mBuffer.capacity());
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The outcome of reading a file through readProcFileResult: the content on
+ * success, otherwise why it failed - without the 'R'/'E' sentinel arrays
+ * readProcFile has to use (which a genuine one byte file can be mistaken for).
+ *
+ * The status tells clients whether retrying makes sense: NOT_FOUND and
+ * ROOT_DENIED won't change on their own, ROOT_FAILED (a timeout or broken
+ * root shell) may well succeed next time.
+ */
+public class ProcFileResult implements Parcelable {
+    public static final int STATUS_OK = 0;
+    /** The file doesn't exist (ENOENT) */
+    public static final int STATUS_NOT_FOUND = 1;
+    /** Not even root could read it */
+    public static final int STATUS_PERMISSION_DENIED = 2;
+    /** Root was needed, and the user denied it */
+    public static final int STATUS_ROOT_DENIED = 3;
+    /** Root was needed, but the root read itself failed (timed out etc.) */
+    public static final int STATUS_ROOT_FAILED = 4;
+    /** Any other error - see errno and message */
+    public static final int STATUS_READ_ERROR = 5;
+
+    /** Read by the service directly */
+    public static final int SOURCE_DIRECT = 0;
+    /** Read through the persistent root helper process */
+    public static final int SOURCE_ROOT_HELPER = 1;
+    /** Read through a root shell 'cat' */
+    public static final int SOURCE_ROOT_SHELL = 2;
+
+    private static final int EPERM = 1;
+    private static final int ENOENT = 2;
+    private static final int EIO = 5;
+    private static final int EACCES = 13;
+    private static final int ENODEV = 19;
+    private static final int EISDIR = 21;
+    private static final int EINVAL = 22;
+    private static final Object[][] ERRNO_NAMES = {
+        {ENOENT, "ENOENT", "No such file or directory"},
+        {EACCES, "EACCES", "Permission denied"},
+        {EPERM, "EPERM", "Operation not permitted"},
+        {EIO, "EIO", "I/O error"},
+        {ENODEV, "ENODEV", "No such device"},
+        {EISDIR, "EISDIR", "Is a directory"},
+        {EINVAL, "EINVAL", "Invalid argument"},
+    };
+
+    public int status;
+    /** The errno behind the failure, or 0 if it isn't known */
+    public int errno;
+    public int source;
+    /** How long the service spent on the read */
+    public long durationUs;
+    /** The content (up to the first '\0') - null unless status is STATUS_OK */
+    public byte[] content;
+    /** A description of the failure - null on success */
+    public String message;
+
+    public ProcFileResult()
+    {
+    }
+
+    static ProcFileResult success(int source, byte[] content)
+    {
+        ProcFileResult result = new ProcFileResult();
+        result.status = STATUS_OK;
+        result.source = source;
+        result.content = content;
+        return result;
+    }
+
+    /**
+     * A failure reading the file itself - the status and errno are worked out
+     * from the message (which is usually strerror or an errno name).
+     */
+    static ProcFileResult failure(int source, String message)
+    {
+        ProcFileResult result = new ProcFileResult();
+        result.source = source;
+        result.message = message;
+        result.errno = errnoFromMessage(message);
+        if (result.errno == ENOENT)
+        {
+            result.status = STATUS_NOT_FOUND;
+        } else if (result.errno == EACCES || result.errno == EPERM)
+        {
+            result.status = STATUS_PERMISSION_DENIED;
+        } else
+        {
+            result.status = STATUS_READ_ERROR;
+        }
+        return result;
+    }
+
+    static ProcFileResult rootFailure(int status, String message)
+    {
+        ProcFileResult result = new ProcFileResult();
+        result.status = status;
+        result.source = SOURCE_ROOT_SHELL;
+        result.message = message;
+        return result;
+    }
+
+    /**
+     * @return What readProcFile returns for this result: the content, 'R' if root
+     * was denied, 'E' plus cat's exit code if the root read reported an error,
+     * or just 'E' otherwise.
+     */
+    byte[] toLegacyBytes()
+    {
+        switch (status)
+        {
+        case STATUS_OK:
+            return content;
+        case STATUS_ROOT_DENIED:
+            return new byte[]{(byte)'R'};
+        case STATUS_ROOT_FAILED:
+            return new byte[]{(byte)'E'};
+        default:
+            return (source == SOURCE_DIRECT) ? new byte[]{(byte)'E'} : new byte[]{(byte)'E', (byte)1};
+        }
+    }
+
+    static int errnoFromMessage(String message)
+    {
+        if (message != null)
+        {
+            for (Object[] errno : ERRNO_NAMES)
+            {
+                if (message.contains((String) errno[1]) || message.contains((String) errno[2]))
+                {
+                    return (Integer) errno[0];
+                }
+            }
+        }
+        return 0;
+    }
+
+    private ProcFileResult(Parcel in)
+    {
+        status = in.readInt();
+        errno = in.readInt();
+        source = in.readInt();
+        durationUs = in.readLong();
+        content = in.createByteArray();
+        message = in.readString();
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeInt(status);
+        dest.writeInt(errno);
+        dest.writeInt(source);
+        dest.writeLong(durationUs);
+        dest.writeByteArray(content);
+        dest.writeString(message);
+    }
+
+    public static final Parcelable.Creator<ProcFileResult> CREATOR = new Parcelable.Creator<ProcFileResult>() {
+        @Override
+        public ProcFileResult createFromParcel(Parcel in)
+        {
+            return new ProcFileResult(in);
+        }
+
+        @Override
+        public ProcFileResult[] newArray(int size)
+        {
+            return new ProcFileResult[size];
+        }
+    };
+}
@@ -0,0 +1,115 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
+import android.util.Log;
+
+/**
+ * Drives the {@link SystemAppManager} headlessly, for provisioning scripts -
+ * no dialogs, and the outcome comes back as the broadcast's result:
+ *
+ *   adb shell am broadcast -n com.gsamlabs.bbm.rootcompanion/.ProvisioningReceiver \
+ *       -a com.gsamlabs.bbm.rootcompanion.action.INSTALL --ez reboot true
+ *
+ * The result data is the message, and the result extras hold the whole
+ * {@link SystemAppManager.Result} (EXTRA_* keys) - 'am broadcast' prints all
+ * three along with the result code, which is one of:
+ *
+ *   -1  RESULT_SUCCESS (Activity.RESULT_OK) - the action succeeded
+ *    0  not handled - 'am broadcast' starts every ordered broadcast with 0, so
+ *       this is what you get when we never answered: the receiver is missing
+ *       or disabled, the sender lacks DUMP, or our process died first
+ *    1  RESULT_FAILURE - the action failed, see the message
+ *    2  RESULT_UNKNOWN_ACTION
+ *    3  RESULT_RUNNING - still going, see below
+ *
+ * Only -1 means success; scripts must not treat 0 as one.  With EXTRA_REBOOT, INSTALL
+ * and UNINSTALL reboot the device once the result has been delivered, if the
+ * change needs it.
+ *
+ * The work itself is done by the {@link ProvisioningService}: a broadcast has
+ * to finish within the (background) broadcast timeout, and an install may not.
+ * We wait up to RESULT_WAIT_MS for it; if it isn't done by then the result is
+ * RESULT_RUNNING, the service carries on, and VERIFY tells you how it went.
+ *
+ * The manifest requires the DUMP permission to send to us: the shell has it,
+ * ordinary apps don't.
+ */
+public class ProvisioningReceiver extends BroadcastReceiver {
+    private static final String TAG = "ProvisioningReceiver";
+    public static final String ACTION_INSTALL = "com.gsamlabs.bbm.rootcompanion.action.INSTALL";
+    public static final String ACTION_VERIFY = "com.gsamlabs.bbm.rootcompanion.action.VERIFY";
+    public static final String ACTION_UNINSTALL = "com.gsamlabs.bbm.rootcompanion.action.UNINSTALL";
+    public static final String ACTION_REBOOT = "com.gsamlabs.bbm.rootcompanion.action.REBOOT";
+
+    /** boolean - reboot afterwards if the change needs it */
+    public static final String EXTRA_REBOOT = "reboot";
+    public static final String EXTRA_SUCCESS = "success";
+    public static final String EXTRA_MESSAGE = "message";
+    public static final String EXTRA_REBOOT_REQUIRED = "reboot_required";
+    public static final String EXTRA_TOTAL_MS = "total_ms";
+    /** String[] - "name=durationms" per step, with the exit code if it failed */
+    public static final String EXTRA_STEPS = "steps";
+
+    /** Non-zero, so a broadcast nobody answered doesn't read as success */
+    public static final int RESULT_SUCCESS = Activity.RESULT_OK;
+    public static final int RESULT_FAILURE = Activity.RESULT_FIRST_USER;
+    public static final int RESULT_UNKNOWN_ACTION = 2;
+    /** Still going after RESULT_WAIT_MS - check the outcome with VERIFY */
+    public static final int RESULT_RUNNING = 3;
+
+    /** Well inside the 60s background broadcast timeout */
+    private static final long RESULT_WAIT_MS = 40000;
+
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+        final PendingResult pending = goAsync();
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false, true))
+                {
+                    Log.d(TAG, "Still running after " + RESULT_WAIT_MS + "ms - finishing the broadcast");
+                    pending.setResultCode(RESULT_RUNNING);
+                    pending.setResultData("Still running - check the outcome with VERIFY");
+                    pending.finish();
+                }
+            }
+        };
+        ResultReceiver resultReceiver = new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle extras) {
+                if (finished.compareAndSet(false, true))
+                {
+                    handler.removeCallbacks(timeout);
+                    pending.setResultCode(resultCode);
+                    pending.setResultData(extras.getString(EXTRA_MESSAGE));
+                    pending.setResultExtras(extras);
+                    pending.finish();
+                }
+            }
+        };
+        Intent work = new Intent(intent).setClass(context, ProvisioningService.class)
+                .putExtra(ProvisioningService.EXTRA_RESULT_RECEIVER, resultReceiver);
+        if (context.startService(work) == null)
+        {
+            finished.set(true);
+            pending.setResultCode(RESULT_FAILURE);
+            pending.setResultData("Unable to start " + ProvisioningService.class.getSimpleName());
+            pending.finish();
+            return;
+        }
+        handler.postDelayed(timeout, RESULT_WAIT_MS);
+    }
+}
@@ -0,0 +1,95 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.util.Log;
+
+/**
+ * Does the work for the {@link ProvisioningReceiver}.  An install can take
+ * longer than a broadcast is allowed to, and a started service keeps the
+ * process alive until it's done - including the optional reboot, which is
+ * only started once the result has been handed back.
+ *
+ * Requests run one at a time, on the IntentService's worker thread.
+ */
+public class ProvisioningService extends IntentService {
+    private static final String TAG = "ProvisioningService";
+    /** The ResultReceiver the outcome is sent to */
+    static final String EXTRA_RESULT_RECEIVER = "result_receiver";
+
+    public ProvisioningService()
+    {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent)
+    {
+        String action = intent.getAction();
+        ResultReceiver resultReceiver = intent.getParcelableExtra(EXTRA_RESULT_RECEIVER);
+        SystemAppManager manager = new SystemAppManager(getApplicationContext());
+        SystemAppManager.Result result = handle(manager, action);
+        if (result == null)
+        {
+            Log.d(TAG, "Unknown action: " + action);
+            Bundle extras = new Bundle();
+            extras.putBoolean(ProvisioningReceiver.EXTRA_SUCCESS, false);
+            extras.putString(ProvisioningReceiver.EXTRA_MESSAGE, "Unknown action: " + action);
+            send(resultReceiver, ProvisioningReceiver.RESULT_UNKNOWN_ACTION, extras);
+            return;
+        }
+        send(resultReceiver, result.success ? ProvisioningReceiver.RESULT_SUCCESS : ProvisioningReceiver.RESULT_FAILURE, toBundle(result));
+        if (intent.getBooleanExtra(ProvisioningReceiver.EXTRA_REBOOT, false) && result.success && result.rebootRequired
+                && !ProvisioningReceiver.ACTION_REBOOT.equals(action))
+        {
+            manager.reboot();
+        }
+    }
+
+    /**
+     * @return The result, or null if the action isn't one of ours
+     */
+    private static SystemAppManager.Result handle(SystemAppManager manager, String action)
+    {
+        if (ProvisioningReceiver.ACTION_INSTALL.equals(action))
+        {
+            return manager.install();
+        } else if (ProvisioningReceiver.ACTION_VERIFY.equals(action))
+        {
+            return manager.verify();
+        } else if (ProvisioningReceiver.ACTION_UNINSTALL.equals(action))
+        {
+            return manager.uninstall();
+        } else if (ProvisioningReceiver.ACTION_REBOOT.equals(action))
+        {
+            return manager.reboot();
+        }
+        return null;
+    }
+
+    private static void send(ResultReceiver resultReceiver, int resultCode, Bundle extras)
+    {
+        if (resultReceiver != null)
+        {
+            resultReceiver.send(resultCode, extras);
+        }
+    }
+
+    private static Bundle toBundle(SystemAppManager.Result result)
+    {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ProvisioningReceiver.EXTRA_SUCCESS, result.success);
+        extras.putString(ProvisioningReceiver.EXTRA_MESSAGE, result.message);
+        extras.putBoolean(ProvisioningReceiver.EXTRA_REBOOT_REQUIRED, result.rebootRequired);
+        extras.putLong(ProvisioningReceiver.EXTRA_TOTAL_MS, result.totalMs);
+        String[] steps = new String[result.steps.size()];
+        for (int i = 0; i < steps.length; i++)
+        {
+            steps[i] = result.steps.get(i).toString();
+        }
+        extras.putStringArray(ProvisioningReceiver.EXTRA_STEPS, steps);
+        return extras;
+    }
+}
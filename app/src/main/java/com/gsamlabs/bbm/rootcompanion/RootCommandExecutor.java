@@ -0,0 +1,255 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stericson.RootShell.exceptions.RootDeniedException;
+import com.stericson.RootShell.execution.Command;
+import com.stericson.RootTools.RootTools;
+
+import android.util.Log;
+
+/**
+ * Runs commands in the RootTools root shell and signals completion through a
+ * future, driven by the Command's commandCompleted/commandTerminated callbacks,
+ * instead of polling isFinished() in a sleep loop.
+ *
+ * Cancelling the future terminates the command in the shell.
+ *
+ * Deadlines are enforced by RootShell itself: every Command carries a timeout
+ * (RootShell.defaultCommandTimeout unless we say otherwise), after which the
+ * shell's ExecutionMonitor terminates it - whatever the caller is prepared to
+ * wait.  So {@link #run} hands its deadline to the Command, and only waits on
+ * the future a little longer as a backstop.
+ *
+ * The deadline only starts once the command has been handed to the shell: it
+ * doesn't cover opening the shell (RootTools.getShell), which may mean
+ * starting su and waiting for the user to grant root.  That has RootShell's
+ * own open timeout, and fails with a TimeoutException.
+ */
+public class RootCommandExecutor {
+    private static final String TAG = "RootCommandExecutor";
+    /** How much longer than the command's own timeout we wait for the shell to report it */
+    private static final long SHELL_TIMEOUT_GRACE_MS = 2000;
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private RootCommandExecutor() {
+    }
+
+    /**
+     * The outcome of a command that ran to completion.
+     */
+    public static class Result {
+        public final int exitCode;
+        /** The output, one '\n' terminated line at a time - or null if it wasn't collected. */
+        public final String output;
+
+        Result(int exitCode, String output)
+        {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Told about each line of output as the shell produces it - before the
+     * command completes.  Called on the shell's thread.
+     */
+    public interface OutputListener {
+        void onLine(String line);
+    }
+
+    /**
+     * Queues the command in the root shell, which terminates it after timeoutMs.
+     * @param timeoutMs How long the shell lets the command run - must be positive
+     * @param collectOutput Whether to gather the output into the result
+     * @param listener Told about each line of output as it arrives, or null
+     * @param command The shell command(s) to run
+     * @return A future completed when the shell reports the command finished.  It
+     * fails with an IOException if the command was terminated (e.g. by the shell's timeout).
+     * @throws RootDeniedException if the user refused root
+     * @throws IOException if the shell couldn't be opened or written to
+     * @throws TimeoutException if the shell took too long to open
+     */
+    public static RootCommandFuture submit(long timeoutMs, boolean collectOutput, OutputListener listener, String... command) throws RootDeniedException, IOException, TimeoutException
+    {
+        if (timeoutMs <= 0)
+        {
+            throw new IllegalArgumentException("timeoutMs must be positive: " + timeoutMs);
+        }
+        CallbackCommand cmd = new CallbackCommand(sNextId.incrementAndGet(), collectOutput, listener, command);
+        cmd.setTimeout(timeoutMs);
+        RootCommandFuture future = new RootCommandFuture(cmd);
+        cmd.mFuture = future;
+        RootTools.getShell(true).add(cmd);
+        return future;
+    }
+
+    /**
+     * Runs the command and waits for it, up to a deadline.
+     * @param timeoutMs How long the shell lets the command run before terminating it - must be positive
+     * @param collectOutput Whether to gather the output into the result
+     * @param command The shell command(s) to run
+     * @return The result
+     * @throws RootDeniedException if the user refused root
+     * @throws IOException if the command couldn't be run or was terminated (including by the shell at the deadline)
+     * @throws TimeoutException if the shell couldn't be opened, or never reported the command's end
+     */
+    public static Result run(long timeoutMs, boolean collectOutput, String... command) throws RootDeniedException, IOException, TimeoutException
+    {
+        return run(timeoutMs, collectOutput, null, command);
+    }
+
+    /**
+     * Like {@link #run(long, boolean, String...)}, but also passes each line of
+     * output to the listener as it arrives.
+     */
+    public static Result run(long timeoutMs, boolean collectOutput, OutputListener listener, String... command) throws RootDeniedException, IOException, TimeoutException
+    {
+        RootCommandFuture future = submit(timeoutMs, collectOutput, listener, command);
+        try {
+            return future.get(timeoutMs + SHELL_TIMEOUT_GRACE_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for command");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException("Command failed: " + cause);
+        }
+    }
+
+    /**
+     * A pending root command.  Cancelling it terminates the command.
+     */
+    public static final class RootCommandFuture extends FutureTask<Result> {
+        private static final Callable<Result> NOTHING = new Callable<Result>() {
+            @Override
+            public Result call() {
+                return null;
+            }
+        };
+        private final Command mCommand;
+
+        RootCommandFuture(Command command)
+        {
+            super(NOTHING);
+            mCommand = command;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && !mCommand.isFinished())
+            {
+                mCommand.terminate();
+            }
+            return cancelled;
+        }
+
+        void complete(Result result)
+        {
+            set(result);
+        }
+
+        void fail(IOException e)
+        {
+            setException(e);
+        }
+    }
+
+    /**
+     * Command's timeout field - package private, and only settable through a
+     * constructor that would also decide whether to use a handler.
+     */
+    private static final class TimeoutFieldHolder {
+        static final Field TIMEOUT;
+
+        static
+        {
+            Field timeout = null;
+            try {
+                timeout = Command.class.getDeclaredField("timeout");
+                timeout.setAccessible(true);
+            } catch (Exception e) {
+                Log.e(TAG, "Command.timeout isn't available - commands get RootShell's default timeout", e);
+            }
+            TIMEOUT = timeout;
+        }
+    }
+
+    private static final class CallbackCommand extends Command {
+        private final StringBuilder mOutput;
+        private final OutputListener mListener;
+        volatile RootCommandFuture mFuture;
+
+        CallbackCommand(int id, boolean collectOutput, OutputListener listener, String... command)
+        {
+            // No handler - callbacks arrive on the shell's thread, so it doesn't
+            // matter whether the caller has a looper (or is blocking it).
+            super(id, false, command);
+            mOutput = collectOutput ? new StringBuilder() : null;
+            mListener = listener;
+        }
+
+        /**
+         * Must be called before the command is added to the shell - that's when
+         * its ExecutionMonitor reads the timeout.
+         */
+        void setTimeout(long timeoutMs)
+        {
+            if (TimeoutFieldHolder.TIMEOUT == null)
+            {
+                Log.w(TAG, "Command.timeout isn't available - running with RootShell's default timeout instead of " + timeoutMs + "ms");
+                return;
+            }
+            try {
+                TimeoutFieldHolder.TIMEOUT.setInt(this, (int) Math.min(timeoutMs, Integer.MAX_VALUE));
+            } catch (IllegalAccessException e) {
+                Log.e(TAG, "Unable to set the command timeout", e);
+            }
+        }
+
+        @Override
+        public void commandOutput(int id, String line)
+        {
+            if (mListener != null)
+            {
+                mListener.onLine(line);
+            }
+            if (mOutput != null)
+            {
+                mOutput.append(line).append('\n');
+            }
+            super.commandOutput(id, line);
+        }
+
+        @Override
+        public void commandCompleted(int id, int exitCode)
+        {
+            mFuture.complete(new Result(exitCode, (mOutput != null) ? mOutput.toString() : null));
+            super.commandCompleted(id, exitCode);
+        }
+
+        @Override
+        public void commandTerminated(int id, String reason)
+        {
+            mFuture.fail(new IOException("Command terminated: " + reason));
+            super.commandTerminated(id, reason);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The root side of {@link RootHelperSession}.  This is started once through su as
+ * <pre>
+ *   CLASSPATH=&lt;our apk&gt; app_process /system/bin com.gsamlabs.bbm.rootcompanion.RootHelper
+ * </pre>
+ * and then serves requests over stdin/stdout until stdin is closed.  Compared with
+ * running 'cat' through a RootTools shell for each read, the process (and su) is
+ * only paid for once, and file contents are passed back byte for byte rather than
+ * being split into lines and rebuilt.
+ *
+ * The protocol is length-prefixed binary (DataInput/DataOutput, big-endian):
+ * <pre>
+ *   helper -&gt; client, once:  int HANDSHAKE
+ *   request:                 int id, byte op, UTF path
+ *   response:                int id, byte status, int length, byte[length]
+ * </pre>
+ * For STATUS_ERROR the payload is the error message (UTF-8).  Files larger
+ * than ProcFileReader.MAX_FILE_SIZE aren't sent - they fail with an EFBIG
+ * error instead.
+ *
+ * This must not use any android classes - it runs outside of an app process.
+ */
+public class RootHelper {
+    public static final int HANDSHAKE = 0x4753414D; // 'GSAM'
+
+    public static final byte OP_READ_FILE = 1;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private static final int INITIAL_BUFFER_SIZE = 32768;
+
+    public static void main(String[] args)
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), INITIAL_BUFFER_SIZE));
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        try {
+            out.writeInt(HANDSHAKE);
+            out.flush();
+            while (true)
+            {
+                int id;
+                try {
+                    id = in.readInt();
+                } catch (EOFException e) {
+                    // Client went away - we're done.
+                    break;
+                }
+                byte op = in.readByte();
+                String path = in.readUTF();
+
+                byte status = STATUS_OK;
+                int len = 0;
+                if (op == OP_READ_FILE)
+                {
+                    try {
+                        FileInputStream is = new FileInputStream(path);
+                        try {
+                            int read;
+                            while ((read = is.read(buffer, len, buffer.length - len)) > 0)
+                            {
+                                len += read;
+                                if (len == buffer.length)
+                                {
+                                    if (buffer.length >= ProcFileReader.MAX_FILE_SIZE)
+                                    {
+                                        if (is.read() >= 0)
+                                        {
+                                            throw new FileTooLargeException();
+                                        }
+                                        break;
+                                    }
+                                    buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, ProcFileReader.MAX_FILE_SIZE));
+                                }
+                            }
+                        } finally
+                        {
+                            is.close();
+                        }
+                    } catch (IOException e) {
+                        status = STATUS_ERROR;
+                        byte[] msg = String.valueOf(e.getMessage()).getBytes("UTF-8");
+                        buffer = (msg.length > buffer.length) ? msg : buffer;
+                        System.arraycopy(msg, 0, buffer, 0, msg.length);
+                        len = msg.length;
+                    }
+                } else
+                {
+                    status = STATUS_ERROR;
+                    byte[] msg = ("Unknown op: " + op).getBytes("UTF-8");
+                    System.arraycopy(msg, 0, buffer, 0, msg.length);
+                    len = msg.length;
+                }
+
+                out.writeInt(id);
+                out.writeByte(status);
+                out.writeInt(len);
+                out.write(buffer, 0, len);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Nowhere to report this - the client will see the pipe close.
+        }
+        System.exit(0);
+    }
+
+    private static class FileTooLargeException extends IOException {
+        private static final long serialVersionUID = 6393540520497460811L;
+        FileTooLargeException()
+        {
+            super("EFBIG (File too large): over " + ProcFileReader.MAX_FILE_SIZE + " bytes");
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A long-lived connection to a {@link RootHelper} process running as root.  This
+ * is used to read files SELinux won't let us read directly, without paying for a
+ * shell command (and line-by-line output handling) on every call.
+ *
+ * Requests are tagged with an id and may be issued from any number of threads;
+ * a single reader thread matches responses back up by id and completes the
+ * caller's future.  The helper is started lazily, and restarted on the next
+ * request if it dies.  Starting it (su, then the handshake) can take seconds,
+ * so it happens on a thread of its own without holding the lock: requests
+ * that come in meanwhile wait for it only as long as their own timeout allows,
+ * then fail so the caller can fall back to the RootTools path.  If it can't be
+ * started at all (root denied, no app_process), we back off for a while so
+ * callers fall back straight away.
+ */
+public class RootHelperSession {
+    private static final String TAG = "RootHelperSession";
+    private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final long START_RETRY_BACKOFF_MS = 60000;
+
+    /**
+     * The helper was reachable, but it couldn't read the file.
+     */
+    public static class ReadFailedException extends IOException {
+        private static final long serialVersionUID = -4046327946658342541L;
+        public ReadFailedException(String msg)
+        {
+            super(msg);
+        }
+    }
+
+    private final String mApkPath;
+    private final Object mLock = new Object();
+    private final ConcurrentHashMap<Integer, PendingRead> mPending = new ConcurrentHashMap<Integer, PendingRead>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+
+    private Process mProcess;
+    private DataOutputStream mOut;
+    /** Counted down when the start in progress is done, either way - null if none is */
+    private CountDownLatch mStarting;
+    /** Set by stop() while a start is in progress, so its helper is shut down */
+    private boolean mStartCancelled;
+    private long mLastStartFailure = -START_RETRY_BACKOFF_MS;
+
+    /**
+     * @param apkPath Path to our own APK - the helper class is loaded from it.
+     */
+    public RootHelperSession(String apkPath)
+    {
+        mApkPath = apkPath;
+    }
+
+    /**
+     * Reads the whole file as root.
+     * @param path The file to read
+     * @param timeoutMs How long to wait for the result
+     * @return The raw file content
+     * @throws ReadFailedException if the helper couldn't read the file
+     * @throws IOException if the helper isn't available or timed out
+     */
+    public byte[] readFile(String path, long timeoutMs) throws IOException
+    {
+        String[] errors = new String[1];
+        byte[] content = readFiles(new String[]{path}, timeoutMs, errors)[0];
+        if (errors[0] != null)
+        {
+            throw new ReadFailedException(errors[0]);
+        }
+        return content;
+    }
+
+    /**
+     * Reads several files as root.  All the requests are sent together, and the
+     * helper answers them back to back.
+     * @param paths The files to read
+     * @param timeoutMs How long to wait for all of the results
+     * @param errors For each file the helper couldn't read, the reason is stored
+     * here (and the content is null).  Must be at least as long as paths.
+     * @return The raw file contents, in the same order as paths
+     * @throws IOException if the helper isn't available or timed out
+     */
+    public byte[][] readFiles(String[] paths, long timeoutMs, String[] errors) throws IOException
+    {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        int[] ids = new int[paths.length];
+        PendingRead[] pending = new PendingRead[paths.length];
+        for (int i = 0; i < paths.length; i++)
+        {
+            ids[i] = mNextId.incrementAndGet();
+            pending[i] = new PendingRead();
+            mPending.put(ids[i], pending[i]);
+        }
+        try {
+            send(ids, paths, deadline);
+            byte[][] results = new byte[paths.length][];
+            for (int i = 0; i < paths.length; i++)
+            {
+                try {
+                    results[i] = pending[i].get(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof ReadFailedException)
+                    {
+                        errors[i] = cause.getMessage();
+                    } else if (cause instanceof IOException)
+                    {
+                        throw (IOException) cause;
+                    } else
+                    {
+                        throw new IOException("Root helper failed: " + cause);
+                    }
+                } catch (TimeoutException e) {
+                    // The helper serves requests in order - if it's stuck, nothing
+                    // queued behind this will complete either.  Start over.
+                    stop();
+                    throw new IOException("Timed out reading " + paths[i] + " through root helper");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted reading " + paths[i] + " through root helper");
+                }
+            }
+            return results;
+        } finally
+        {
+            for (int id : ids)
+            {
+                mPending.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Sends the requests once the helper is running, starting it if need be.
+     * @throws IOException if it can't be started, or isn't running by the deadline
+     */
+    private void send(int[] ids, String[] paths, long deadline) throws IOException
+    {
+        while (true)
+        {
+            CountDownLatch starting;
+            synchronized (mLock)
+            {
+                if (mProcess != null)
+                {
+                    try {
+                        for (int i = 0; i < paths.length; i++)
+                        {
+                            mOut.writeInt(ids[i]);
+                            mOut.writeByte(RootHelper.OP_READ_FILE);
+                            mOut.writeUTF(paths[i]);
+                        }
+                        mOut.flush();
+                    } catch (IOException e) {
+                        stopLocked();
+                        throw e;
+                    }
+                    return;
+                }
+                starting = startLocked();
+            }
+            try {
+                if (!starting.await(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS))
+                {
+                    throw new IOException("Root helper is still starting");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for root helper to start");
+            }
+        }
+    }
+
+    /**
+     * Shuts down the helper process (if running).  Any outstanding requests
+     * fail, and a helper that's still starting is shut down once it has.
+     */
+    public void stop()
+    {
+        synchronized (mLock)
+        {
+            stopLocked();
+        }
+    }
+
+    private void stopLocked()
+    {
+        mStartCancelled = mStarting != null;
+        if (mProcess != null)
+        {
+            mProcess.destroy();
+            mProcess = null;
+            mOut = null;
+        }
+        failAll(new IOException("Root helper stopped"));
+    }
+
+    private void failAll(IOException e)
+    {
+        Iterator<PendingRead> it = mPending.values().iterator();
+        while (it.hasNext())
+        {
+            it.next().fail(e);
+        }
+    }
+
+    /**
+     * Kicks off a start if there isn't one in progress already.
+     * @return Counted down once the start is done, either way
+     * @throws IOException if we're backing off after a failed start
+     */
+    private CountDownLatch startLocked() throws IOException
+    {
+        if (mStarting != null)
+        {
+            return mStarting;
+        }
+        if (SystemClock.elapsedRealtime() - mLastStartFailure < START_RETRY_BACKOFF_MS)
+        {
+            throw new IOException("Root helper unavailable");
+        }
+        mStarting = new CountDownLatch(1);
+        mStartCancelled = false;
+        Thread starter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        }, "RootHelperStarter");
+        starter.setDaemon(true);
+        starter.start();
+        return mStarting;
+    }
+
+    /**
+     * Runs on the starter thread: starts the helper and waits for its
+     * handshake, then publishes it (or the failure) under the lock.
+     */
+    private void start()
+    {
+        Process process = null;
+        DataOutputStream out = null;
+        ResponseReader responseReader = null;
+        try {
+            process = Runtime.getRuntime().exec("su");
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            CountDownLatch handshake = new CountDownLatch(1);
+            out.write(("export CLASSPATH='" + mApkPath + "'\n"
+                    + "exec app_process /system/bin " + RootHelper.class.getName() + " 2>/dev/null\n").getBytes("UTF-8"));
+            out.flush();
+            responseReader = new ResponseReader(process, in, handshake);
+            Thread reader = new Thread(responseReader, "RootHelperReader");
+            reader.setDaemon(true);
+            reader.start();
+            if (!handshake.await(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS) || !responseReader.mConnected)
+            {
+                throw new IOException("Root helper didn't start");
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted starting root helper");
+            responseReader = null;
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to start root helper: " + e.getMessage());
+            responseReader = null;
+        }
+        synchronized (mLock)
+        {
+            // The reader clears mConnected before it takes the lock, so if it's
+            // still set here the reader will find this process in mProcess when
+            // the helper exits.
+            boolean started = responseReader != null && responseReader.mConnected && !mStartCancelled;
+            if (started)
+            {
+                mProcess = process;
+                mOut = out;
+            } else
+            {
+                if (process != null)
+                {
+                    process.destroy();
+                }
+                if (!mStartCancelled)
+                {
+                    mLastStartFailure = SystemClock.elapsedRealtime();
+                }
+            }
+            mStartCancelled = false;
+            mStarting.countDown();
+            mStarting = null;
+        }
+    }
+
+    /**
+     * Reads responses off the helper's stdout and hands them to whoever's waiting.
+     */
+    private class ResponseReader implements Runnable {
+        private final Process mReaderProcess;
+        private final DataInputStream mIn;
+        private final CountDownLatch mHandshake;
+        volatile boolean mConnected = false;
+
+        ResponseReader(Process process, DataInputStream in, CountDownLatch handshake)
+        {
+            mReaderProcess = process;
+            mIn = in;
+            mHandshake = handshake;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                if (mIn.readInt() != RootHelper.HANDSHAKE)
+                {
+                    throw new IOException("Unexpected handshake from root helper");
+                }
+                mConnected = true;
+                mHandshake.countDown();
+                while (true)
+                {
+                    int id = mIn.readInt();
+                    byte status = mIn.readByte();
+                    int len = mIn.readInt();
+                    if (len < 0 || len > ProcFileReader.MAX_FILE_SIZE)
+                    {
+                        // The helper never sends more - we've lost our place in the stream
+                        throw new IOException("Bad response length from root helper: " + len);
+                    }
+                    byte[] data = new byte[len];
+                    mIn.readFully(data);
+                    PendingRead pending = mPending.get(id);
+                    if (pending == null)
+                    {
+                        // Caller gave up already
+                        continue;
+                    }
+                    if (status == RootHelper.STATUS_OK)
+                    {
+                        pending.complete(data);
+                    } else
+                    {
+                        pending.fail(new ReadFailedException(new String(data, "UTF-8")));
+                    }
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Root helper connection closed: " + e.getMessage());
+            }
+            mConnected = false;
+            mReaderProcess.destroy();
+            // Let a waiting starter know right away rather than after the timeout
+            mHandshake.countDown();
+            synchronized (mLock)
+            {
+                if (mProcess == mReaderProcess)
+                {
+                    mProcess = null;
+                    mOut = null;
+                    failAll(new IOException("Root helper exited"));
+                }
+            }
+        }
+    }
+
+    /**
+     * A request in flight - completed by the reader thread.
+     */
+    private static final class PendingRead extends FutureTask<byte[]> {
+        private static final Callable<byte[]> NOTHING = new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return null;
+            }
+        };
+
+        PendingRead()
+        {
+            super(NOTHING);
+        }
+
+        void complete(byte[] data)
+        {
+            set(data);
+        }
+
+        void fail(IOException e)
+        {
+            setException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.stericson.RootShell.exceptions.RootDeniedException;
+
+import android.util.Log;
+
+/**
+ * Reads files by cat'ing them in a root shell - the fallback when the root
+ * helper can't be started.  Each read is a su process, so only a few are
+ * allowed to run at once; a read that can't get a turn within the timeout
+ * fails with STATUS_ROOT_FAILED rather than starting another.  The timeout
+ * covers the whole call - waiting for a turn and reading every file - however
+ * many files there are, though not opening the root shell if it isn't open
+ * yet (see {@link RootCommandExecutor}).
+ */
+class RootShellFileReader {
+    private static final String TAG = "RootShellFileReader";
+
+    /** Runs a shell command as root and returns everything it printed. */
+    interface Shell {
+        String run(long timeoutMs, String command) throws Exception;
+    }
+
+    static final Shell ROOT_SHELL = new Shell() {
+        @Override
+        public String run(long timeoutMs, String command) throws Exception {
+            return RootCommandExecutor.run(timeoutMs, true, command).output;
+        }
+    };
+
+    private final Semaphore mPermits;
+    private final long mTimeoutMs;
+    private final Shell mShell;
+
+    /**
+     * @param maxConcurrent How many root shells may be running at once
+     * @param timeoutMs How long a read may take altogether
+     */
+    RootShellFileReader(int maxConcurrent, long timeoutMs)
+    {
+        this(maxConcurrent, timeoutMs, ROOT_SHELL);
+    }
+
+    RootShellFileReader(int maxConcurrent, long timeoutMs, Shell shell)
+    {
+        mPermits = new Semaphore(maxConcurrent, true);
+        mTimeoutMs = timeoutMs;
+        mShell = shell;
+    }
+
+    /**
+     * @return For each file, the result of reading it (without a duration)
+     */
+    ProcFileResult[] read(String[] fileNames)
+    {
+        ProcFileResult[] results = new ProcFileResult[fileNames.length];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeoutMs);
+        try {
+            if (!mPermits.tryAcquire(mTimeoutMs, TimeUnit.MILLISECONDS))
+            {
+                Log.d(TAG, "Unable to read files. Too many root shell reads in progress.");
+                fillRootFailures(results, ProcFileResult.STATUS_ROOT_FAILED, "Too many root shell reads in progress");
+                return results;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fillRootFailures(results, ProcFileResult.STATUS_ROOT_FAILED, "Interrupted");
+            return results;
+        }
+        try {
+            // At least 1ms - RootCommandExecutor won't take a timeout of 0
+            long remainingMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            String output = mShell.run(remainingMs, ShellCatCommand.build(fileNames));
+            String[] errors = new String[fileNames.length];
+            byte[][] contents = ShellCatCommand.parseOutput(output, fileNames.length, errors);
+            for (int i = 0; i < fileNames.length; i++)
+            {
+                if (errors[i] == null)
+                {
+                    results[i] = ProcFileResult.success(ProcFileResult.SOURCE_ROOT_SHELL, ProcFileReader.truncateAtNul(contents[i]));
+                    continue;
+                }
+                Log.d(TAG, "Unable to read file: "+fileNames[i]+". "+errors[i]);
+                if (contents[i].length == 1)
+                {
+                    // No output at all for this file - the shell gave up on us
+                    results[i] = ProcFileResult.rootFailure(ProcFileResult.STATUS_ROOT_FAILED, errors[i]);
+                } else
+                {
+                    results[i] = ProcFileResult.failure(ProcFileResult.SOURCE_ROOT_SHELL, errors[i]);
+                }
+            }
+        } catch (RootDeniedException e) {
+            Log.d(TAG, "Unable to read files. Root denied.");
+            fillRootFailures(results, ProcFileResult.STATUS_ROOT_DENIED, "Root denied");
+        } catch (Exception e) {
+            Log.d(TAG, "Unable to read files. "+e.getMessage());
+            fillRootFailures(results, ProcFileResult.STATUS_ROOT_FAILED, String.valueOf(e.getMessage()));
+        } finally
+        {
+            mPermits.release();
+        }
+        return results;
+    }
+
+    /**
+     * A separate result per file - callers fill in each one's duration, and
+     * the strategies keep them.
+     */
+    private static void fillRootFailures(ProcFileResult[] results, int status, String message) {
+        for (int i = 0; i < results.length; i++)
+        {
+            results[i] = ProcFileResult.rootFailure(status, message);
+        }
+    }
+}
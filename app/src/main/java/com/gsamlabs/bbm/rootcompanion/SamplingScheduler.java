@@ -0,0 +1,279 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.PrintWriter;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs a periodic sampling task at an interval that adapts to what the device
+ * is doing, so our own sampling costs as little battery as possible:
+ *
+ *  - on the charger we sample at the requested (base) interval - power is free
+ *  - on battery with the screen off, the interval is SCREEN_OFF_FACTOR times longer
+ *  - on battery, each sample that finds nothing changed doubles the interval
+ *    (up to MAX_BACKOFF times), and the first one that does resets it
+ *
+ * Samples are scheduled with non-wakeup windowed alarms (ELAPSED_REALTIME
+ * with setWindow), so we never wake the device ourselves - a sample due while
+ * it's asleep happens at its next wakeup - and the window lets the system
+ * batch us with other alarms.  With no base interval set nothing runs at all:
+ * no alarm, and no receivers registered.
+ *
+ * We account for the time spent in the task (wall and thread CPU time), so
+ * our overhead can be checked against the time sampling was active.
+ */
+public class SamplingScheduler {
+    private static final String TAG = "SamplingScheduler";
+    public static final int SCREEN_OFF_FACTOR = 4;
+    public static final int MAX_BACKOFF = 8;
+    /** The longest interval we'll back off to - unless the base interval is longer still */
+    public static final long MAX_INTERVAL_MS = 30 * 60 * 1000;
+
+    /** The sampling work. */
+    public interface Task {
+        /** @return Whether anything changed since the last sample */
+        boolean run();
+    }
+
+    private final Context mContext;
+    private final Task mTask;
+    private final Handler mHandler;
+    private final String mAlarmAction;
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+
+    // Guarded by 'this'
+    private long mBaseIntervalMs = 0;
+    private boolean mCharging;
+    private boolean mScreenOn;
+    private int mBackoff = 1;
+    private long mLastRun;
+    private long mNextDue;
+    private long mActiveSince;
+    private long mActiveTimeMs;
+    private long mRuns;
+    private long mWakeTimeNs;
+    private long mCpuTimeMs;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (mAlarmAction.equals(action))
+            {
+                runIfDue();
+                return;
+            }
+            synchronized (SamplingScheduler.this)
+            {
+                if (Intent.ACTION_SCREEN_ON.equals(action) || Intent.ACTION_SCREEN_OFF.equals(action))
+                {
+                    mScreenOn = Intent.ACTION_SCREEN_ON.equals(action);
+                } else if (Intent.ACTION_POWER_CONNECTED.equals(action) || Intent.ACTION_POWER_DISCONNECTED.equals(action))
+                {
+                    mCharging = Intent.ACTION_POWER_CONNECTED.equals(action);
+                } else
+                {
+                    return;
+                }
+                if (mBaseIntervalMs > 0)
+                {
+                    // Pull the next sample in (or push it out) to suit the new state.
+                    scheduleLocked(mLastRun + intervalLocked());
+                }
+            }
+        }
+    };
+
+    private final Runnable mRunNow = new Runnable() {
+        @Override
+        public void run() {
+            runTask();
+        }
+    };
+
+    /**
+     * @param name Distinguishes this scheduler's alarms from any others we have
+     * @param handler The thread the task (and our receivers) run on
+     */
+    public SamplingScheduler(Context context, String name, Task task, Handler handler)
+    {
+        mContext = context;
+        mTask = task;
+        mHandler = handler;
+        mAlarmAction = context.getPackageName() + ".SAMPLE_" + name;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mAlarmIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(mAlarmAction).setPackage(context.getPackageName()), 0);
+    }
+
+    /**
+     * Starts, reschedules or (with 0) pauses sampling.  The first sample after
+     * starting is taken straight away.
+     */
+    public synchronized void setBaseInterval(long intervalMs)
+    {
+        intervalMs = Math.max(0, intervalMs);
+        long now = SystemClock.elapsedRealtime();
+        if (mBaseIntervalMs == 0 && intervalMs > 0)
+        {
+            mBaseIntervalMs = intervalMs;
+            mActiveSince = now;
+            mBackoff = 1;
+            mCharging = isCharging();
+            mScreenOn = isScreenOn();
+            IntentFilter filter = new IntentFilter(mAlarmAction);
+            filter.addAction(Intent.ACTION_SCREEN_ON);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+            filter.addAction(Intent.ACTION_POWER_CONNECTED);
+            filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+            mContext.registerReceiver(mReceiver, filter, null, mHandler);
+            mHandler.post(mRunNow);
+        } else if (mBaseIntervalMs > 0 && intervalMs == 0)
+        {
+            mBaseIntervalMs = 0;
+            mActiveTimeMs += now - mActiveSince;
+            mAlarmManager.cancel(mAlarmIntent);
+            mHandler.removeCallbacks(mRunNow);
+            mContext.unregisterReceiver(mReceiver);
+        } else if (intervalMs > 0)
+        {
+            mBaseIntervalMs = intervalMs;
+            mBackoff = 1;
+            scheduleLocked(mLastRun + intervalLocked());
+        }
+    }
+
+    public synchronized long getBaseInterval()
+    {
+        return mBaseIntervalMs;
+    }
+
+    /**
+     * @return The interval we're actually sampling at right now (0 if paused)
+     */
+    public synchronized long getCurrentInterval()
+    {
+        return (mBaseIntervalMs == 0) ? 0 : intervalLocked();
+    }
+
+    /**
+     * @return base interval (ms), current interval (ms), samples taken, wall time
+     * spent sampling (us), thread CPU time spent sampling (ms), total time sampling
+     * was active (ms), whether charging (0/1), whether the screen is on (0/1) and
+     * the current backoff factor, in that order.
+     */
+    public synchronized long[] getStats()
+    {
+        long activeTimeMs = mActiveTimeMs;
+        if (mBaseIntervalMs > 0)
+        {
+            activeTimeMs += SystemClock.elapsedRealtime() - mActiveSince;
+        }
+        return new long[]{mBaseIntervalMs, getCurrentInterval(), mRuns, mWakeTimeNs / 1000, mCpuTimeMs,
+                activeTimeMs, mCharging ? 1 : 0, mScreenOn ? 1 : 0, mBackoff};
+    }
+
+    public void dump(PrintWriter pw, String label)
+    {
+        long[] stats = getStats();
+        pw.println(label + " sampling: base " + stats[0] + "ms, current " + stats[1] + "ms (backoff x" + stats[8]
+                + (stats[6] != 0 ? ", charging" : "") + (stats[7] != 0 ? ", screen on" : "") + ")");
+        pw.println("  " + stats[2] + " samples, " + (stats[3] / 1000) + "ms awake (" + stats[4] + "ms cpu) over "
+                + (stats[5] / 1000) + "s active - " + ((stats[5] == 0) ? 0 : stats[3] * 1000 / stats[5]) + "ppm");
+    }
+
+    public void stop()
+    {
+        setBaseInterval(0);
+    }
+
+    private void runIfDue()
+    {
+        synchronized (this)
+        {
+            // Alarms never fire early - so anything else is a stray broadcast of our action.
+            if (mBaseIntervalMs == 0 || SystemClock.elapsedRealtime() < mNextDue)
+            {
+                return;
+            }
+        }
+        runTask();
+    }
+
+    private void runTask()
+    {
+        long start = SystemClock.elapsedRealtimeNanos();
+        long cpuStart = SystemClock.currentThreadTimeMillis();
+        boolean changed;
+        try {
+            changed = mTask.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Sampling failed", e);
+            changed = false;
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        long cpu = SystemClock.currentThreadTimeMillis() - cpuStart;
+        synchronized (this)
+        {
+            mRuns++;
+            mWakeTimeNs += elapsed;
+            mCpuTimeMs += cpu;
+            if (mBaseIntervalMs == 0)
+            {
+                return;
+            }
+            mBackoff = changed ? 1 : Math.min(mBackoff * 2, MAX_BACKOFF);
+            mLastRun = SystemClock.elapsedRealtime();
+            scheduleLocked(mLastRun + intervalLocked());
+        }
+    }
+
+    private long intervalLocked()
+    {
+        if (mCharging)
+        {
+            return mBaseIntervalMs;
+        }
+        long interval = mBaseIntervalMs * mBackoff * (mScreenOn ? 1 : SCREEN_OFF_FACTOR);
+        return Math.min(interval, Math.max(mBaseIntervalMs, MAX_INTERVAL_MS));
+    }
+
+    private void scheduleLocked(long due)
+    {
+        long now = SystemClock.elapsedRealtime();
+        mNextDue = Math.max(due, now);
+        long interval = intervalLocked();
+        // On the charger be punctual; otherwise give the system room to batch us.
+        long window = mCharging ? interval / 10 : interval / 2;
+        mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME, mNextDue, window, mAlarmIntent);
+    }
+
+    private boolean isCharging()
+    {
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isScreenOn()
+    {
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH)
+        {
+            return powerManager.isInteractive();
+        }
+        return powerManager.isScreenOn();
+    }
+}
@@ -0,0 +1,192 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-method counters and latency histograms for the service, so when a
+ * client is slow we can see whether the time goes into system_server, the
+ * root fallback or simply the size of what we send back.
+ *
+ * Methods are identified by the int constants below rather than by name, so
+ * recording is a handful of atomic updates with no allocation or locking.
+ * Latency is recorded in microseconds.
+ */
+public class ServiceMetrics {
+    public static final int GET_STATISTICS = 0;
+    public static final int GET_STATISTICS_COMPRESSED = 1;
+    public static final int GET_STATISTICS_DELTA = 2;
+    public static final int GET_STATISTICS_FD = 3;
+    public static final int READ_PROC_FILE = 4;
+    public static final int READ_PROC_FILES = 5;
+    public static final int READ_PROC_FILE_CHUNK = 6;
+    public static final int GET_WAKEUP_SOURCES = 7;
+    public static final int GET_STORED_SNAPSHOT = 8;
+    public static final int READ_PROC_FILE_RESULT = 9;
+    public static final int GET_CPU_TIMES = 10;
+    public static final int GET_STATISTICS_PROJECTION = 11;
+    /** The reflective getStatistics call into system_server (cache misses only). */
+    public static final int SYSTEM_GET_STATISTICS = 12;
+    /** Reads through the root helper or root shell - counted per batch, errors per file. */
+    public static final int ROOT_READ = 13;
+
+    private static final String[] NAMES = {
+        "getStatistics", "getStatisticsCompressed", "getStatisticsDelta", "getStatisticsFd",
+        "readProcFile", "readProcFiles", "readProcFileChunk", "getWakeupSources",
+        "getStoredSnapshot", "readProcFileResult", "getCpuTimes", "getStatisticsProjection",
+        "system getStatistics", "root read",
+    };
+
+    private static final class MethodMetrics {
+        final AtomicLong mCalls = new AtomicLong();
+        final AtomicLong mBytes = new AtomicLong();
+        final AtomicLong mRootDenied = new AtomicLong();
+        final AtomicLong mErrors = new AtomicLong();
+        final AtomicLong mExceptions = new AtomicLong();
+        final LatencyHistogram mLatency = new LatencyHistogram();
+    }
+
+    private final MethodMetrics[] mMethods = new MethodMetrics[NAMES.length];
+    private final long mStartTime = System.currentTimeMillis();
+
+    public ServiceMetrics()
+    {
+        for (int i = 0; i < mMethods.length; i++)
+        {
+            mMethods[i] = new MethodMetrics();
+        }
+    }
+
+    /**
+     * Records a call that returned a byte[] - classifying the 'R'/'E' results
+     * readProcFile uses for errors.
+     * @param startNanos System.nanoTime() when the call started
+     * @param result What was returned, or null if the call threw
+     */
+    public void record(int method, long startNanos, byte[] result)
+    {
+        record(method, startNanos, (result == null) ? 0 : result.length, result == null);
+        if (result != null)
+        {
+            countResult(method, result);
+        }
+    }
+
+    /**
+     * Records a call.
+     * @param startNanos System.nanoTime() when the call started
+     * @param bytes How much was returned
+     * @param threw Whether the call failed with an exception
+     */
+    public void record(int method, long startNanos, long bytes, boolean threw)
+    {
+        MethodMetrics metrics = mMethods[method];
+        metrics.mLatency.record((System.nanoTime() - startNanos) / 1000);
+        metrics.mCalls.incrementAndGet();
+        metrics.mBytes.addAndGet(bytes);
+        if (threw)
+        {
+            metrics.mExceptions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts an 'R' (root denied) or 'E' (error) result against the method, without
+     * recording a call - for calls that return several results.
+     */
+    public void countResult(int method, byte[] result)
+    {
+        if (result.length == 1 && result[0] == 'R')
+        {
+            mMethods[method].mRootDenied.incrementAndGet();
+        } else if ((result.length == 1 || result.length == 2) && result[0] == 'E')
+        {
+            mMethods[method].mErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a ProcFileResult status against the method, without recording a call.
+     */
+    public void countStatus(int method, int status)
+    {
+        if (status == ProcFileResult.STATUS_ROOT_DENIED)
+        {
+            mMethods[method].mRootDenied.incrementAndGet();
+        } else if (status != ProcFileResult.STATUS_OK)
+        {
+            mMethods[method].mErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param bindingStats BatteryStatsBinding.getStats()
+     * @param cacheStats StatisticsCache.getStats()
+     */
+    public ServiceMetricsSnapshot snapshot(long[] bindingStats, long[] cacheStats)
+    {
+        ServiceMetricsSnapshot snapshot = new ServiceMetricsSnapshot();
+        int count = mMethods.length;
+        snapshot.startTime = mStartTime;
+        snapshot.methodNames = NAMES.clone();
+        snapshot.calls = new long[count];
+        snapshot.bytes = new long[count];
+        snapshot.rootDenied = new long[count];
+        snapshot.errors = new long[count];
+        snapshot.exceptions = new long[count];
+        snapshot.totalTimeUs = new long[count];
+        snapshot.p50Us = new long[count];
+        snapshot.p90Us = new long[count];
+        snapshot.p99Us = new long[count];
+        snapshot.maxUs = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            MethodMetrics metrics = mMethods[i];
+            snapshot.calls[i] = metrics.mCalls.get();
+            snapshot.bytes[i] = metrics.mBytes.get();
+            snapshot.rootDenied[i] = metrics.mRootDenied.get();
+            snapshot.errors[i] = metrics.mErrors.get();
+            snapshot.exceptions[i] = metrics.mExceptions.get();
+            snapshot.totalTimeUs[i] = metrics.mLatency.getTotal();
+            snapshot.p50Us[i] = metrics.mLatency.getPercentile(0.50);
+            snapshot.p90Us[i] = metrics.mLatency.getPercentile(0.90);
+            snapshot.p99Us[i] = metrics.mLatency.getPercentile(0.99);
+            snapshot.maxUs[i] = metrics.mLatency.getMax();
+        }
+        snapshot.bindingStats = bindingStats;
+        snapshot.cacheStats = cacheStats;
+        return snapshot;
+    }
+
+    /**
+     * Writes the metrics in human readable form - for dumpsys.
+     */
+    public static void dump(ServiceMetricsSnapshot snapshot, PrintWriter pw)
+    {
+        pw.println("Service metrics since " + new java.util.Date(snapshot.startTime) + " (latency in us):");
+        for (int i = 0; i < snapshot.methodNames.length; i++)
+        {
+            if (snapshot.calls[i] == 0)
+            {
+                continue;
+            }
+            pw.println("  " + snapshot.methodNames[i] + ": calls=" + snapshot.calls[i]
+                    + " bytes=" + snapshot.bytes[i]
+                    + " rootDenied=" + snapshot.rootDenied[i]
+                    + " errors=" + snapshot.errors[i]
+                    + " exceptions=" + snapshot.exceptions[i]
+                    + " mean=" + (snapshot.totalTimeUs[i] / snapshot.calls[i])
+                    + " p50=" + snapshot.p50Us[i]
+                    + " p90=" + snapshot.p90Us[i]
+                    + " p99=" + snapshot.p99Us[i]
+                    + " max=" + snapshot.maxUs[i]);
+        }
+        long[] binding = snapshot.bindingStats;
+        pw.println("  battery stats binding: binds=" + binding[0] + " bindTime=" + (binding[1] / 1000)
+                + " deaths=" + binding[2] + " invokes=" + binding[3] + " invokeTime=" + (binding[4] / 1000)
+                + " maxInvoke=" + (binding[5] / 1000));
+        long[] cache = snapshot.cacheStats;
+        pw.println("  statistics cache: hits=" + cache[0] + " misses=" + cache[1] + " coalesced=" + cache[2]
+                + " ttlMs=" + cache[3]);
+    }
+}
@@ -0,0 +1,94 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The service's metrics (see {@link ServiceMetrics}) at a point in time.  The
+ * per-method values are parallel arrays indexed like methodNames; latencies
+ * are in microseconds and percentiles are accurate to within 12.5%.
+ */
+public class ServiceMetricsSnapshot implements Parcelable {
+    /** When the service started recording (System.currentTimeMillis) */
+    public long startTime;
+    public String[] methodNames;
+    public long[] calls;
+    /** Total bytes returned */
+    public long[] bytes;
+    /** 'R' results - root was denied */
+    public long[] rootDenied;
+    /** 'E' results - the file couldn't be read */
+    public long[] errors;
+    /** Calls that failed with an exception */
+    public long[] exceptions;
+    public long[] totalTimeUs;
+    public long[] p50Us;
+    public long[] p90Us;
+    public long[] p99Us;
+    public long[] maxUs;
+    /** As BatteryStatsBinding.getStats: binds, bind ns, deaths, invokes, invoke ns, max invoke ns */
+    public long[] bindingStats;
+    /** As getStatisticsCacheStats: hits, misses, coalesced, TTL ms */
+    public long[] cacheStats;
+
+    public ServiceMetricsSnapshot()
+    {
+    }
+
+    private ServiceMetricsSnapshot(Parcel in)
+    {
+        startTime = in.readLong();
+        methodNames = in.createStringArray();
+        calls = in.createLongArray();
+        bytes = in.createLongArray();
+        rootDenied = in.createLongArray();
+        errors = in.createLongArray();
+        exceptions = in.createLongArray();
+        totalTimeUs = in.createLongArray();
+        p50Us = in.createLongArray();
+        p90Us = in.createLongArray();
+        p99Us = in.createLongArray();
+        maxUs = in.createLongArray();
+        bindingStats = in.createLongArray();
+        cacheStats = in.createLongArray();
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeLong(startTime);
+        dest.writeStringArray(methodNames);
+        dest.writeLongArray(calls);
+        dest.writeLongArray(bytes);
+        dest.writeLongArray(rootDenied);
+        dest.writeLongArray(errors);
+        dest.writeLongArray(exceptions);
+        dest.writeLongArray(totalTimeUs);
+        dest.writeLongArray(p50Us);
+        dest.writeLongArray(p90Us);
+        dest.writeLongArray(p99Us);
+        dest.writeLongArray(maxUs);
+        dest.writeLongArray(bindingStats);
+        dest.writeLongArray(cacheStats);
+    }
+
+    public static final Parcelable.Creator<ServiceMetricsSnapshot> CREATOR = new Parcelable.Creator<ServiceMetricsSnapshot>() {
+        @Override
+        public ServiceMetricsSnapshot createFromParcel(Parcel in)
+        {
+            return new ServiceMetricsSnapshot(in);
+        }
+
+        @Override
+        public ServiceMetricsSnapshot[] newArray(int size)
+        {
+            return new ServiceMetricsSnapshot[size];
+        }
+    };
+}
@@ -0,0 +1,80 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+/**
+ * Builds, and splits the output of, the single root shell command we fall
+ * back to when the root helper can't be started: one 'cat' per file, each
+ * followed by a marker line carrying cat's exit code.
+ *
+ * This class has no android dependencies.
+ */
+public final class ShellCatCommand {
+    public static final String EOF_MARKER = "@@GSAM_EOF";
+
+    private ShellCatCommand() {
+    }
+
+    /**
+     * @return The shell command that cats each file in turn
+     */
+    public static String build(String[] fileNames)
+    {
+        StringBuilder command = new StringBuilder();
+        for (String fileName : fileNames)
+        {
+            // The marker goes on its own line, with the exit code of the cat
+            command.append("cat '").append(fileName.replace("'", "'\\''")).append("'; r=$?; echo; echo \"")
+                .append(EOF_MARKER).append(" $r\"; ");
+        }
+        return command.toString();
+    }
+
+    /**
+     * Splits the command's output back into the content of each file.
+     * @param output Everything the command printed
+     * @param fileCount How many files the command was built for
+     * @param errors For each file that couldn't be read, set to a description of why
+     * @return For each file, the content, or 'E' followed by the exit code of the cat
+     * ('E' alone if its output never arrived)
+     */
+    public static byte[][] parseOutput(String output, int fileCount, String[] errors)
+    {
+        byte[][] results = new byte[fileCount][];
+        int lineStart = 0;
+        int contentStart = 0;
+        int lastLineStart = 0;
+        int file = 0;
+        while (lineStart < output.length() && file < fileCount)
+        {
+            int lineEnd = output.indexOf('\n', lineStart);
+            if (lineEnd < 0)
+            {
+                lineEnd = output.length();
+            }
+            if (output.startsWith(EOF_MARKER, lineStart))
+            {
+                // The line before the marker is the one our 'echo' ended - it's only
+                // part of the content if the file didn't end with a newline.
+                int contentEnd = (lastLineStart < lineStart && lineStart - lastLineStart == 1) ? lastLineStart : lineStart;
+                int exitCode = Integer.parseInt(output.substring(lineStart + EOF_MARKER.length(), lineEnd).trim());
+                if (exitCode != 0)
+                {
+                    errors[file] = exitCode + ": " + output.substring(contentStart, contentEnd);
+                    results[file] = new byte[]{(byte)'E', (byte)exitCode};
+                } else
+                {
+                    results[file] = output.substring(contentStart, contentEnd).getBytes();
+                }
+                file++;
+                contentStart = lineEnd + 1;
+            }
+            lastLineStart = lineStart;
+            lineStart = lineEnd + 1;
+        }
+        for (; file < fileCount; file++)
+        {
+            errors[file] = "No output.";
+            results[file] = new byte[]{(byte)'E'};
+        }
+        return results;
+    }
+}
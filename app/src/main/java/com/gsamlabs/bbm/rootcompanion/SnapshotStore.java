@@ -0,0 +1,393 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, on-disk log of timestamped snapshots, so history survives
+ * our clients being killed and the system stats being reset on unplug.
+ *
+ * The log is split into segment files (seg-&lt;sequence&gt;.log).  The newest
+ * segment is memory-mapped at its full size and appended to in place; when a
+ * record won't fit, a new segment is started and the oldest are deleted
+ * once there are more than maxSegments.  Each record is:
+ * <pre>
+ *   int magic, int length, long timestamp, int crc32(payload), byte[length] payload
+ * </pre>
+ * The magic is written last, so a record torn by a crash either has no magic
+ * or fails its CRC.  On open every segment is scanned up to the first bad
+ * record, which rebuilds the in-memory (timestamp, offset) index and makes
+ * the torn tail the next write position.  Anything left in the tail is
+ * zeroed, so everything after the last intact record is always zeroes - a
+ * shorter record written over a torn one can't leave part of it (or a record
+ * embedded in its payload) to be picked up by a later scan.
+ *
+ * Timestamps are kept non-decreasing, so range queries are a binary search
+ * per segment.  This class has no android dependencies.
+ */
+public class SnapshotStore {
+    private static final int MAGIC = 0x47534E50; // 'GSNP'
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final CRC32 mCrc = new CRC32();
+    private long mLastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Opens (creating if needed) the store, recovering from any torn writes.
+     * @param dir The directory holding the segment files
+     * @param segmentSize The size each segment is mapped at
+     * @param maxSegments How many segments to keep before deleting the oldest
+     * @throws IOException if the directory or segments can't be opened
+     */
+    public SnapshotStore(File dir, int segmentSize, int maxSegments) throws IOException
+    {
+        mDir = dir;
+        mSegmentSize = segmentSize;
+        mMaxSegments = Math.max(1, maxSegments);
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Unable to create " + dir);
+        }
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null)
+        {
+            throw new IOException("Unable to list " + dir);
+        }
+        // Zero padded sequence numbers, so name order is creation order
+        Arrays.sort(names);
+        for (String name : names)
+        {
+            Segment segment = Segment.open(new File(dir, name), mCrc);
+            if (segment.mCount == 0)
+            {
+                // Nothing intact in it (or a crash right after creating it)
+                segment.close();
+                new File(dir, name).delete();
+                continue;
+            }
+            mSegments.add(segment);
+            mLastTimestamp = Math.max(mLastTimestamp, segment.mTimestamps[segment.mCount - 1]);
+        }
+        // Only the newest segment is appended to - the rest are closed to writes.
+        for (int i = 0; i < mSegments.size() - 1; i++)
+        {
+            mSegments.get(i).seal();
+        }
+    }
+
+    /**
+     * Appends a snapshot.
+     * @param timestamp The snapshot time - raised to the previous one if the clock went backwards
+     * @param payload The snapshot
+     * @return The timestamp actually recorded
+     */
+    public synchronized long append(long timestamp, byte[] payload) throws IOException
+    {
+        timestamp = Math.max(timestamp, mLastTimestamp);
+        int recordSize = HEADER_SIZE + payload.length;
+        Segment active = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (active == null || active.mMap == null || active.mWritePos + recordSize > active.mCapacity)
+        {
+            if (active != null)
+            {
+                active.seal();
+            }
+            long sequence = (active == null) ? 0 : active.mSequence + 1;
+            active = Segment.create(new File(mDir, segmentName(sequence)), sequence, Math.max(mSegmentSize, recordSize));
+            mSegments.add(active);
+            while (mSegments.size() > mMaxSegments)
+            {
+                Segment oldest = mSegments.remove(0);
+                oldest.close();
+                oldest.mFile.delete();
+            }
+        }
+
+        MappedByteBuffer map = active.mMap;
+        int pos = active.mWritePos;
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+        map.putInt(pos + 4, payload.length);
+        map.putLong(pos + 8, timestamp);
+        map.putInt(pos + 16, (int) mCrc.getValue());
+        map.position(pos + HEADER_SIZE);
+        map.put(payload);
+        // Last, so a torn record is never mistaken for a complete one
+        map.putInt(pos, MAGIC);
+        active.addToIndex(timestamp, pos);
+        active.mWritePos = pos + recordSize;
+        mLastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * Flushes the active segment to storage.  Appends survive our process dying
+     * without this (they're in the page cache); this guards against power loss.
+     */
+    public synchronized void sync()
+    {
+        if (!mSegments.isEmpty())
+        {
+            Segment active = mSegments.get(mSegments.size() - 1);
+            if (active.mMap != null)
+            {
+                active.mMap.force();
+            }
+        }
+    }
+
+    /**
+     * @return The timestamps of all snapshots in [fromTime, toTime], oldest first.
+     */
+    public synchronized long[] getTimestamps(long fromTime, long toTime)
+    {
+        long[] result = new long[16];
+        int count = 0;
+        for (Segment segment : mSegments)
+        {
+            if (segment.mCount == 0 || segment.mTimestamps[segment.mCount - 1] < fromTime || segment.mTimestamps[0] > toTime)
+            {
+                continue;
+            }
+            for (int i = segment.firstAtOrAfter(fromTime); i < segment.mCount && segment.mTimestamps[i] <= toTime; i++)
+            {
+                if (count == result.length)
+                {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = segment.mTimestamps[i];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return The first snapshot recorded at exactly this timestamp, or null if there is none.
+     */
+    public synchronized byte[] read(long timestamp) throws IOException
+    {
+        for (Segment segment : mSegments)
+        {
+            if (segment.mCount == 0 || segment.mTimestamps[segment.mCount - 1] < timestamp || segment.mTimestamps[0] > timestamp)
+            {
+                continue;
+            }
+            int i = segment.firstAtOrAfter(timestamp);
+            if (i < segment.mCount && segment.mTimestamps[i] == timestamp)
+            {
+                return segment.readPayload(segment.mOffsets[i]);
+            }
+        }
+        return null;
+    }
+
+    public synchronized void close()
+    {
+        for (Segment segment : mSegments)
+        {
+            segment.close();
+        }
+        mSegments.clear();
+    }
+
+    private static String segmentName(long sequence)
+    {
+        return String.format("%s%016x%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+    }
+
+    private static final class Segment {
+        final File mFile;
+        final long mSequence;
+        final RandomAccessFile mRaf;
+        final FileChannel mChannel;
+        /** Only set while this is the segment being appended to. */
+        MappedByteBuffer mMap;
+        int mCapacity;
+        int mWritePos;
+        int mCount;
+        long[] mTimestamps = new long[64];
+        int[] mOffsets = new int[64];
+
+        private Segment(File file, long sequence, int capacity) throws IOException
+        {
+            mFile = file;
+            mSequence = sequence;
+            mRaf = new RandomAccessFile(file, "rw");
+            mChannel = mRaf.getChannel();
+            mCapacity = capacity;
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        static Segment create(File file, long sequence, int capacity) throws IOException
+        {
+            return new Segment(file, sequence, capacity);
+        }
+
+        /**
+         * Opens an existing segment, indexing every intact record and treating
+         * the first bad one as the end.
+         */
+        static Segment open(File file, CRC32 crc) throws IOException
+        {
+            String name = file.getName();
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+            Segment segment = new Segment(file, sequence, (int) file.length());
+            MappedByteBuffer map = segment.mMap;
+            int pos = 0;
+            byte[] payload = new byte[0];
+            while (pos + HEADER_SIZE <= segment.mCapacity && map.getInt(pos) == MAGIC)
+            {
+                int len = map.getInt(pos + 4);
+                if (len < 0 || pos + HEADER_SIZE + len > segment.mCapacity)
+                {
+                    break;
+                }
+                if (payload.length < len)
+                {
+                    payload = new byte[len];
+                }
+                map.position(pos + HEADER_SIZE);
+                map.get(payload, 0, len);
+                crc.reset();
+                crc.update(payload, 0, len);
+                if ((int) crc.getValue() != map.getInt(pos + 16))
+                {
+                    break;
+                }
+                segment.addToIndex(map.getLong(pos + 8), pos);
+                pos += HEADER_SIZE + len;
+            }
+            segment.mWritePos = pos;
+            // Clear out whatever a torn write left behind.  Its magic is written
+            // last, so it's usually zero even when the rest of the record isn't.
+            if (!isZero(map, pos, segment.mCapacity))
+            {
+                for (int i = pos; i < segment.mCapacity; i++)
+                {
+                    map.put(i, (byte) 0);
+                }
+            }
+            return segment;
+        }
+
+        private static boolean isZero(MappedByteBuffer map, int from, int to)
+        {
+            int i = from;
+            for (; i + 8 <= to; i += 8)
+            {
+                if (map.getLong(i) != 0)
+                {
+                    return false;
+                }
+            }
+            for (; i < to; i++)
+            {
+                if (map.get(i) != 0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void addToIndex(long timestamp, int offset)
+        {
+            if (mCount == mTimestamps.length)
+            {
+                mTimestamps = Arrays.copyOf(mTimestamps, mCount * 2);
+                mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            }
+            mTimestamps[mCount] = timestamp;
+            mOffsets[mCount] = offset;
+            mCount++;
+        }
+
+        int firstAtOrAfter(long timestamp)
+        {
+            int low = 0;
+            int high = mCount;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (mTimestamps[mid] < timestamp)
+                {
+                    low = mid + 1;
+                } else
+                {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        byte[] readPayload(int offset) throws IOException
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, offset);
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(4));
+            readFully(payload, offset + HEADER_SIZE);
+            return payload.array();
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                int read = mChannel.read(buffer, position);
+                if (read <= 0)
+                {
+                    throw new IOException("Unexpected end of " + mFile);
+                }
+                position += read;
+            }
+        }
+
+        /**
+         * Stops appending to this segment and trims the unused space off the file.
+         */
+        void seal()
+        {
+            if (mMap != null)
+            {
+                mMap.force();
+                mMap = null;
+                try {
+                    mChannel.truncate(mWritePos);
+                } catch (IOException e) {
+                    // Not fatal - the tail is zeroes, which recovery treats as the end
+                }
+                mCapacity = mWritePos;
+            }
+        }
+
+        void close()
+        {
+            mMap = null;
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
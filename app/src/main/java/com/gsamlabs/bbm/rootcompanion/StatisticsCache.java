@@ -0,0 +1,169 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Caches the last statistics snapshot for a (caller-configurable) TTL, and
+ * coalesces concurrent requests - if several clients ask while a load
+ * from system_server is already in flight, they all wait for that one
+ * load rather than each issuing their own.
+ */
+public class StatisticsCache {
+    /** Loads a fresh snapshot - the reflective call into system_server. */
+    public interface Loader {
+        byte[] load() throws RemoteException;
+    }
+
+    public static final long DEFAULT_TTL_MS = 1000;
+
+    private final Loader mLoader;
+    private volatile long mTtlMs = DEFAULT_TTL_MS;
+
+    private final Object mLock = new Object();
+    private byte[] mSnapshot;
+    private long mSnapshotTime;
+    private PendingLoad mPending;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    public StatisticsCache(Loader loader)
+    {
+        mLoader = loader;
+    }
+
+    /**
+     * Sets how long a snapshot may be served from the cache.  0 disables caching
+     * (concurrent requests are still coalesced).
+     */
+    public void setTtl(long ttlMs)
+    {
+        mTtlMs = Math.max(0, ttlMs);
+    }
+
+    public long getTtl()
+    {
+        return mTtlMs;
+    }
+
+    /**
+     * @return hits, misses, coalesced requests and the current TTL (in ms), in that order.
+     */
+    public long[] getStats()
+    {
+        return new long[]{mHits.get(), mMisses.get(), mCoalesced.get(), mTtlMs};
+    }
+
+    /**
+     * Drops the cached snapshot so the next request goes to system_server.
+     */
+    public void invalidate()
+    {
+        synchronized (mLock)
+        {
+            mSnapshot = null;
+        }
+    }
+
+    public byte[] get() throws RemoteException
+    {
+        PendingLoad pending;
+        boolean leader = false;
+        synchronized (mLock)
+        {
+            if (mSnapshot != null && (SystemClock.elapsedRealtime() - mSnapshotTime) < mTtlMs)
+            {
+                mHits.incrementAndGet();
+                return mSnapshot;
+            }
+            if (mPending != null)
+            {
+                mCoalesced.incrementAndGet();
+                pending = mPending;
+            } else
+            {
+                mMisses.incrementAndGet();
+                pending = new PendingLoad();
+                mPending = pending;
+                leader = true;
+            }
+        }
+
+        if (!leader)
+        {
+            return pending.await();
+        }
+
+        byte[] result = null;
+        RemoteException error = null;
+        boolean loaded = false;
+        try {
+            result = mLoader.load();
+            loaded = true;
+        } catch (RemoteException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new RemoteException("Exception loading statistics: " + e.getMessage());
+        } finally
+        {
+            // Whatever happened (even an Error, like running out of memory
+            // unmarshalling), the waiters must be released and the next caller
+            // must be able to start a load of its own.
+            if (!loaded && error == null)
+            {
+                error = new RemoteException("Statistics load failed");
+            }
+            synchronized (mLock)
+            {
+                if (result != null)
+                {
+                    mSnapshot = result;
+                    mSnapshotTime = SystemClock.elapsedRealtime();
+                }
+                mPending = null;
+            }
+            pending.complete(result, error);
+        }
+        if (error != null)
+        {
+            throw error;
+        }
+        return result;
+    }
+
+    /**
+     * A load in flight that other callers can wait on.
+     */
+    private static final class PendingLoad {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private byte[] mResult;
+        private RemoteException mError;
+
+        void complete(byte[] result, RemoteException error)
+        {
+            mResult = result;
+            mError = error;
+            mDone.countDown();
+        }
+
+        byte[] await() throws RemoteException
+        {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted waiting for statistics");
+            }
+            if (mError != null)
+            {
+                throw new RemoteException(mError.getMessage());
+            }
+            return mResult;
+        }
+    }
+}
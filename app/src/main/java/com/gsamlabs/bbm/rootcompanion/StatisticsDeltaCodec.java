@@ -0,0 +1,314 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.Arrays;
+
+/**
+ * A small, pure-java binary diff/patch codec used to ship the BatteryStatsImpl
+ * parcel as a delta against a snapshot the client already holds.  Consecutive
+ * parcels are mostly identical (counters change, the layout rarely moves), so
+ * a block-matching diff with varint encoded ops is very compact.
+ *
+ * The encoded form is:
+ * <pre>
+ *   varint targetLength
+ *   repeated:
+ *     OP_COPY   varint baseOffset varint length
+ *     OP_INSERT varint length     byte[length]
+ * </pre>
+ *
+ * This class has no android dependencies so clients can simply copy it
+ * into their own code to apply the deltas.
+ */
+public final class StatisticsDeltaCodec {
+    public static final byte OP_COPY = 0;
+    public static final byte OP_INSERT = 1;
+    /** The biggest target decode will build - the length comes from the delta, so isn't trusted */
+    public static final int MAX_TARGET_LENGTH = 32 * 1024 * 1024;
+
+    /** Size of the blocks we index in the base buffer. */
+    private static final int BLOCK_SIZE = 16;
+    /** Minimum run we'll bother encoding as a copy when re-syncing in place. */
+    private static final int MIN_INPLACE_MATCH = 8;
+    private static final int HASH_MULTIPLIER = 0x01000193;
+
+    private StatisticsDeltaCodec() {
+    }
+
+    /**
+     * Computes a delta that transforms base into target.
+     * @param base The snapshot the client already has
+     * @param target The current snapshot
+     * @return The encoded delta
+     */
+    public static byte[] encode(byte[] base, byte[] target)
+    {
+        Output out = new Output(Math.max(64, target.length / 16));
+        out.writeVarint(target.length);
+
+        int[] table = buildIndex(base);
+        int tableMask = table.length - 1;
+        int blockPow = 1;
+        for (int i = 0; i < BLOCK_SIZE - 1; i++)
+        {
+            blockPow *= HASH_MULTIPLIER;
+        }
+
+        int literalStart = 0;
+        int lastBaseEnd = 0;
+        int pos = 0;
+        int hash = 0;
+        boolean hashValid = false;
+        int limit = target.length - BLOCK_SIZE;
+
+        while (pos <= limit)
+        {
+            int matchBase = -1;
+            int matchLen = 0;
+
+            // First see whether the data simply continues where the last copy left off
+            // (the common case when a single counter changed in place).
+            int inPlace = lastBaseEnd + (pos - literalStart);
+            if (inPlace >= 0 && inPlace < base.length)
+            {
+                int len = matchLength(base, inPlace, target, pos);
+                if (len >= MIN_INPLACE_MATCH)
+                {
+                    matchBase = inPlace;
+                    matchLen = len;
+                }
+            }
+
+            if (matchBase < 0)
+            {
+                if (!hashValid)
+                {
+                    hash = hashBlock(target, pos);
+                    hashValid = true;
+                }
+                int candidate = table[mix(hash) & tableMask] - 1;
+                if (candidate >= 0)
+                {
+                    int len = matchLength(base, candidate, target, pos);
+                    if (len >= BLOCK_SIZE)
+                    {
+                        matchBase = candidate;
+                        matchLen = len;
+                    }
+                }
+            }
+
+            if (matchBase < 0)
+            {
+                // Roll the hash forward one byte
+                if (pos < limit)
+                {
+                    hash = (hash - target[pos] * blockPow) * HASH_MULTIPLIER + target[pos + BLOCK_SIZE];
+                }
+                pos++;
+                continue;
+            }
+
+            // Extend the match backwards into any pending literal bytes
+            while (pos > literalStart && matchBase > 0 && base[matchBase - 1] == target[pos - 1])
+            {
+                pos--;
+                matchBase--;
+                matchLen++;
+            }
+
+            if (pos > literalStart)
+            {
+                out.writeInsert(target, literalStart, pos - literalStart);
+            }
+            out.write(OP_COPY);
+            out.writeVarint(matchBase);
+            out.writeVarint(matchLen);
+
+            pos += matchLen;
+            literalStart = pos;
+            lastBaseEnd = matchBase + matchLen;
+            hashValid = false;
+        }
+
+        if (target.length > literalStart)
+        {
+            out.writeInsert(target, literalStart, target.length - literalStart);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Applies a delta produced by {@link #encode(byte[], byte[])}.
+     * @param base The snapshot the delta was computed against
+     * @param delta The encoded delta
+     * @return The reconstructed target snapshot
+     * @throws IllegalArgumentException if the delta is corrupt or doesn't match the base
+     */
+    public static byte[] decode(byte[] base, byte[] delta)
+    {
+        int[] pos = new int[]{0};
+        int targetLength = readVarint(delta, pos);
+        if (targetLength < 0 || targetLength > MAX_TARGET_LENGTH)
+        {
+            throw new IllegalArgumentException("Corrupt delta: target length "+targetLength);
+        }
+        byte[] target = new byte[targetLength];
+        int written = 0;
+        while (pos[0] < delta.length)
+        {
+            byte op = delta[pos[0]++];
+            if (op == OP_COPY)
+            {
+                int offset = readVarint(delta, pos);
+                int len = readVarint(delta, pos);
+                // Written so nothing can overflow
+                if (offset < 0 || len < 0 || offset > base.length || len > base.length - offset || len > targetLength - written)
+                {
+                    throw new IllegalArgumentException("Corrupt delta: copy of "+len+" bytes from "+offset+" out of range");
+                }
+                System.arraycopy(base, offset, target, written, len);
+                written += len;
+            } else if (op == OP_INSERT)
+            {
+                int len = readVarint(delta, pos);
+                if (len < 0 || len > delta.length - pos[0] || len > targetLength - written)
+                {
+                    throw new IllegalArgumentException("Corrupt delta: insert of "+len+" bytes out of range");
+                }
+                System.arraycopy(delta, pos[0], target, written, len);
+                pos[0] += len;
+                written += len;
+            } else
+            {
+                throw new IllegalArgumentException("Corrupt delta: unknown op "+op);
+            }
+        }
+        if (written != targetLength)
+        {
+            throw new IllegalArgumentException("Corrupt delta: produced "+written+" of "+targetLength+" bytes");
+        }
+        return target;
+    }
+
+    /**
+     * Builds an open-addressed table mapping block hashes to (offset + 1) in the base.
+     * Later blocks win on collision, which is fine for our purposes.
+     */
+    private static int[] buildIndex(byte[] base)
+    {
+        int blocks = base.length / BLOCK_SIZE;
+        int size = 16;
+        while (size < blocks * 2)
+        {
+            size <<= 1;
+        }
+        int[] table = new int[size];
+        int mask = size - 1;
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE)
+        {
+            table[mix(hashBlock(base, offset)) & mask] = offset + 1;
+        }
+        return table;
+    }
+
+    private static int hashBlock(byte[] data, int offset)
+    {
+        int hash = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++)
+        {
+            hash = hash * HASH_MULTIPLIER + data[offset + i];
+        }
+        return hash;
+    }
+
+    private static int mix(int hash)
+    {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+    private static int matchLength(byte[] base, int baseOffset, byte[] target, int targetOffset)
+    {
+        int max = Math.min(base.length - baseOffset, target.length - targetOffset);
+        int len = 0;
+        while (len < max && base[baseOffset + len] == target[targetOffset + len])
+        {
+            len++;
+        }
+        return len;
+    }
+
+    private static int readVarint(byte[] data, int[] pos)
+    {
+        int result = 0;
+        int shift = 0;
+        while (true)
+        {
+            if (pos[0] >= data.length || shift > 28)
+            {
+                throw new IllegalArgumentException("Corrupt delta: truncated varint");
+            }
+            byte b = data[pos[0]++];
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Minimal growable byte buffer - avoids the synchronization in ByteArrayOutputStream.
+     */
+    private static final class Output {
+        private byte[] buf;
+        private int count;
+
+        Output(int initialSize)
+        {
+            buf = new byte[initialSize];
+        }
+
+        private void ensure(int extra)
+        {
+            if (count + extra > buf.length)
+            {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+
+        void write(byte b)
+        {
+            ensure(1);
+            buf[count++] = b;
+        }
+
+        void writeVarint(int value)
+        {
+            ensure(5);
+            while ((value & ~0x7F) != 0)
+            {
+                buf[count++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte)value;
+        }
+
+        void writeInsert(byte[] data, int offset, int len)
+        {
+            write(OP_INSERT);
+            writeVarint(len);
+            ensure(len);
+            System.arraycopy(data, offset, buf, count, len);
+            count += len;
+        }
+
+        byte[] toByteArray()
+        {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+}
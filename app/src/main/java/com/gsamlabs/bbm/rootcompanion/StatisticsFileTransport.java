@@ -0,0 +1,126 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Hands large payloads to a client as a file descriptor instead of a byte[]
+ * in the binder transaction (which is limited to ~1MB per process and shared
+ * by all in-flight transactions).
+ *
+ * The payload is written to a file in the directory we're given (our cache
+ * dir), which is unlinked as soon as the read-only descriptor is opened - so
+ * nothing is left behind by name, and only the client holding the descriptor
+ * can get at it.  This is disk-backed, not ashmem: MemoryFile doesn't expose
+ * its descriptor before API 27 (SharedMemory), and an ashmem region handed to
+ * several clients couldn't be made read-only for them anyway.  The page cache
+ * keeps a recently written payload in memory in practice.
+ *
+ * The statistics snapshot is published once however many clients ask for it:
+ * {@link #publishSnapshot} keeps the file for the latest snapshot and gives
+ * each caller a new descriptor onto it (with its own file offset).  Payloads
+ * that are only sent once go through the static {@link #publish}.
+ *
+ * The client can map it directly:
+ * <pre>
+ *   FileChannel ch = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+ *   ByteBuffer data = ch.map(FileChannel.MapMode.READ_ONLY, 0, pfd.getStatSize());
+ * </pre>
+ */
+public class StatisticsFileTransport {
+    private static final String FILE_PREFIX = "stats_transport";
+
+    private final File mDir;
+    // Guarded by 'this'
+    private byte[] mSnapshot;
+    private ParcelFileDescriptor mSnapshotFd;
+
+    /**
+     * @param dir Directory to create the backing files in (our cache dir)
+     */
+    public StatisticsFileTransport(File dir)
+    {
+        mDir = dir;
+    }
+
+    /**
+     * Publishes a snapshot, writing it out only if it isn't the one (the same
+     * array) published last time.
+     * @return A new read-only descriptor; its stat size is the payload length
+     * @throws IOException if the file couldn't be created, written or reopened
+     */
+    public synchronized ParcelFileDescriptor publishSnapshot(byte[] snapshot) throws IOException
+    {
+        if (snapshot != mSnapshot || mSnapshotFd == null)
+        {
+            ParcelFileDescriptor fd = publish(mDir, snapshot);
+            closeLocked();
+            mSnapshot = snapshot;
+            mSnapshotFd = fd;
+        }
+        // The file has no name any more - open it again through our own descriptor.
+        return ParcelFileDescriptor.open(new File("/proc/self/fd/" + mSnapshotFd.getFd()), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Lets go of the latest snapshot's file - it's freed once the clients
+     * have closed their descriptors too.
+     */
+    public synchronized void close()
+    {
+        closeLocked();
+    }
+
+    private void closeLocked()
+    {
+        if (mSnapshotFd != null)
+        {
+            try {
+                mSnapshotFd.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            mSnapshotFd = null;
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Writes the payload into an unlinked file.
+     * @param dir Directory to create the backing file in (our cache dir)
+     * @param data The payload
+     * @return A read-only descriptor; its stat size is the payload length
+     * @throws IOException if the file couldn't be created or written
+     */
+    public static ParcelFileDescriptor publish(File dir, byte[] data) throws IOException
+    {
+        File file = File.createTempFile(FILE_PREFIX, null, dir);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (data.length > 0)
+                {
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, data.length);
+                    map.put(data);
+                }
+            } finally
+            {
+                raf.close();
+            }
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally
+        {
+            // The open descriptor keeps the data alive - the name isn't needed anymore.
+            if (!file.delete())
+            {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A few fields picked out of the BatteryStatsImpl statistics by the service,
+ * for clients that don't need the whole parcel.  Only the fields asked for in
+ * fieldMask are filled in - the rest are 0 / null.
+ *
+ * All values are since the device was last charged (STATS_SINCE_CHARGED), in
+ * ms, as of timestamp.
+ */
+public class StatisticsProjection implements Parcelable {
+    /** screenOnTimeMs */
+    public static final int FIELD_SCREEN_ON_TIME = 1;
+    /** batteryRealtimeMs and batteryUptimeMs */
+    public static final int FIELD_BATTERY_TIME = 1 << 1;
+    /** uids and uidPartialWakelockTimesMs */
+    public static final int FIELD_UID_WAKELOCK_TIME = 1 << 2;
+    /** uids and uidPartialWakelockCounts */
+    public static final int FIELD_UID_WAKELOCK_COUNT = 1 << 3;
+    public static final int FIELD_ALL = FIELD_SCREEN_ON_TIME | FIELD_BATTERY_TIME
+            | FIELD_UID_WAKELOCK_TIME | FIELD_UID_WAKELOCK_COUNT;
+
+    /** The fields that were filled in - those asked for, less any this android version doesn't have */
+    public int fieldMask;
+    /** When the values were computed (SystemClock.elapsedRealtime) */
+    public long timestamp;
+    public long screenOnTimeMs;
+    /** Time on battery */
+    public long batteryRealtimeMs;
+    /** Time on battery and awake */
+    public long batteryUptimeMs;
+    /** The uids with partial wakelocks, in uid order */
+    public int[] uids;
+    /** Total partial wakelock time of each uid, summed over its wakelocks */
+    public long[] uidPartialWakelockTimesMs;
+    /** Total partial wakelock acquisitions of each uid */
+    public int[] uidPartialWakelockCounts;
+
+    public StatisticsProjection()
+    {
+    }
+
+    private StatisticsProjection(Parcel in)
+    {
+        fieldMask = in.readInt();
+        timestamp = in.readLong();
+        screenOnTimeMs = in.readLong();
+        batteryRealtimeMs = in.readLong();
+        batteryUptimeMs = in.readLong();
+        uids = in.createIntArray();
+        uidPartialWakelockTimesMs = in.createLongArray();
+        uidPartialWakelockCounts = in.createIntArray();
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeInt(fieldMask);
+        dest.writeLong(timestamp);
+        dest.writeLong(screenOnTimeMs);
+        dest.writeLong(batteryRealtimeMs);
+        dest.writeLong(batteryUptimeMs);
+        dest.writeIntArray(uids);
+        dest.writeLongArray(uidPartialWakelockTimesMs);
+        dest.writeIntArray(uidPartialWakelockCounts);
+    }
+
+    public static final Parcelable.Creator<StatisticsProjection> CREATOR = new Parcelable.Creator<StatisticsProjection>() {
+        @Override
+        public StatisticsProjection createFromParcel(Parcel in)
+        {
+            return new StatisticsProjection(in);
+        }
+
+        @Override
+        public StatisticsProjection[] newArray(int size)
+        {
+            return new StatisticsProjection[size];
+        }
+    };
+}
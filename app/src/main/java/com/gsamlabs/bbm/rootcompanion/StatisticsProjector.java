@@ -0,0 +1,311 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Unparcels the BatteryStatsImpl statistics on the service side (we have the
+ * same framework classes the clients do) and picks out just the fields a
+ * client asked for, as a {@link StatisticsProjection}.
+ *
+ * Unparcelling is the expensive part, so the decoded object is kept for as
+ * long as the statistics cache keeps handing us the same snapshot - a new
+ * snapshot (the cache expired or was invalidated) is decoded afresh.  As in
+ * {@link BatteryStatsBinding}, the reflective lookups are done once, in a
+ * holder class.
+ */
+public class StatisticsProjector {
+    private static final String TAG = "StatisticsProjector";
+    /** BatteryStats.STATS_SINCE_CHARGED */
+    private static final int STATS_SINCE_CHARGED = 0;
+    /** BatteryStats.WAKE_TYPE_PARTIAL */
+    private static final int WAKE_TYPE_PARTIAL = 0;
+
+    /** A decoded snapshot, and the parcel it was decoded from */
+    private static final class Decoded {
+        final byte[] mSource;
+        final Object mStats;
+
+        Decoded(byte[] source, Object stats)
+        {
+            mSource = source;
+            mStats = stats;
+        }
+    }
+
+    private final Object mDecodeLock = new Object();
+    private volatile Decoded mDecoded;
+
+    /**
+     * @param statistics The statistics parcel, as getStatistics returns it
+     * @param fieldMask The StatisticsProjection.FIELD_* values wanted
+     * @throws RemoteException if the parcel can't be decoded on this android version
+     */
+    public StatisticsProjection project(byte[] statistics, int fieldMask) throws RemoteException
+    {
+        Object stats = decode(statistics);
+        Methods methods = getMethods();
+        StatisticsProjection projection = new StatisticsProjection();
+        projection.fieldMask = fieldMask & methods.mAvailableFields;
+        // The decoded object isn't thread safe - the *Locked accessors expect
+        // BatteryStatsImpl's own lock to be held.
+        synchronized (stats)
+        {
+            try {
+                project(stats, methods, projection);
+            } catch (InvocationTargetException e) {
+                throw failure("Exception reading statistics: ", e.getCause());
+            } catch (Exception e) {
+                throw failure("Exception reading statistics: ", e);
+            }
+        }
+        return projection;
+    }
+
+    private static void project(Object stats, Methods methods, StatisticsProjection projection) throws Exception
+    {
+        projection.timestamp = SystemClock.elapsedRealtime();
+        long rawRealtimeUs = projection.timestamp * 1000;
+        long batteryRealtimeUs = (Long) methods.mComputeBatteryRealtime.invoke(stats, rawRealtimeUs, STATS_SINCE_CHARGED);
+        // Before Lollipop the timers took the time on battery rather than the elapsed realtime.
+        long timerTimeUs = (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) ? batteryRealtimeUs : rawRealtimeUs;
+        int mask = projection.fieldMask;
+
+        if ((mask & StatisticsProjection.FIELD_SCREEN_ON_TIME) != 0)
+        {
+            projection.screenOnTimeMs = (Long) methods.mGetScreenOnTime.invoke(stats, timerTimeUs, STATS_SINCE_CHARGED) / 1000;
+        }
+        if ((mask & StatisticsProjection.FIELD_BATTERY_TIME) != 0)
+        {
+            projection.batteryRealtimeMs = batteryRealtimeUs / 1000;
+            projection.batteryUptimeMs = (Long) methods.mComputeBatteryUptime.invoke(stats,
+                    SystemClock.uptimeMillis() * 1000, STATS_SINCE_CHARGED) / 1000;
+        }
+        boolean wakelockTimes = (mask & StatisticsProjection.FIELD_UID_WAKELOCK_TIME) != 0;
+        boolean wakelockCounts = (mask & StatisticsProjection.FIELD_UID_WAKELOCK_COUNT) != 0;
+        if (!wakelockTimes && !wakelockCounts)
+        {
+            return;
+        }
+
+        SparseArray<?> uidStats = (SparseArray<?>) methods.mGetUidStats.invoke(stats);
+        int[] uids = new int[uidStats.size()];
+        long[] times = new long[uids.length];
+        int[] counts = new int[uids.length];
+        int count = 0;
+        for (int i = 0; i < uidStats.size(); i++)
+        {
+            Map<?, ?> wakelocks = (Map<?, ?>) methods.mGetWakelockStats.invoke(uidStats.valueAt(i));
+            long time = 0;
+            int acquired = 0;
+            for (Object wakelock : wakelocks.values())
+            {
+                Object timer = methods.mGetWakeTime.invoke(wakelock, WAKE_TYPE_PARTIAL);
+                if (timer != null)
+                {
+                    time += (Long) methods.mGetTotalTimeLocked.invoke(timer, timerTimeUs, STATS_SINCE_CHARGED);
+                    acquired += (Integer) methods.mGetCountLocked.invoke(timer, STATS_SINCE_CHARGED);
+                }
+            }
+            if (time != 0 || acquired != 0)
+            {
+                // SparseArray keys are sorted, so the uids are too.
+                uids[count] = uidStats.keyAt(i);
+                times[count] = time / 1000;
+                counts[count] = acquired;
+                count++;
+            }
+        }
+        projection.uids = Arrays.copyOf(uids, count);
+        if (wakelockTimes)
+        {
+            projection.uidPartialWakelockTimesMs = Arrays.copyOf(times, count);
+        }
+        if (wakelockCounts)
+        {
+            projection.uidPartialWakelockCounts = Arrays.copyOf(counts, count);
+        }
+    }
+
+    private Object decode(byte[] statistics) throws RemoteException
+    {
+        Decoded decoded = mDecoded;
+        if (decoded != null && decoded.mSource == statistics)
+        {
+            return decoded.mStats;
+        }
+        synchronized (mDecodeLock)
+        {
+            // Someone may have decoded it while we waited.
+            decoded = mDecoded;
+            if (decoded != null && decoded.mSource == statistics)
+            {
+                return decoded.mStats;
+            }
+            long start = SystemClock.elapsedRealtime();
+            Parcel parcel = Parcel.obtain();
+            Object stats;
+            try {
+                parcel.unmarshall(statistics, 0, statistics.length);
+                parcel.setDataPosition(0);
+                stats = getCreator().createFromParcel(parcel);
+            } catch (RemoteException e) {
+                throw e;
+            } catch (Exception e) {
+                throw failure("Exception unparcelling statistics: ", e);
+            } finally
+            {
+                parcel.recycle();
+            }
+            Log.d(TAG, "Decoded " + statistics.length + " byte statistics parcel in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            mDecoded = new Decoded(statistics, stats);
+            return stats;
+        }
+    }
+
+    static Parcelable.Creator<?> getCreator() throws RemoteException
+    {
+        if (ReflectionHolder.CREATOR == null)
+        {
+            throw failure("Exception obtaining BatteryStatsImpl.CREATOR - perhaps this version of android changed? ",
+                    ReflectionHolder.CREATOR_FAILURE);
+        }
+        return ReflectionHolder.CREATOR;
+    }
+
+    private static Methods getMethods() throws RemoteException
+    {
+        if (ReflectionHolder.METHODS == null)
+        {
+            throw failure("Exception obtaining BatteryStats methods - perhaps this version of android changed? ",
+                    ReflectionHolder.METHODS_FAILURE);
+        }
+        return ReflectionHolder.METHODS;
+    }
+
+    /**
+     * Does the reflective lookups when first used - exactly once, however many
+     * threads get here first.
+     */
+    private static final class ReflectionHolder {
+        static final Parcelable.Creator<?> CREATOR;
+        static final Exception CREATOR_FAILURE;
+        static final Methods METHODS;
+        static final Exception METHODS_FAILURE;
+
+        static
+        {
+            Parcelable.Creator<?> creator = null;
+            Exception creatorFailure = null;
+            try {
+                creator = (Parcelable.Creator<?>) Class.forName("com.android.internal.os.BatteryStatsImpl")
+                        .getField("CREATOR").get(null);
+            } catch (Exception e) {
+                creatorFailure = e;
+            }
+            CREATOR = creator;
+            CREATOR_FAILURE = creatorFailure;
+
+            Methods methods = null;
+            Exception methodsFailure = null;
+            try {
+                methods = new Methods();
+            } catch (Exception e) {
+                methodsFailure = e;
+            }
+            METHODS = methods;
+            METHODS_FAILURE = methodsFailure;
+        }
+    }
+
+    /**
+     * The BatteryStats accessors we use.  Those only some fields need are
+     * optional - if they're missing, those fields just aren't available.
+     */
+    private static final class Methods {
+        final Method mComputeBatteryRealtime;
+        final Method mComputeBatteryUptime;
+        final Method mGetScreenOnTime;
+        final Method mGetUidStats;
+        final Method mGetWakelockStats;
+        final Method mGetWakeTime;
+        final Method mGetTotalTimeLocked;
+        final Method mGetCountLocked;
+        final int mAvailableFields;
+
+        Methods() throws ClassNotFoundException, NoSuchMethodException
+        {
+            Class<?> batteryStats = Class.forName("android.os.BatteryStats");
+            mComputeBatteryRealtime = method(batteryStats, "computeBatteryRealtime", long.class, int.class);
+            mComputeBatteryUptime = method(batteryStats, "computeBatteryUptime", long.class, int.class);
+            int available = StatisticsProjection.FIELD_BATTERY_TIME;
+
+            mGetScreenOnTime = optionalMethod(batteryStats, "getScreenOnTime", long.class, int.class);
+            if (mGetScreenOnTime != null)
+            {
+                available |= StatisticsProjection.FIELD_SCREEN_ON_TIME;
+            }
+
+            Method getUidStats = null;
+            Method getWakelockStats = null;
+            Method getWakeTime = null;
+            Method getTotalTimeLocked = null;
+            Method getCountLocked = null;
+            try {
+                getUidStats = method(batteryStats, "getUidStats");
+                getWakelockStats = method(Class.forName("android.os.BatteryStats$Uid"), "getWakelockStats");
+                getWakeTime = method(Class.forName("android.os.BatteryStats$Uid$Wakelock"), "getWakeTime", int.class);
+                Class<?> timer = Class.forName("android.os.BatteryStats$Timer");
+                getTotalTimeLocked = method(timer, "getTotalTimeLocked", long.class, int.class);
+                getCountLocked = method(timer, "getCountLocked", int.class);
+                available |= StatisticsProjection.FIELD_UID_WAKELOCK_TIME | StatisticsProjection.FIELD_UID_WAKELOCK_COUNT;
+            } catch (Exception e) {
+                Log.d(TAG, "Per-uid wakelocks aren't available: " + e);
+            }
+            mGetUidStats = getUidStats;
+            mGetWakelockStats = getWakelockStats;
+            mGetWakeTime = getWakeTime;
+            mGetTotalTimeLocked = getTotalTimeLocked;
+            mGetCountLocked = getCountLocked;
+            mAvailableFields = available;
+        }
+
+        private static Method method(Class<?> cls, String name, Class<?>... parameterTypes) throws NoSuchMethodException
+        {
+            Method method = cls.getMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        }
+
+        private static Method optionalMethod(Class<?> cls, String name, Class<?>... parameterTypes)
+        {
+            try {
+                return method(cls, name, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                Log.d(TAG, cls.getSimpleName() + "." + name + " isn't available");
+                return null;
+            }
+        }
+    }
+
+    private static RemoteException failure(String msg, Throwable e)
+    {
+        if (e != null)
+        {
+            msg = msg + e.getMessage();
+        }
+        Log.e(TAG, msg, e);
+        return new RemoteException(msg);
+    }
+}
@@ -0,0 +1,112 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps the last few statistics snapshots, each tagged with a sequence number,
+ * so that a client which already holds one of them can be sent a delta
+ * (see {@link StatisticsDeltaCodec}) instead of the whole parcel.
+ *
+ * The response built by {@link #buildResponse(long, byte[])} is laid out as:
+ * <pre>
+ *   byte  type     (TYPE_FULL or TYPE_DELTA)
+ *   long  seq      (sequence number of the snapshot the client now has)
+ *   long  baseSeq  (the base the delta applies to, or -1 for a full snapshot)
+ *   byte[] payload (the full parcel or the encoded delta)
+ * </pre>
+ * Everything is big-endian, as written by ByteBuffer.
+ */
+public class StatisticsSnapshotHistory {
+    public static final byte TYPE_FULL = 0;
+    public static final byte TYPE_DELTA = 1;
+    public static final int HEADER_SIZE = 1 + 8 + 8;
+
+    private final long[] mSeqs;
+    private final byte[][] mSnapshots;
+    private int mNext = 0;
+    private long mLastSeq;
+
+    /**
+     * @param capacity How many snapshots to keep around as possible delta bases
+     */
+    public StatisticsSnapshotHistory(int capacity)
+    {
+        mSeqs = new long[capacity];
+        mSnapshots = new byte[capacity][];
+        Arrays.fill(mSeqs, -1);
+        // Start from wall time so sequence numbers from a restarted service
+        // won't collide with ones a client still holds.
+        mLastSeq = System.currentTimeMillis() * 1000;
+    }
+
+    /**
+     * Records the snapshot (unless it's identical to the latest one) and builds
+     * the response for a client currently holding baseSeq.
+     * @param baseSeq The sequence number the client has, or -1 if none
+     * @param snapshot The current statistics parcel
+     * @return The encoded response
+     */
+    public synchronized byte[] buildResponse(long baseSeq, byte[] snapshot)
+    {
+        return buildResponse(baseSeq, record(snapshot), snapshot);
+    }
+
+    /**
+     * Builds the response for a snapshot recorded earlier, for a client
+     * currently holding baseSeq.
+     * @param seq The sequence number {@link #record} gave the snapshot
+     */
+    public synchronized byte[] buildResponse(long baseSeq, long seq, byte[] snapshot)
+    {
+        byte[] base = (baseSeq >= 0) ? find(baseSeq) : null;
+        byte type = TYPE_FULL;
+        byte[] payload = snapshot;
+        if (base != null)
+        {
+            byte[] delta = StatisticsDeltaCodec.encode(base, snapshot);
+            // Only worth it if it's actually smaller
+            if (delta.length < snapshot.length)
+            {
+                type = TYPE_DELTA;
+                payload = delta;
+            }
+        }
+        ByteBuffer response = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        response.put(type);
+        response.putLong(seq);
+        response.putLong((type == TYPE_DELTA) ? baseSeq : -1);
+        response.put(payload);
+        return response.array();
+    }
+
+    /**
+     * Records the snapshot, unless it's identical to the latest one.
+     * @return Its sequence number
+     */
+    public synchronized long record(byte[] snapshot)
+    {
+        int latest = (mNext + mSnapshots.length - 1) % mSnapshots.length;
+        if (mSnapshots[latest] != null && Arrays.equals(mSnapshots[latest], snapshot))
+        {
+            return mSeqs[latest];
+        }
+        long seq = ++mLastSeq;
+        mSeqs[mNext] = seq;
+        mSnapshots[mNext] = snapshot;
+        mNext = (mNext + 1) % mSnapshots.length;
+        return seq;
+    }
+
+    private byte[] find(long seq)
+    {
+        for (int i = 0; i < mSeqs.length; i++)
+        {
+            if (mSeqs[i] == seq)
+            {
+                return mSnapshots[i];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,484 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.content.Context;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Pushes periodic samples to subscribed clients, so they don't each have to
+ * poll on their own timers.
+ *
+ * Each subscriber is due on multiples of its own interval, so subscribers
+ * whose intervals divide each other line up, and a single collection pass
+ * (one statistics load, one wakeup_sources read) serves every subscriber
+ * due at that moment.  Passes are run by a {@link SamplingScheduler} at the
+ * shortest subscriber interval, so - as for wakelock sampling - they never
+ * wake the device, and come less often on battery when the screen is off or
+ * nothing is changing.  With no subscribers left (unsubscribed or dead) the
+ * scheduler is paused: no alarms, nothing registered.
+ *
+ * Deliveries are batched: samples queue up per subscriber while a delivery
+ * to it is in progress (or can't be started - the executor is busy) and go
+ * out together in the next onSamples call.  If a subscriber falls further
+ * behind than MAX_PENDING samples, the oldest are dropped - stale data isn't
+ * worth the binder traffic.  onSamples is oneway, so a slow client doesn't
+ * hold up a delivery; the kernel's async buffer does the queueing, and when
+ * that's full the transaction fails - we drop that batch and keep the rest
+ * queued for the next pass.
+ *
+ * Every transaction has to fit in the binder buffer, so a batch is limited to
+ * MAX_BATCH_BYTES, and statistics are sent as a delta against the ones the
+ * subscriber last received (see {@link StatisticsSnapshotHistory}) - through a
+ * file descriptor rather than inline when that's still big.  Deltas and the
+ * wakeup source names are worked out as each batch is sent, so a batch that
+ * is dropped or fails just means the next one carries the full values.
+ * Only a dead client is unsubscribed.
+ */
+public class SubscriptionManager {
+    private static final String TAG = "SubscriptionManager";
+    public static final long MIN_INTERVAL_MS = 1000;
+    private static final int MAX_PENDING = 4;
+    /** Roughly how much of the binder buffer one onSamples call may take */
+    private static final int MAX_BATCH_BYTES = 128 * 1024;
+    /** Statistics responses bigger than this go through a file descriptor */
+    private static final int MAX_INLINE_STATISTICS_BYTES = 32 * 1024;
+
+    /** Does the actual collection for a pass. */
+    public interface Collector {
+        byte[] collectStatistics() throws RemoteException;
+        WakeupSourceTable collectWakeupSources() throws RemoteException;
+    }
+
+    private final Collector mCollector;
+    private final Executor mDeliveryExecutor;
+    private final StatisticsSnapshotHistory mHistory;
+    private final File mTransportDir;
+    private final RemoteCallbackList<IBatteryStatsCallback> mCallbacks = new RemoteCallbackList<IBatteryStatsCallback>() {
+        @Override
+        public void onCallbackDied(IBatteryStatsCallback callback, Object cookie) {
+            reschedule();
+        }
+    };
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final SamplingScheduler mScheduler;
+
+    // What the last pass collected, to tell the scheduler whether anything
+    // changed.  Only touched on our handler thread.
+    private long mLastStatisticsSeq = -1;
+    private WakeupSourceTable mLastWakeupSources;
+
+    /**
+     * What one collection pass found - shared by every subscriber it was for.
+     */
+    private static final class Collected {
+        final long mTimestamp;
+        final byte[] mStatistics;
+        final long mStatisticsSeq;
+        final WakeupSourceTable mWakeupSources;
+
+        Collected(long timestamp, byte[] statistics, long statisticsSeq, WakeupSourceTable wakeupSources)
+        {
+            mTimestamp = timestamp;
+            mStatistics = statistics;
+            mStatisticsSeq = statisticsSeq;
+            mWakeupSources = wakeupSources;
+        }
+    }
+
+    /**
+     * A subscription - stored as the callback's cookie in mCallbacks.
+     */
+    private static final class Subscriber {
+        final IBatteryStatsCallback mCallback;
+        final long mIntervalMs;
+        final int mFields;
+        long mNextDue;
+        // Guarded by 'this'
+        final ArrayDeque<Collected> mPending = new ArrayDeque<Collected>();
+        boolean mDelivering = false;
+        int mDropped = 0;
+        /** What the subscriber has received - the base for the next batch */
+        long mStatisticsSeq = -1;
+        long mNamesVersion = -1;
+
+        Subscriber(IBatteryStatsCallback callback, long intervalMs, int fields)
+        {
+            mCallback = callback;
+            mIntervalMs = intervalMs;
+            mFields = fields;
+            // The first sample goes out with the next pass
+            mNextDue = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * @param context For the scheduler's alarms and receivers
+     * @param collector Collects the data for each pass
+     * @param deliveryExecutor Where the (oneway) callbacks are made from
+     * @param history Where statistics deltas are taken from
+     * @param transportDir Where file descriptor backed statistics are written (our cache dir)
+     */
+    public SubscriptionManager(Context context, Collector collector, Executor deliveryExecutor, StatisticsSnapshotHistory history,
+            File transportDir)
+    {
+        mCollector = collector;
+        mDeliveryExecutor = deliveryExecutor;
+        mHistory = history;
+        mTransportDir = transportDir;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mScheduler = new SamplingScheduler(context, TAG, new SamplingScheduler.Task() {
+            @Override
+            public boolean run() {
+                return collectAndDeliver();
+            }
+        }, mHandler);
+    }
+
+    /**
+     * Registers (or re-registers with new settings) a subscriber.
+     * @param intervalMs How often to deliver; raised to MIN_INTERVAL_MS if lower
+     * @param fields Which SubscriptionSample.FIELD_* values to collect
+     */
+    public void subscribe(long intervalMs, int fields, IBatteryStatsCallback callback)
+    {
+        Subscriber subscriber = new Subscriber(callback, Math.max(intervalMs, MIN_INTERVAL_MS), fields & SubscriptionSample.ALL_FIELDS);
+        mCallbacks.register(callback, subscriber);
+        reschedule();
+    }
+
+    public void unsubscribe(IBatteryStatsCallback callback)
+    {
+        mCallbacks.unregister(callback);
+        reschedule();
+    }
+
+    public void dump(PrintWriter pw)
+    {
+        mScheduler.dump(pw, "Subscription");
+    }
+
+    public void shutdown()
+    {
+        mScheduler.stop();
+        mCallbacks.kill();
+        mThread.quit();
+    }
+
+    private void reschedule()
+    {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateInterval();
+            }
+        });
+    }
+
+    /**
+     * Runs passes at the shortest interval anyone wants - or not at all.  Must be
+     * called on our handler thread.
+     */
+    private void updateInterval()
+    {
+        long interval = Long.MAX_VALUE;
+        int count = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++)
+            {
+                Subscriber subscriber = (Subscriber) mCallbacks.getBroadcastCookie(i);
+                interval = Math.min(interval, subscriber.mIntervalMs);
+            }
+        } finally
+        {
+            mCallbacks.finishBroadcast();
+        }
+        if (interval == Long.MAX_VALUE)
+        {
+            mLastStatisticsSeq = -1;
+            mLastWakeupSources = null;
+            interval = 0;
+        }
+        mScheduler.setBaseInterval(interval);
+    }
+
+    /**
+     * One pass - run by the scheduler, on our handler thread.
+     * @return Whether anything changed since the last pass
+     */
+    private boolean collectAndDeliver()
+    {
+        long now = SystemClock.elapsedRealtime();
+        List<Subscriber> due = new ArrayList<Subscriber>();
+        int fields = 0;
+        int count = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++)
+            {
+                Subscriber subscriber = (Subscriber) mCallbacks.getBroadcastCookie(i);
+                if (subscriber.mNextDue <= now)
+                {
+                    due.add(subscriber);
+                    fields |= subscriber.mFields;
+                    subscriber.mNextDue = alignedAfter(now, subscriber.mIntervalMs);
+                }
+            }
+        } finally
+        {
+            mCallbacks.finishBroadcast();
+        }
+
+        boolean changed = false;
+        if (!due.isEmpty())
+        {
+            byte[] statistics = null;
+            long statisticsSeq = -1;
+            WakeupSourceTable wakeupSources = null;
+            try {
+                if ((fields & SubscriptionSample.FIELD_STATISTICS) != 0)
+                {
+                    statistics = mCollector.collectStatistics();
+                    statisticsSeq = mHistory.record(statistics);
+                }
+                if ((fields & SubscriptionSample.FIELD_WAKEUP_SOURCES) != 0)
+                {
+                    wakeupSources = mCollector.collectWakeupSources();
+                }
+            } catch (RemoteException e) {
+                Log.d(TAG, "Collection failed, delivering what we have: " + e.getMessage());
+            }
+            if (statistics != null)
+            {
+                changed = (statisticsSeq != mLastStatisticsSeq);
+                mLastStatisticsSeq = statisticsSeq;
+            }
+            if (wakeupSources != null)
+            {
+                changed |= !sameCounters(wakeupSources, mLastWakeupSources);
+                mLastWakeupSources = wakeupSources;
+            }
+
+            Collected collected = new Collected(now, statistics, statisticsSeq, wakeupSources);
+            for (Subscriber subscriber : due)
+            {
+                enqueue(subscriber, collected);
+            }
+        }
+        return changed;
+    }
+
+    private static boolean sameCounters(WakeupSourceTable table, WakeupSourceTable previous)
+    {
+        return previous != null && Arrays.equals(table.nameIds, previous.nameIds)
+                && Arrays.equals(table.activeCounts, previous.activeCounts)
+                && Arrays.equals(table.wakeupCounts, previous.wakeupCounts)
+                && Arrays.equals(table.totalTimes, previous.totalTimes);
+    }
+
+    private void enqueue(final Subscriber subscriber, Collected collected)
+    {
+        synchronized (subscriber)
+        {
+            subscriber.mPending.addLast(collected);
+            while (subscriber.mPending.size() > MAX_PENDING)
+            {
+                subscriber.mPending.removeFirst();
+                subscriber.mDropped++;
+            }
+            if (subscriber.mDelivering)
+            {
+                return;
+            }
+            subscriber.mDelivering = true;
+        }
+        try {
+            mDeliveryExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(subscriber);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Busy - leave the samples queued for the next pass
+            synchronized (subscriber)
+            {
+                subscriber.mDelivering = false;
+            }
+        }
+    }
+
+    private void deliver(Subscriber subscriber)
+    {
+        while (true)
+        {
+            List<Collected> pending;
+            long statisticsSeq;
+            long namesVersion;
+            synchronized (subscriber)
+            {
+                if (subscriber.mPending.isEmpty())
+                {
+                    subscriber.mDelivering = false;
+                    return;
+                }
+                pending = new ArrayList<Collected>(subscriber.mPending);
+                subscriber.mPending.clear();
+                if (subscriber.mDropped > 0)
+                {
+                    Log.d(TAG, "Dropped " + subscriber.mDropped + " stale samples for a slow subscriber");
+                    subscriber.mDropped = 0;
+                }
+                statisticsSeq = subscriber.mStatisticsSeq;
+                namesVersion = subscriber.mNamesVersion;
+            }
+
+            List<SubscriptionSample> batch = new ArrayList<SubscriptionSample>();
+            int batchBytes = 0;
+            int taken = 0;
+            try {
+                for (; taken < pending.size(); taken++)
+                {
+                    Collected collected = pending.get(taken);
+                    SubscriptionSample sample = new SubscriptionSample();
+                    sample.timestamp = collected.mTimestamp;
+                    int sampleBytes = 8;
+                    long sampleStatisticsSeq = statisticsSeq;
+                    long sampleNamesVersion = namesVersion;
+                    if ((subscriber.mFields & SubscriptionSample.FIELD_STATISTICS) != 0 && collected.mStatistics != null)
+                    {
+                        byte[] response = mHistory.buildResponse(statisticsSeq, collected.mStatisticsSeq, collected.mStatistics);
+                        if (response.length <= MAX_INLINE_STATISTICS_BYTES)
+                        {
+                            sample.statistics = response;
+                            sampleBytes += response.length;
+                        } else
+                        {
+                            try {
+                                sample.statisticsFd = StatisticsFileTransport.publish(mTransportDir, response);
+                            } catch (IOException e) {
+                                Log.e(TAG, "Unable to publish statistics for a subscriber", e);
+                            }
+                        }
+                        if (sample.statistics != null || sample.statisticsFd != null)
+                        {
+                            sampleStatisticsSeq = collected.mStatisticsSeq;
+                        }
+                    }
+                    if ((subscriber.mFields & SubscriptionSample.FIELD_WAKEUP_SOURCES) != 0 && collected.mWakeupSources != null)
+                    {
+                        WakeupSourceTable table = collected.mWakeupSources;
+                        sample.wakeupSources = (table.namesVersion == namesVersion) ? table.withoutNames() : table;
+                        sampleNamesVersion = table.namesVersion;
+                        sampleBytes += estimateSize(sample.wakeupSources);
+                    }
+                    if (!batch.isEmpty() && batchBytes + sampleBytes > MAX_BATCH_BYTES)
+                    {
+                        closeQuietly(sample);
+                        break;
+                    }
+                    batch.add(sample);
+                    batchBytes += sampleBytes;
+                    statisticsSeq = sampleStatisticsSeq;
+                    namesVersion = sampleNamesVersion;
+                }
+
+                if (taken < pending.size())
+                {
+                    // Didn't all fit - the rest go in the next batch, ahead of anything newer.
+                    synchronized (subscriber)
+                    {
+                        for (int i = pending.size() - 1; i >= taken; i--)
+                        {
+                            subscriber.mPending.addFirst(pending.get(i));
+                        }
+                    }
+                }
+
+                try {
+                    subscriber.mCallback.onSamples(batch);
+                } catch (DeadObjectException e) {
+                    Log.d(TAG, "Subscriber went away");
+                    unsubscribe(subscriber.mCallback);
+                    synchronized (subscriber)
+                    {
+                        subscriber.mPending.clear();
+                        subscriber.mDelivering = false;
+                    }
+                    return;
+                } catch (RemoteException e) {
+                    // Most likely its async buffer is full.  It didn't get this batch, so
+                    // the next one has to carry full values - and gets a pass to catch up.
+                    Log.d(TAG, "Unable to deliver " + batch.size() + " samples (" + batchBytes + " bytes): " + e);
+                    synchronized (subscriber)
+                    {
+                        subscriber.mStatisticsSeq = -1;
+                        subscriber.mNamesVersion = -1;
+                        subscriber.mDelivering = false;
+                    }
+                    return;
+                }
+                synchronized (subscriber)
+                {
+                    subscriber.mStatisticsSeq = statisticsSeq;
+                    subscriber.mNamesVersion = namesVersion;
+                }
+            } finally
+            {
+                // The transaction has its own copies of the descriptors by now.
+                for (SubscriptionSample sample : batch)
+                {
+                    closeQuietly(sample);
+                }
+            }
+        }
+    }
+
+    private static int estimateSize(WakeupSourceTable table)
+    {
+        int size = 8 + 4 + table.count * (4 + 5 * 8);
+        if (table.names != null)
+        {
+            for (String name : table.names)
+            {
+                size += 8 + ((name == null) ? 0 : name.length() * 2);
+            }
+        }
+        return size;
+    }
+
+    private static void closeQuietly(SubscriptionSample sample)
+    {
+        if (sample.statisticsFd != null)
+        {
+            try {
+                sample.statisticsFd.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+        }
+    }
+
+    private static long alignedAfter(long now, long intervalMs)
+    {
+        return ((now / intervalMs) + 1) * intervalMs;
+    }
+}
@@ -0,0 +1,94 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+
+/**
+ * One sample pushed to a subscriber (see IBatteryStatsService.subscribe).
+ * Only the fields the subscriber asked for are filled in; the rest are null.
+ *
+ * The statistics are never sent as a raw parcel - that could take a whole
+ * binder transaction by itself.  Instead they come as a
+ * {@link StatisticsSnapshotHistory} response (exactly what getStatisticsDelta
+ * returns), usually a delta against the statistics in the previous sample
+ * the subscriber received.  Small responses are inline in statistics; large
+ * ones (typically the first, full, one) are in statisticsFd instead - read
+ * getStatSize() bytes from it, as for getStatisticsFd.
+ */
+public class SubscriptionSample implements Parcelable {
+    /** The statistics, as a StatisticsSnapshotHistory response */
+    public static final int FIELD_STATISTICS = 1;
+    /** The parsed wakeup_sources table, as returned by getWakeupSources */
+    public static final int FIELD_WAKEUP_SOURCES = 2;
+    public static final int ALL_FIELDS = FIELD_STATISTICS | FIELD_WAKEUP_SOURCES;
+
+    /** When the sample was collected (SystemClock.elapsedRealtime) */
+    public long timestamp;
+    /** The statistics response, if small enough to send inline */
+    public byte[] statistics;
+    /** The statistics response, if it wasn't sent inline */
+    public ParcelFileDescriptor statisticsFd;
+    public WakeupSourceTable wakeupSources;
+
+    public SubscriptionSample()
+    {
+    }
+
+    private SubscriptionSample(Parcel in)
+    {
+        timestamp = in.readLong();
+        statistics = in.createByteArray();
+        if (in.readInt() != 0)
+        {
+            statisticsFd = ParcelFileDescriptor.CREATOR.createFromParcel(in);
+        }
+        if (in.readInt() != 0)
+        {
+            wakeupSources = WakeupSourceTable.CREATOR.createFromParcel(in);
+        }
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return (statisticsFd != null) ? Parcelable.CONTENTS_FILE_DESCRIPTOR : 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeLong(timestamp);
+        dest.writeByteArray(statistics);
+        if (statisticsFd != null)
+        {
+            dest.writeInt(1);
+            statisticsFd.writeToParcel(dest, flags);
+        } else
+        {
+            dest.writeInt(0);
+        }
+        if (wakeupSources != null)
+        {
+            dest.writeInt(1);
+            wakeupSources.writeToParcel(dest, flags);
+        } else
+        {
+            dest.writeInt(0);
+        }
+    }
+
+    public static final Parcelable.Creator<SubscriptionSample> CREATOR = new Parcelable.Creator<SubscriptionSample>() {
+        @Override
+        public SubscriptionSample createFromParcel(Parcel in)
+        {
+            return new SubscriptionSample(in);
+        }
+
+        @Override
+        public SubscriptionSample[] newArray(int size)
+        {
+            return new SubscriptionSample[size];
+        }
+    };
+}
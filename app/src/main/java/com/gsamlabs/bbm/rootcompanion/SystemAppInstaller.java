@@ -0,0 +1,462 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.stericson.RootShell.exceptions.RootDeniedException;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Copies our APK into /system/priv-app (and the CyanogenMod backup script into
+ * /system/addon.d, if there is one) as a single batched root command: remount
+ * read-write, copy, remount read-only - rather than a RootTools copyFile (with
+ * its own remounts and fallbacks) per file.  The copies only run if the
+ * remount worked, and the read-only remount always runs - if the batch is
+ * killed before getting that far, it's sent again as a command of its own.
+ *
+ * The local work runs in parallel before the root command: hashing our APK,
+ * hashing the one already in /system/priv-app, and extracting the backup
+ * script from our assets.  If the installed APK is identical the copy is
+ * skipped.  Everything copied is checked by SHA-256 afterwards, so a copy that
+ * silently went wrong is reported as a failure.
+ *
+ * Each step is timed - the root command's steps by when their marker lines
+ * arrive - and returned in the {@link Result}.  Must not be called on the main thread.
+ */
+public class SystemAppInstaller {
+    private static final String TAG = "SystemAppInstaller";
+    static final String PRIV_APP_FILE = "/system/priv-app/gsamrootcompanion.apk";
+    static final String ADDON_DIR = "/system/addon.d";
+    static final String BACKUP_SCRIPT_ASSET_NAME = "91-gsamrootcompanion_backup.sh";
+    private static final String STEP_MARKER = "@@GSAM_STEP";
+    private static final long ROOT_COMMAND_TIMEOUT_MS = 60000;
+    private static final long REMOUNT_RO_TIMEOUT_MS = 10000;
+    private static final String REMOUNT_RO_STEP = "remount_ro";
+    private static final String REMOUNT_RO_COMMAND = "sync; mount -o ro,remount /system || mount -o ro,remount /";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** One timed step of an install */
+    public static final class Step {
+        public final String name;
+        public final long durationMs;
+        /** 0 on success - for root command steps, the shell exit code */
+        public final int exitCode;
+
+        Step(String name, long durationMs, int exitCode)
+        {
+            this.name = name;
+            this.durationMs = durationMs;
+            this.exitCode = exitCode;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + "=" + durationMs + "ms" + ((exitCode != 0) ? " (exit " + exitCode + ")" : "");
+        }
+    }
+
+    /** The outcome of an install */
+    public static final class Result {
+        public boolean success;
+        /** The identical APK was already installed, so it wasn't copied */
+        public boolean apkUpToDate;
+        /** SHA-256 of our APK, in hex - null if we didn't install it */
+        public String apkSha256;
+        /** What went wrong, or a summary of what was done */
+        public String message;
+        public long totalMs;
+        public final List<Step> steps = new ArrayList<Step>();
+    }
+
+    private final Context mContext;
+
+    public SystemAppInstaller(Context context)
+    {
+        mContext = context;
+    }
+
+    /**
+     * Installs our APK as a system app, plus the backup script if the ROM has addon.d.
+     */
+    public Result install()
+    {
+        return run(true);
+    }
+
+    /**
+     * Installs just the addon.d backup script (if the ROM has addon.d).
+     */
+    public Result installBackupScript()
+    {
+        return run(false);
+    }
+
+    private Result run(boolean includeApk)
+    {
+        final Result result = new Result();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            runSteps(includeApk, result);
+        } catch (RootDeniedException e) {
+            fail(result, "Unable to obtain root access.  Please make sure you grant this app root authority");
+        } catch (Exception e) {
+            Log.e(TAG, "Install failed", e);
+            fail(result, "Install failed: " + e.getMessage());
+        }
+        result.totalMs = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, (result.success ? "Install succeeded" : "Install failed") + " in " + result.totalMs + "ms: "
+                + result.steps + " - " + result.message);
+        return result;
+    }
+
+    private void runSteps(boolean includeApk, Result result) throws Exception
+    {
+        final boolean hasAddonDir = new File(ADDON_DIR).isDirectory();
+        String sourceApk = mContext.getApplicationInfo().sourceDir;
+        if (includeApk && (sourceApk == null || !new File(sourceApk).isFile()))
+        {
+            fail(result, "Unable to find the APK.  Current location appears to be: " + sourceApk);
+            return;
+        }
+
+        // The local work, in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<TimedValue<String>> installedHash = null;
+        Future<TimedValue<File>> script = null;
+        try {
+            if (includeApk)
+            {
+                installedHash = executor.submit(new Callable<TimedValue<String>>() {
+                    @Override
+                    public TimedValue<String> call() throws IOException {
+                        long stepStart = SystemClock.elapsedRealtime();
+                        return new TimedValue<String>(sha256(new File(PRIV_APP_FILE)), stepStart);
+                    }
+                });
+            }
+            if (hasAddonDir)
+            {
+                script = executor.submit(new Callable<TimedValue<File>>() {
+                    @Override
+                    public TimedValue<File> call() throws IOException {
+                        long stepStart = SystemClock.elapsedRealtime();
+                        return new TimedValue<File>(extractBackupScript(), stepStart);
+                    }
+                });
+            }
+            if (includeApk)
+            {
+                long stepStart = SystemClock.elapsedRealtime();
+                result.apkSha256 = sha256(new File(sourceApk));
+                result.steps.add(new Step("hash_apk", SystemClock.elapsedRealtime() - stepStart, (result.apkSha256 == null) ? -1 : 0));
+                if (result.apkSha256 == null)
+                {
+                    fail(result, "Unable to read the APK at " + sourceApk);
+                    return;
+                }
+                TimedValue<String> installed = get(installedHash);
+                result.steps.add(new Step("hash_installed_apk", installed.mDurationMs, 0));
+                result.apkUpToDate = result.apkSha256 != null && result.apkSha256.equals(installed.mValue);
+            }
+            File scriptFile = null;
+            if (script != null)
+            {
+                TimedValue<File> extracted = get(script);
+                result.steps.add(new Step("extract_script", extracted.mDurationMs, 0));
+                scriptFile = extracted.mValue;
+            }
+
+            boolean copyApk = includeApk && !result.apkUpToDate;
+            if (!copyApk && scriptFile == null)
+            {
+                result.success = true;
+                result.message = includeApk ? "Already installed" : "Nothing to install - no addon.d";
+                return;
+            }
+
+            if (!runRootCommand(buildCommand(copyApk ? sourceApk : null, scriptFile), result))
+            {
+                return;
+            }
+
+            // Make sure what landed is what we sent
+            long stepStart = SystemClock.elapsedRealtime();
+            String error = null;
+            if (copyApk && !result.apkSha256.equals(sha256(new File(PRIV_APP_FILE))))
+            {
+                error = "The copy of the APK in " + PRIV_APP_FILE + " doesn't match the original.";
+            } else if (scriptFile != null)
+            {
+                String scriptTarget = ADDON_DIR + "/" + BACKUP_SCRIPT_ASSET_NAME;
+                String expected = sha256(scriptFile);
+                if (expected == null || !expected.equals(sha256(new File(scriptTarget))))
+                {
+                    error = "The copy of the backup script in " + scriptTarget + " doesn't match the original.";
+                }
+            }
+            result.steps.add(new Step("verify", SystemClock.elapsedRealtime() - stepStart, (error == null) ? 0 : -1));
+            if (error != null)
+            {
+                fail(result, error + "  You may need to try this manually using a tool such as Root Explorer.");
+                return;
+            }
+            result.success = true;
+            result.message = (copyApk ? "Installed " + PRIV_APP_FILE : "APK already installed")
+                    + ((scriptFile != null) ? " and the addon.d backup script" : "");
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param sourceApk Our APK, or null to leave the installed one alone
+     * @param scriptFile The extracted backup script, or null if there's no addon.d
+     * @return One command doing every root step, each followed by a marker line
+     * with its name and exit code.  The copies are skipped (and have no marker)
+     * if the read-write remount failed.
+     */
+    static String buildCommand(String sourceApk, File scriptFile)
+    {
+        StringBuilder command = new StringBuilder();
+        appendStep(command, "remount", "mount -o rw,remount /system || mount -o rw,remount /");
+        command.append("if [ $s -eq 0 ]; then ");
+        if (sourceApk != null)
+        {
+            appendStep(command, "copy_apk", copyCommand(sourceApk, PRIV_APP_FILE, "644"));
+        }
+        if (scriptFile != null)
+        {
+            appendStep(command, "copy_script", copyCommand(scriptFile.getPath(), ADDON_DIR + "/" + BACKUP_SCRIPT_ASSET_NAME, "755"));
+        }
+        command.append("fi; ");
+        appendStep(command, REMOUNT_RO_STEP, REMOUNT_RO_COMMAND);
+        return command.toString();
+    }
+
+    /**
+     * Copies through a temp file and renames it into place, so a failed copy
+     * never leaves a truncated APK in /system.
+     */
+    private static String copyCommand(String from, String to, String mode)
+    {
+        String temp = quote(to + ".tmp");
+        return "cat " + quote(from) + " > " + temp + " && chmod " + mode + " " + temp + " && mv " + temp + " " + quote(to)
+                + "; r=$?; rm -f " + temp + "; (exit $r)";
+    }
+
+    private static void appendStep(StringBuilder command, String name, String step)
+    {
+        command.append("{ ").append(step).append("; } 2>&1; s=$?; echo \"").append(STEP_MARKER).append(' ')
+            .append(name).append(" $s\"; ");
+    }
+
+    private static String quote(String path)
+    {
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Runs the batched command, timing each step by when its marker arrives.
+     * If the command doesn't get as far as remounting /system read-only (it was
+     * killed, or timed out), that's done separately before returning.
+     * @return Whether every step succeeded - if not, the result says why
+     */
+    private boolean runRootCommand(String command, Result result) throws Exception
+    {
+        final List<Step> steps = new ArrayList<Step>();
+        final StringBuilder stepOutput = new StringBuilder();
+        final String[] failure = new String[1];
+        final long[] stepStart = {SystemClock.elapsedRealtime()};
+        try {
+            runBatch(command, steps, stepOutput, failure, stepStart);
+        } finally
+        {
+            boolean remountedReadOnly = false;
+            synchronized (steps)
+            {
+                for (Step step : steps)
+                {
+                    remountedReadOnly |= REMOUNT_RO_STEP.equals(step.name);
+                }
+                result.steps.addAll(steps);
+            }
+            if (!remountedReadOnly)
+            {
+                result.steps.add(remountReadOnly());
+            }
+        }
+        synchronized (steps)
+        {
+            if (failure[0] != null)
+            {
+                fail(result, failure[0] + "  You may need to try this manually using a tool such as Root Explorer.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void runBatch(String command, final List<Step> steps, final StringBuilder stepOutput,
+            final String[] failure, final long[] stepStart) throws Exception
+    {
+        RootCommandExecutor.run(ROOT_COMMAND_TIMEOUT_MS, false, new RootCommandExecutor.OutputListener() {
+            @Override
+            public void onLine(String line) {
+                synchronized (steps)
+                {
+                    if (!line.startsWith(STEP_MARKER))
+                    {
+                        stepOutput.append(line).append('\n');
+                        return;
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    String[] parts = line.substring(STEP_MARKER.length()).trim().split(" ");
+                    int exitCode = (parts.length == 2) ? Integer.parseInt(parts[1]) : -1;
+                    steps.add(new Step(parts[0], now - stepStart[0], exitCode));
+                    if (exitCode != 0 && failure[0] == null)
+                    {
+                        failure[0] = parts[0] + " failed (exit " + exitCode + "): " + stepOutput.toString().trim();
+                    }
+                    stepOutput.setLength(0);
+                    stepStart[0] = now;
+                }
+            }
+        }, command);
+    }
+
+    /**
+     * Puts /system back to read-only after a batch that didn't finish - best effort.
+     */
+    private static Step remountReadOnly()
+    {
+        long start = SystemClock.elapsedRealtime();
+        int exitCode;
+        try {
+            exitCode = RootCommandExecutor.run(REMOUNT_RO_TIMEOUT_MS, false, REMOUNT_RO_COMMAND).exitCode;
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to remount /system read-only", e);
+            exitCode = -1;
+        }
+        return new Step(REMOUNT_RO_STEP + "_fallback", SystemClock.elapsedRealtime() - start, exitCode);
+    }
+
+    /**
+     * Copies the backup script out of our assets so the root shell can copy it into place.
+     */
+    private File extractBackupScript() throws IOException
+    {
+        File file = new File(mContext.getFilesDir(), BACKUP_SCRIPT_ASSET_NAME);
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = mContext.getAssets().open(BACKUP_SCRIPT_ASSET_NAME);
+            out = new FileOutputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+        } finally
+        {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+        file.setExecutable(true, false);
+        file.setReadable(true, false);
+        return file;
+    }
+
+    /**
+     * @return The file's SHA-256 in hex, or null if it doesn't exist or can't be read
+     */
+    static String sha256(File file)
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest())
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to hash " + file + ": " + e.getMessage());
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-256", e);
+        } finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws Exception
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static void fail(Result result, String message)
+    {
+        result.success = false;
+        result.message = message;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /** A value computed on the executor, and how long that took */
+    private static final class TimedValue<T> {
+        final T mValue;
+        final long mDurationMs;
+
+        TimedValue(T value, long startedAt)
+        {
+            mValue = value;
+            mDurationMs = SystemClock.elapsedRealtime() - startedAt;
+        }
+    }
+}
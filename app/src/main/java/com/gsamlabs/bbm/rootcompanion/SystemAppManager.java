@@ -0,0 +1,269 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.stericson.RootTools.RootTools;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Installs, verifies and uninstalls us as a system app, and reboots the
+ * device - with no UI, so it can be driven by {@link SystemAppUtilities} (which
+ * wraps it in progress and result dialogs) or headlessly by the
+ * {@link ProvisioningReceiver}.
+ *
+ * Every operation returns a {@link Result} rather than throwing.  All of them
+ * block - don't call them on the main thread.
+ */
+public class SystemAppManager {
+    private static final String TAG = "SystemAppManager";
+    private static final long REBOOT_TIMEOUT_MS = 20000;
+
+    /** The outcome of an operation */
+    public static final class Result {
+        public boolean success;
+        /** What went wrong, or a summary of what was done */
+        public String message;
+        /** The change only takes effect once the device is rebooted */
+        public boolean rebootRequired;
+        public long totalMs;
+        public final List<SystemAppInstaller.Step> steps = new ArrayList<SystemAppInstaller.Step>();
+    }
+
+    private final Context mContext;
+
+    public SystemAppManager(Context context)
+    {
+        mContext = context;
+    }
+
+    public static boolean hasBatteryStatsPermission(Context ctxt)
+    {
+        return (PackageManager.PERMISSION_GRANTED == ctxt.getPackageManager().checkPermission("android.permission.BATTERY_STATS", ctxt.getPackageName()));
+    }
+
+    /**
+     * Copies the apk into /system/priv-app/ (and the backup script into addon.d) - see
+     * {@link SystemAppInstaller}.
+     */
+    public Result install()
+    {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        if (checkRootAccess(result))
+        {
+            SystemAppInstaller.Result installed = new SystemAppInstaller(mContext).install();
+            result.steps.addAll(installed.steps);
+            result.success = installed.success;
+            result.message = installed.message;
+            // An identical APK may already be in place without having been picked up yet.
+            result.rebootRequired = installed.success && (!installed.apkUpToDate || !hasBatteryStatsPermission(mContext));
+        }
+        return finish(result, start);
+    }
+
+    /**
+     * Installs just the addon.d backup script - succeeds trivially if the ROM has no addon.d.
+     */
+    public Result installBackupScript()
+    {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        if (!new File(SystemAppInstaller.ADDON_DIR).isDirectory())
+        {
+            result.success = true;
+            result.message = "No addon.d";
+        } else if (checkRootAccess(result))
+        {
+            SystemAppInstaller.Result installed = new SystemAppInstaller(mContext).installBackupScript();
+            result.steps.addAll(installed.steps);
+            result.success = installed.success;
+            result.message = installed.message;
+        }
+        return finish(result, start);
+    }
+
+    /**
+     * Checks that the apk in /system/priv-app/ is exactly ours, and whether the
+     * system has picked it up yet (we hold BATTERY_STATS).  Doesn't need root.
+     */
+    public Result verify()
+    {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        long stepStart = SystemClock.elapsedRealtime();
+        String installed = SystemAppInstaller.sha256(new File(SystemAppInstaller.PRIV_APP_FILE));
+        String ours = SystemAppInstaller.sha256(new File(mContext.getApplicationInfo().sourceDir));
+        boolean matches = installed != null && installed.equals(ours);
+        result.steps.add(new SystemAppInstaller.Step("hash_installed_apk", SystemClock.elapsedRealtime() - stepStart, matches ? 0 : 1));
+        boolean active = hasBatteryStatsPermission(mContext);
+        if (installed == null)
+        {
+            result.message = SystemAppInstaller.PRIV_APP_FILE + " is not installed";
+        } else if (!matches)
+        {
+            result.message = SystemAppInstaller.PRIV_APP_FILE + " doesn't match this APK (sha256 " + installed + ")";
+        } else
+        {
+            result.success = true;
+            result.rebootRequired = !active;
+            result.message = active ? "Installed and active" : "Installed - reboot to activate";
+        }
+        return finish(result, start);
+    }
+
+    /**
+     * Removes the app from /system/priv-app and from /data/app/, and assets from
+     * /data/data/APP_NAME.  This leverages RootTools to handle the heavy lifting.
+     */
+    public Result uninstall()
+    {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        if (!checkRootAccess(result))
+        {
+            return finish(result, start);
+        }
+
+        // Delete /system/priv-app
+        // First try the 'properly' named one.  This is a hard-coded name:
+        boolean deletedPrivApp = delete(result, "delete_priv_app", SystemAppInstaller.PRIV_APP_FILE, true);
+        if (!deletedPrivApp)
+        {
+            // If that didn't work, we'll try to 'discover' it.  This works if we don't have any updates installed.
+            String apkLocation = getAPKName(false, true);
+            if (apkLocation == null)
+            {
+                result.message = "Unable to find the path to the APK.  Is it already uninsatlled?  Did you remember to reboot after uninstalling?  Current location appears to be: "
+                        + mContext.getApplicationInfo().sourceDir;
+                return finish(result, start);
+            }
+            if (apkLocation.isEmpty() || apkLocation.startsWith("."))
+            {
+                result.message = "Invalid APK location - this should NEVER happen.  Location: " + apkLocation;
+                return finish(result, start);
+            }
+            deletedPrivApp = delete(result, "delete_priv_app", "/system/priv-app/" + apkLocation, true);
+        }
+        if (deletedPrivApp)
+        {
+            // Now delete /data/app
+            String sourceDir = mContext.getApplicationInfo().sourceDir;
+            String dataAppDirectory = sourceDir.substring(0, sourceDir.lastIndexOf('/'));
+            if (dataAppDirectory.startsWith("/data/app/") &&
+                (dataAppDirectory.length() > "/data/app/".length()))
+            {
+                delete(result, "delete_data_app", dataAppDirectory, false);
+            }
+
+            // Now delete any files etc.
+            String dataDir = mContext.getApplicationInfo().dataDir;
+            if (dataDir.contains("gsamlabs"))
+            {
+                delete(result, "delete_data", dataDir, false);
+            }
+
+            // And any backup scripts
+            delete(result, "delete_script", SystemAppInstaller.ADDON_DIR + "/" + SystemAppInstaller.BACKUP_SCRIPT_ASSET_NAME, true);
+        }
+
+        if (hasBatteryStatsPermission(mContext) && !deletedPrivApp)
+        {
+            result.message = "Unable to delete the file: " + SystemAppInstaller.PRIV_APP_FILE;
+            return finish(result, start);
+        }
+        result.success = true;
+        result.rebootRequired = true;
+        result.message = "Uninstalled";
+        return finish(result, start);
+    }
+
+    /**
+     * Reboots the device. It uses the 'reboot' shell command instead of the fast restart
+     * This change was made because fast reboot doesn't work on some devices - notably the
+     * HTC One M8 - or rather it does work, but ends up taking 30 minutes and makes users
+     * panic that they bricked their phone - not cool.
+     */
+    public Result reboot()
+    {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        int exitCode;
+        try {
+            exitCode = RootCommandExecutor.run(REBOOT_TIMEOUT_MS, false, "reboot").exitCode;
+            result.message = (exitCode == 0) ? "Rebooting" : "reboot exited with " + exitCode;
+        } catch (Exception e) {
+            exitCode = -1;
+            result.message = "Unable to reboot: " + e.getMessage();
+        }
+        result.steps.add(new SystemAppInstaller.Step("reboot", SystemClock.elapsedRealtime() - start, exitCode));
+        result.success = (exitCode == 0);
+        return finish(result, start);
+    }
+
+    /**
+     * @return Whether we have root - if not, the result says so
+     */
+    private boolean checkRootAccess(Result result)
+    {
+        long start = SystemClock.elapsedRealtime();
+        boolean rootGiven = RootTools.isAccessGiven();
+        result.steps.add(new SystemAppInstaller.Step("root_check", SystemClock.elapsedRealtime() - start, rootGiven ? 0 : 1));
+        if (!rootGiven)
+        {
+            result.message = "Unable to obtain root access.  Please make sure you grant this app root authority";
+        }
+        return rootGiven;
+    }
+
+    private static boolean delete(Result result, String step, String path, boolean remountAsRw)
+    {
+        long start = SystemClock.elapsedRealtime();
+        boolean deleted = RootTools.deleteFileOrDirectory(path, remountAsRw);
+        Log.d(TAG, "Used RootTools to delete: "+path+".  Was it successful? "+deleted);
+        result.steps.add(new SystemAppInstaller.Step(step, SystemClock.elapsedRealtime() - start, deleted ? 0 : 1));
+        return deleted;
+    }
+
+    /**
+     * Returns the full name & path to the APK, but uses an optional wild-card
+     * since we don't know whether we are -1.apk, -2.apk, etc.
+     * @param includeFullPath If false, only the apk name will be returned
+     * @param doWildCard If true, we'll wildcard the -X.apk part as simply *
+     * @return The name, or null if we can't tell where the APK is
+     */
+    private String getAPKName(boolean includeFullPath, boolean doWildCard)
+    {
+        String fullPath = mContext.getApplicationInfo().sourceDir;
+        if (fullPath == null || fullPath.isEmpty() || (fullPath.lastIndexOf('/') == -1))
+        {
+            return null;
+        }
+        if (!includeFullPath)
+        {
+            fullPath = fullPath.substring(fullPath.lastIndexOf('/') + 1);
+        }
+        if (doWildCard)
+        {
+            int indexOfHyphen = fullPath.lastIndexOf('-');
+            if (indexOfHyphen > 0)
+            {
+                return fullPath.substring(0, indexOfHyphen) + "*";
+            }
+        }
+        return fullPath;
+    }
+
+    private static Result finish(Result result, long start)
+    {
+        result.totalMs = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, (result.success ? "Succeeded" : "Failed") + " in " + result.totalMs + "ms: "
+                + result.steps + " - " + result.message);
+        return result;
+    }
+}
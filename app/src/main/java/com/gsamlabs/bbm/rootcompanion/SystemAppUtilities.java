@@ -1,11 +1,5 @@
 package com.gsamlabs.bbm.rootcompanion;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
-import com.stericson.RootShell.execution.Command;
 import com.stericson.RootTools.RootTools;
 
 import android.app.AlertDialog;
@@ -14,64 +8,20 @@ import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
-import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 import android.util.Log;
 
 public class SystemAppUtilities {
     private static final String TAG = "SystemAppUtilities";
-    private static String privAppFile = "/system/priv-app/gsamrootcompanion.apk";
-    
-    private static final String backupScriptAssetName = "91-gsamrootcompanion_backup.sh";
-
-    private static void checkRootAccess() throws SystemAppManagementException
-    {
-        if (!RootTools.isAccessGiven())
-        {
-            throw new SystemAppManagementException("Unable to obtain root access.  Please make sure you grant this app root authority");
-        }
-    }
-    
- 
-    /**
-     * Returns the full name & path to the APK, but uses an optional wild-card
-     * since we don't know whether we are -1.apk, -2.apk, etc.
-     * @param ctxt
-     * @param includeFullPath If false, only the apk name will be returned
-     * @param doWildCard If true, we'll wildcard the -X.apk part as simply *
-     * @return
-     * @throws SystemAppManagementException 
-     */
-    private static String getAPKName(Context ctxt, boolean includeFullPath, boolean doWildCard) throws SystemAppManagementException
-    {
-        String fullPath = ctxt.getApplicationInfo().sourceDir;
-        if (fullPath.isEmpty() || (fullPath.lastIndexOf('/') == -1))
-        {
-        	throw new SystemAppManagementException("Unable to find the path to the APK.  Is it already uninsatlled?  Did you remember to reboot after uninstalling?  Current location appears to be: "+fullPath);
-        }
-        if (!includeFullPath)
-        {
-            fullPath = fullPath.substring(fullPath.lastIndexOf('/') + 1);
-        }
-        if (doWildCard)
-        {
-            int indexOfHyphen = fullPath.lastIndexOf('-');
-            if (indexOfHyphen > 0)
-            {
-                return fullPath.substring(0, indexOfHyphen) + "*";
-            }
-        }
-        return fullPath;
-    }
     
     public static boolean hasBatteryStatsPermission(Context ctxt)
     {
-        return (PackageManager.PERMISSION_GRANTED == ctxt.getPackageManager().checkPermission("android.permission.BATTERY_STATS", ctxt.getPackageName()));
+        return SystemAppManager.hasBatteryStatsPermission(ctxt);
     }
     
     /**
-     * Does the work to copy the apk into /system/priv-app/.  This leverages RootTools
-     * to handle the heavy lifting.
+     * Does the work to copy the apk into /system/priv-app/ - through the
+     * {@link SystemAppManager}, with a progress dialog.
      * 
      * It prompts for a reboot when done.
      * @param ctxt
@@ -92,38 +42,12 @@ public class SystemAppUtilities {
     		
 			@Override
 			protected Boolean doInBackground(Void... params) {
-				// Verify we do have root
-		        try {
-					checkRootAccess();
-				} catch (SystemAppManagementException e) {
-					error = e;
-					return false;
-				}
-		        
-		        // Copy the file to /system/priv-app
-		        String currentFile;
-				try {
-					currentFile = getAPKName(ctxt, true, false);
-				} catch (SystemAppManagementException e) {
-					error = e;
-					return false;
-				}
-		        boolean copiedApp = RootTools.copyFile(currentFile, privAppFile, true, true);
-		        Log.d(TAG, "Used RootTools to copy app from: "+currentFile+", to: "+privAppFile+".  Was it successful? "+copiedApp);
-
-		        if (!copiedApp)
+		        SystemAppManager.Result result = new SystemAppManager(ctxt).install();
+		        if (!result.success)
 		        {
-		            error = new SystemAppManagementException("Unable to copy the file \""+currentFile+"\" to \""+privAppFile+"\".  You may need to try this manually using a tool such as Root Explorer.");
+		            error = new SystemAppManagementException(result.message);
 		            return false;
 		        }
-
-		        // Install the backup script if any...
-		        try {
-					installBackupScript(ctxt);
-				} catch (SystemAppManagementException e) {
-					error = e;
-					return false;
-				}
 		        
 		        return true;
 			}
@@ -167,61 +91,11 @@ public class SystemAppUtilities {
      */
     public static void installBackupScript(Context ctxt) throws SystemAppManagementException
     {
-        File addonDir = new File("/system/addon.d");
-        if (addonDir.exists() && addonDir.isDirectory())
+        SystemAppManager.Result result = new SystemAppManager(ctxt).installBackupScript();
+        if (!result.success)
         {
-            // Verify we do have root
-            checkRootAccess();
-            
-            // First copy the file out of our assets so we can use roottools to copy it into the filesystem.
-            InputStream in = null;
-            FileOutputStream fos = null;
-            try {
-                in = ctxt.getAssets().open(backupScriptAssetName);
-                fos = ctxt.openFileOutput(backupScriptAssetName, Context.MODE_PRIVATE);                
-                
-                byte[] buffer = new byte[1024];
-                int read;
-                while((read = in.read(buffer)) != -1){
-                    fos.write(buffer, 0, read);
-                }            
-            } catch (IOException e) 
-            {
-                Log.e(TAG, "Yikes - can't create asset file - this should never happen...", e);
-                throw new SystemAppManagementException("Unable to install backup script - this is probably OK.  Failed creating local asset file.");
-            } finally 
-            {
-                if (in != null)
-                {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        // Ignore
-                    }
-                }
-                if (fos != null)
-                {
-                    try {
-                        fos.close();
-                    } catch (IOException e) {
-                        // Ignore
-                    }
-                }
-            }
-            
-            // Copy the file to /system/addon.d
-            String backupFile = addonDir.getAbsolutePath() + "/"+ backupScriptAssetName;
-            String currentFile = ctxt.getFilesDir() + "/"+ backupScriptAssetName;
-            // Set the asset file to executable so copyFile will maintain that
-            new File(currentFile).setExecutable(true, false);
-            boolean copiedFile = RootTools.copyFile(currentFile, backupFile, true, true);
-            Log.d(TAG, "Used RootTools to copy file from: "+currentFile+", to: "+backupFile+".  Was it successful? "+copiedFile);
-
-            if (!copiedFile)
-            {
-                throw new SystemAppManagementException("Unable to copy the file \""+currentFile+"\" to \""+backupFile+"\".  You may need to try this manually using a tool such as Root Explorer.");
-            }
-        }        
+            throw new SystemAppManagementException("Unable to install backup script - this is probably OK.  " + result.message);
+        }
     }
     
     /**
@@ -245,27 +119,7 @@ public class SystemAppUtilities {
     		
 			@Override
 			protected Boolean doInBackground(Void... params) {
-				Command command = new Command(0, "reboot");
-		        boolean showError = false;
-		        try {
-		            RootTools.getShell(true).add(command);
-		        } catch (Exception e) {
-		            showError = true;
-		        }
-		        int count = 0;
-		        while(!command.isFinished() && (count < 40) && !showError)
-		        {
-		            try {
-		                Thread.sleep(500);
-		            } catch (Exception e){};
-		            ++count;
-		        }
-		        if (showError || (command.getExitCode() != 0))
-		        {
-		        	return false;
-		        }
-		        
-		        return true;
+				return new SystemAppManager(ctxt).reboot().success;
 			}
 
     		@Override
@@ -300,9 +154,8 @@ public class SystemAppUtilities {
     }
 
     /**
-     * Does the work to uninstall the app and all associated assets.  This removes
-     * the app from /system/priv-app and from /data/app/, and assets from /data/data/APP_NAME
-     * This leverages RootTools to handle the heavy lifting.
+     * Does the work to uninstall the app and all associated assets - through the
+     * {@link SystemAppManager}, with a progress dialog.
      * 
      * It prompts for a reboot when done.
      * @param ctxt
@@ -324,65 +177,10 @@ public class SystemAppUtilities {
     		
 			@Override
 			protected Boolean doInBackground(Void... params) {
-				 // Verify we do have root
-		        try {
-					checkRootAccess();
-				} catch (SystemAppManagementException e) {
-					error = e;
-					return false;
-				}
-		        		        
-		        // Delete /system/priv-app
-		        // First try the 'properly' named one.  This is a hard-coded name:
-		        boolean deletedPrivApp = RootTools.deleteFileOrDirectory(privAppFile, true);
-		        Log.d(TAG, "Used RootTools to delete app from: "+privAppFile+".  Was it successful? "+deletedPrivApp);
-		        
-		        if (!deletedPrivApp)
-		        {		        
-		        	// If that didn't work, we'll try to 'discover' it.  This works if we don't have any updates installed.
-		        	String apkLocation;
-					try {
-						apkLocation = getAPKName(ctxt, false, true);
-						if (apkLocation.isEmpty() || apkLocation.startsWith("."))
-						{
-							throw new SystemAppManagementException("Invalid APK location - this should NEVER happen.  Location: "+apkLocation);
-						}
-					} catch (SystemAppManagementException e) {
-						error = e;
-						return false;
-					}
-		        	String otherPathToPrivAppFile = "/system/priv-app/"+apkLocation;
-		        	deletedPrivApp = RootTools.deleteFileOrDirectory(otherPathToPrivAppFile, true);
-		        	Log.d(TAG, "Used RootTools to delete app from: "+otherPathToPrivAppFile+".  Was it successful? "+deletedPrivApp);
-		        }
-		        if (deletedPrivApp)
-		        {
-		        	// Now delete /data/app
-		        	String dataAppDirectory = ctxt.getApplicationInfo().sourceDir.substring(0, ctxt.getApplicationInfo().sourceDir.lastIndexOf('/'));
-		        	if (dataAppDirectory.startsWith("/data/app/") && 
-		        		(dataAppDirectory.length() > "/data/app/".length()))
-		        	{
-		        		boolean deletedDataApp = RootTools.deleteFileOrDirectory(dataAppDirectory, false);
-		        		Log.d(TAG, "Used RootTools to delete app from: "+dataAppDirectory+".  Was it successful? "+deletedDataApp);
-		        	}
-
-		        	// Now delete any files etc.
-		        	String dataDir = ctxt.getApplicationInfo().dataDir;
-		        	if (dataDir.contains("gsamlabs"))
-		        	{
-		        		boolean deletedDataDir = RootTools.deleteFileOrDirectory(ctxt.getApplicationInfo().dataDir, false);
-		        		Log.d(TAG, "Used RootTools to delete data from: "+ctxt.getApplicationInfo().dataDir+".  Was it successful? "+deletedDataDir);
-		        	}
-
-		        	// And any backup scripts
-		        	String backupScript = "/system/addon.d/"+backupScriptAssetName;        
-		        	boolean deletedBackupScripts = RootTools.deleteFileOrDirectory(backupScript, true);
-		        	Log.d(TAG, "Used RootTools to delete backup script from: "+backupScript+".  Was it successful? "+deletedBackupScripts);
-		        }
-		        
-		        if (hasBatteryStatsPermission(ctxt) && !deletedPrivApp)
+		        SystemAppManager.Result result = new SystemAppManager(ctxt).uninstall();
+		        if (!result.success)
 		        {
-		            error = new SystemAppManagementException("Unable to delete the file: "+privAppFile);
+		            error = new SystemAppManagementException(result.message);
 		            return false;
 		        }
 		        return true;
@@ -0,0 +1,84 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Per wakeup source deltas recorded by the {@link WakelockSampler}, as
+ * parallel arrays, oldest first.  Each entry is the change in one wakeup
+ * source between two consecutive samples; sources that didn't change
+ * aren't recorded.
+ *
+ * Timestamps are SystemClock.elapsedRealtime() values.  If oldestTimestamp
+ * is later than the sinceTimestamp you asked for, the ring buffer has wrapped
+ * and some deltas were lost.  Name handling is as for {@link WakeupSourceTable}.
+ */
+public class WakelockHistory implements Parcelable {
+    public long namesVersion;
+    /** All names seen so far, indexed by name id - or null if unchanged. */
+    public String[] names;
+    /** The oldest sample still held by the service (0 if none) */
+    public long oldestTimestamp;
+    /** The interval currently being sampled at in ms - which may be longer than the one set (0 if sampling is off) */
+    public long intervalMs;
+    public int count;
+    public long[] timestamps;
+    public int[] nameIds;
+    public long[] activeCountDeltas;
+    public long[] wakeupCountDeltas;
+    /** Change in total active time, in ms */
+    public long[] totalTimeDeltas;
+
+    public WakelockHistory()
+    {
+    }
+
+    private WakelockHistory(Parcel in)
+    {
+        namesVersion = in.readLong();
+        names = in.createStringArray();
+        oldestTimestamp = in.readLong();
+        intervalMs = in.readLong();
+        count = in.readInt();
+        timestamps = in.createLongArray();
+        nameIds = in.createIntArray();
+        activeCountDeltas = in.createLongArray();
+        wakeupCountDeltas = in.createLongArray();
+        totalTimeDeltas = in.createLongArray();
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeLong(namesVersion);
+        dest.writeStringArray(names);
+        dest.writeLong(oldestTimestamp);
+        dest.writeLong(intervalMs);
+        dest.writeInt(count);
+        dest.writeLongArray(timestamps);
+        dest.writeIntArray(nameIds);
+        dest.writeLongArray(activeCountDeltas);
+        dest.writeLongArray(wakeupCountDeltas);
+        dest.writeLongArray(totalTimeDeltas);
+    }
+
+    public static final Parcelable.Creator<WakelockHistory> CREATOR = new Parcelable.Creator<WakelockHistory>() {
+        @Override
+        public WakelockHistory createFromParcel(Parcel in)
+        {
+            return new WakelockHistory(in);
+        }
+
+        @Override
+        public WakelockHistory[] newArray(int size)
+        {
+            return new WakelockHistory[size];
+        }
+    };
+}
@@ -0,0 +1,266 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Samples the kernel wakeup_sources table on a background thread at a
+ * configurable interval and records, per sample, the change in each
+ * wakeup source that changed.  The deltas live in a fixed size ring of
+ * primitive arrays, so clients can fetch just what happened since their
+ * last call rather than diffing whole dumps themselves.
+ *
+ * Sampling is driven by a {@link SamplingScheduler}, which never wakes the
+ * device up to sample (time asleep simply shows up in the next delta) and
+ * stretches the interval on battery when the screen is off or nothing is
+ * changing.  Sampling is off - no alarms, nothing registered - until an
+ * interval is set, and while paused (no clients are bound).
+ */
+public class WakelockSampler {
+    private static final String TAG = "WakelockSampler";
+
+    /** Supplies the raw wakeup_sources content. */
+    public interface Source {
+        byte[] read();
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final long MIN_INTERVAL_MS = 1000;
+
+    private final Source mSource;
+    private final WakeupSourcesParser mParser;
+    private final HandlerThread mThread;
+    private final SamplingScheduler mScheduler;
+    // Guarded by 'this'
+    private long mIntervalMs = 0;
+    private boolean mPaused = false;
+
+    // Previous values, indexed by name id.  Only touched on the sampler thread.
+    private long[] mPrevActiveCounts = new long[0];
+    private long[] mPrevWakeupCounts = new long[0];
+    private long[] mPrevTotalTimes = new long[0];
+    private boolean mHaveBaseline = false;
+    // Set on resume, so the next sample on the sampler thread drops the stale baseline
+    private volatile boolean mResetBaseline = false;
+
+    // The ring buffer - guarded by 'this'
+    private final long[] mTimestamps;
+    private final int[] mNameIds;
+    private final long[] mActiveCountDeltas;
+    private final long[] mWakeupCountDeltas;
+    private final long[] mTotalTimeDeltas;
+    private int mNext = 0;
+    private int mSize = 0;
+
+    /**
+     * @param source Where to read wakeup_sources from
+     * @param parser The parser to use - shared so name ids match getWakeupSources.
+     * Access is synchronized on it.
+     * @param capacity How many (sample, wakeup source) deltas to keep
+     */
+    public WakelockSampler(Context context, Source source, WakeupSourcesParser parser, int capacity)
+    {
+        mSource = source;
+        mParser = parser;
+        mTimestamps = new long[capacity];
+        mNameIds = new int[capacity];
+        mActiveCountDeltas = new long[capacity];
+        mWakeupCountDeltas = new long[capacity];
+        mTotalTimeDeltas = new long[capacity];
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mScheduler = new SamplingScheduler(context, TAG, new SamplingScheduler.Task() {
+            @Override
+            public boolean run() {
+                return sample();
+            }
+        }, new Handler(mThread.getLooper()));
+    }
+
+    /**
+     * Starts, reschedules or (with 0) stops sampling.
+     * @param intervalMs The base sampling interval; values below MIN_INTERVAL_MS are raised to it.
+     * The scheduler may sample less often than this - see {@link SamplingScheduler}.
+     */
+    public synchronized void setInterval(long intervalMs)
+    {
+        mIntervalMs = (intervalMs <= 0) ? 0 : Math.max(intervalMs, MIN_INTERVAL_MS);
+        updateSchedulerLocked();
+    }
+
+    /**
+     * @return The interval set, even while paused
+     */
+    public synchronized long getInterval()
+    {
+        return mIntervalMs;
+    }
+
+    /**
+     * Pauses sampling while nobody is around to fetch the history, without
+     * forgetting the interval.  The first sample after resuming only takes a
+     * new baseline, rather than recording everything since the pause as one delta.
+     */
+    public synchronized void setPaused(boolean paused)
+    {
+        if (mPaused && !paused)
+        {
+            mResetBaseline = true;
+        }
+        mPaused = paused;
+        updateSchedulerLocked();
+    }
+
+    private void updateSchedulerLocked()
+    {
+        mScheduler.setBaseInterval(mPaused ? 0 : mIntervalMs);
+    }
+
+    /**
+     * @see SamplingScheduler#getStats()
+     */
+    public long[] getSchedulerStats()
+    {
+        return mScheduler.getStats();
+    }
+
+    public void dump(PrintWriter pw)
+    {
+        mScheduler.dump(pw, "Wakelock");
+    }
+
+    public void shutdown()
+    {
+        mScheduler.stop();
+        mThread.quit();
+    }
+
+    /**
+     * @param sinceTimestamp Only deltas sampled after this elapsedRealtime are returned
+     * @param knownNamesVersion The names version the client has, or -1
+     * @return The matching deltas, oldest first
+     */
+    public WakelockHistory getHistory(long sinceTimestamp, long knownNamesVersion)
+    {
+        WakelockHistory history = new WakelockHistory();
+        synchronized (this)
+        {
+            int first = (mNext - mSize + mTimestamps.length) % mTimestamps.length;
+            history.oldestTimestamp = (mSize > 0) ? mTimestamps[first] : 0;
+            history.intervalMs = mScheduler.getCurrentInterval();
+            int count = 0;
+            for (int i = 0; i < mSize; i++)
+            {
+                if (mTimestamps[(first + i) % mTimestamps.length] > sinceTimestamp)
+                {
+                    count = mSize - i;
+                    break;
+                }
+            }
+            history.count = count;
+            history.timestamps = new long[count];
+            history.nameIds = new int[count];
+            history.activeCountDeltas = new long[count];
+            history.wakeupCountDeltas = new long[count];
+            history.totalTimeDeltas = new long[count];
+            int start = (mNext - count + mTimestamps.length) % mTimestamps.length;
+            for (int i = 0; i < count; i++)
+            {
+                int index = (start + i) % mTimestamps.length;
+                history.timestamps[i] = mTimestamps[index];
+                history.nameIds[i] = mNameIds[index];
+                history.activeCountDeltas[i] = mActiveCountDeltas[index];
+                history.wakeupCountDeltas[i] = mWakeupCountDeltas[index];
+                history.totalTimeDeltas[i] = mTotalTimeDeltas[index];
+            }
+        }
+        synchronized (mParser)
+        {
+            history.namesVersion = mParser.getNamesVersion();
+            history.names = (knownNamesVersion != history.namesVersion) ? mParser.getNames() : null;
+        }
+        return history;
+    }
+
+    /**
+     * @return Whether any wakeup source changed since the last sample
+     */
+    private boolean sample()
+    {
+        if (mResetBaseline)
+        {
+            mResetBaseline = false;
+            mHaveBaseline = false;
+        }
+        byte[] content = mSource.read();
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mParser)
+        {
+            if (!mParser.parse(content, content.length))
+            {
+                Log.d(TAG, "Unable to parse wakeup sources - skipping sample");
+                return false;
+            }
+            int count = mParser.getCount();
+            int[] ids = mParser.getNameIds();
+            long[] activeCounts = mParser.getActiveCounts();
+            long[] wakeupCounts = mParser.getWakeupCounts();
+            long[] totalTimes = mParser.getTotalTimes();
+            boolean changed = false;
+            for (int row = 0; row < count; row++)
+            {
+                int id = ids[row];
+                if (id >= mPrevActiveCounts.length)
+                {
+                    int newSize = Math.max(id + 1, mPrevActiveCounts.length * 2);
+                    mPrevActiveCounts = Arrays.copyOf(mPrevActiveCounts, newSize);
+                    mPrevWakeupCounts = Arrays.copyOf(mPrevWakeupCounts, newSize);
+                    mPrevTotalTimes = Arrays.copyOf(mPrevTotalTimes, newSize);
+                }
+                long activeDelta = delta(activeCounts[row], mPrevActiveCounts[id]);
+                long wakeupDelta = delta(wakeupCounts[row], mPrevWakeupCounts[id]);
+                long totalTimeDelta = delta(totalTimes[row], mPrevTotalTimes[id]);
+                mPrevActiveCounts[id] = activeCounts[row];
+                mPrevWakeupCounts[id] = wakeupCounts[row];
+                mPrevTotalTimes[id] = totalTimes[row];
+                if (mHaveBaseline && (activeDelta != 0 || wakeupDelta != 0 || totalTimeDelta != 0))
+                {
+                    record(now, id, activeDelta, wakeupDelta, totalTimeDelta);
+                    changed = true;
+                }
+            }
+            mHaveBaseline = true;
+            return changed;
+        }
+    }
+
+    /**
+     * Counters only go backwards if the source was removed and re-added - in
+     * which case everything it has now is new.
+     */
+    private static long delta(long current, long previous)
+    {
+        return (current >= previous) ? current - previous : current;
+    }
+
+    private synchronized void record(long timestamp, int nameId, long activeDelta, long wakeupDelta, long totalTimeDelta)
+    {
+        mTimestamps[mNext] = timestamp;
+        mNameIds[mNext] = nameId;
+        mActiveCountDeltas[mNext] = activeDelta;
+        mWakeupCountDeltas[mNext] = wakeupDelta;
+        mTotalTimeDeltas[mNext] = totalTimeDelta;
+        mNext = (mNext + 1) % mTimestamps.length;
+        if (mSize < mTimestamps.length)
+        {
+            mSize++;
+        }
+    }
+}
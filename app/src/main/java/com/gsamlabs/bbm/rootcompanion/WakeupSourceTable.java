@@ -0,0 +1,115 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.Arrays;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The parsed kernel wakeup_sources table, as parallel arrays - one entry per
+ * wakeup source.  nameIds index into the names array.
+ *
+ * The names array is only filled in when the client's known names version
+ * differs from namesVersion; otherwise it is null and the client should keep
+ * using the names it received previously (ids are stable).
+ */
+public class WakeupSourceTable implements Parcelable {
+    public long namesVersion;
+    /** All names seen so far, indexed by name id - or null if unchanged. */
+    public String[] names;
+    public int count;
+    public int[] nameIds;
+    public long[] activeCounts;
+    public long[] eventCounts;
+    public long[] wakeupCounts;
+    /** Total time active, in ms */
+    public long[] totalTimes;
+    /** Longest single activation, in ms */
+    public long[] maxTimes;
+
+    public WakeupSourceTable()
+    {
+    }
+
+    /**
+     * Snapshots the parser's current results.
+     * @param parser The parser, holding a successful parse
+     * @param includeNames Whether to include the name table
+     */
+    WakeupSourceTable(WakeupSourcesParser parser, boolean includeNames)
+    {
+        count = parser.getCount();
+        namesVersion = parser.getNamesVersion();
+        names = includeNames ? parser.getNames() : null;
+        nameIds = Arrays.copyOf(parser.getNameIds(), count);
+        activeCounts = Arrays.copyOf(parser.getActiveCounts(), count);
+        eventCounts = Arrays.copyOf(parser.getEventCounts(), count);
+        wakeupCounts = Arrays.copyOf(parser.getWakeupCounts(), count);
+        totalTimes = Arrays.copyOf(parser.getTotalTimes(), count);
+        maxTimes = Arrays.copyOf(parser.getMaxTimes(), count);
+    }
+
+    /**
+     * @return A copy sharing this table's arrays, but without the names.
+     */
+    WakeupSourceTable withoutNames()
+    {
+        WakeupSourceTable copy = new WakeupSourceTable();
+        copy.namesVersion = namesVersion;
+        copy.count = count;
+        copy.nameIds = nameIds;
+        copy.activeCounts = activeCounts;
+        copy.eventCounts = eventCounts;
+        copy.wakeupCounts = wakeupCounts;
+        copy.totalTimes = totalTimes;
+        copy.maxTimes = maxTimes;
+        return copy;
+    }
+
+    private WakeupSourceTable(Parcel in)
+    {
+        namesVersion = in.readLong();
+        names = in.createStringArray();
+        count = in.readInt();
+        nameIds = in.createIntArray();
+        activeCounts = in.createLongArray();
+        eventCounts = in.createLongArray();
+        wakeupCounts = in.createLongArray();
+        totalTimes = in.createLongArray();
+        maxTimes = in.createLongArray();
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeLong(namesVersion);
+        dest.writeStringArray(names);
+        dest.writeInt(count);
+        dest.writeIntArray(nameIds);
+        dest.writeLongArray(activeCounts);
+        dest.writeLongArray(eventCounts);
+        dest.writeLongArray(wakeupCounts);
+        dest.writeLongArray(totalTimes);
+        dest.writeLongArray(maxTimes);
+    }
+
+    public static final Parcelable.Creator<WakeupSourceTable> CREATOR = new Parcelable.Creator<WakeupSourceTable>() {
+        @Override
+        public WakeupSourceTable createFromParcel(Parcel in)
+        {
+            return new WakeupSourceTable(in);
+        }
+
+        @Override
+        public WakeupSourceTable[] newArray(int size)
+        {
+            return new WakeupSourceTable[size];
+        }
+    };
+}
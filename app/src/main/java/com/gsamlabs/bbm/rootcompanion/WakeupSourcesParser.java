@@ -0,0 +1,436 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import java.util.Arrays;
+
+/**
+ * Parses the kernel's wakeup_sources table (/sys/kernel/debug/wakeup_sources)
+ * straight from the raw bytes into parallel primitive arrays.
+ *
+ * Columns are located through the header line, so the differences between
+ * kernel versions (prevent_suspend_time only on newer kernels, spacing etc.)
+ * don't matter - missing columns simply read as 0.  A row's values are
+ * taken from the end of the line, one per header column, and the name is
+ * whatever comes before them - so names with spaces or tabs in them parse
+ * intact.  Source names are
+ * interned into ids that stay stable for the life of the parser, and the
+ * name table only grows (and bumps {@link #getNamesVersion()}) when a
+ * source we haven't seen before shows up.
+ *
+ * Once the arrays and name table have warmed up, parsing allocates nothing.
+ * Not thread safe - callers must synchronize.  This class has no android
+ * dependencies.
+ */
+public class WakeupSourcesParser {
+    private static final byte[] COL_NAME = bytes("name");
+    private static final byte[] COL_ACTIVE_COUNT = bytes("active_count");
+    private static final byte[] COL_EVENT_COUNT = bytes("event_count");
+    private static final byte[] COL_WAKEUP_COUNT = bytes("wakeup_count");
+    private static final byte[] COL_TOTAL_TIME = bytes("total_time");
+    private static final byte[] COL_MAX_TIME = bytes("max_time");
+
+    private static final int FIELD_ACTIVE_COUNT = 0;
+    private static final int FIELD_EVENT_COUNT = 1;
+    private static final int FIELD_WAKEUP_COUNT = 2;
+    private static final int FIELD_TOTAL_TIME = 3;
+    private static final int FIELD_MAX_TIME = 4;
+    private static final int FIELD_COUNT = 5;
+    private static final int MAX_COLUMNS = 32;
+
+    /** For each column in the file, which field it maps to (or -1). */
+    private final int[] mColumnFields = new int[MAX_COLUMNS];
+    /** How many columns the header has, including any past MAX_COLUMNS */
+    private int mColumnCount;
+
+    private int mCount;
+    private int[] mNameIds = new int[64];
+    private long[] mActiveCounts = new long[64];
+    private long[] mEventCounts = new long[64];
+    private long[] mWakeupCounts = new long[64];
+    private long[] mTotalTimes = new long[64];
+    private long[] mMaxTimes = new long[64];
+
+    private final NameTable mNames;
+
+    /**
+     * @param initialNamesVersion Starting point for the names version.  Using
+     * something time based means a restarted service won't reuse a version
+     * a client may still hold.
+     */
+    public WakeupSourcesParser(long initialNamesVersion)
+    {
+        mNames = new NameTable(initialNamesVersion);
+    }
+
+    /**
+     * Parses the table, replacing the results of any previous parse.
+     * @param data The raw file content
+     * @param len How many bytes of data are valid
+     * @return false if no header line was found (e.g. it's not a wakeup_sources file)
+     */
+    public boolean parse(byte[] data, int len)
+    {
+        mCount = 0;
+        int pos = 0;
+
+        // Header line - map each column to one of our fields
+        int lineEnd = indexOf(data, pos, len, (byte)'\n');
+        int column = 0;
+        boolean foundName = false;
+        Arrays.fill(mColumnFields, -1);
+        while (pos < lineEnd)
+        {
+            pos = skipWhitespace(data, pos, lineEnd);
+            if (pos >= lineEnd)
+            {
+                break;
+            }
+            int end = skipToken(data, pos, lineEnd);
+            if (column == 0)
+            {
+                foundName = matches(data, pos, end, COL_NAME);
+            } else if (column < MAX_COLUMNS)
+            {
+                mColumnFields[column] = fieldFor(data, pos, end);
+            }
+            column++;
+            pos = end;
+        }
+        if (!foundName)
+        {
+            return false;
+        }
+        mColumnCount = column;
+        pos = lineEnd + 1;
+
+        while (pos < len)
+        {
+            lineEnd = indexOf(data, pos, len, (byte)'\n');
+            int nameEnd = valuesStart(data, pos, lineEnd, mColumnCount - 1);
+            if (nameEnd < 0)
+            {
+                // Fewer values than the header promised (a truncated read, say) -
+                // fall back to the name running up to the first tab.
+                nameEnd = indexOf(data, pos, lineEnd, (byte)'\t');
+                if (nameEnd == lineEnd)
+                {
+                    nameEnd = skipToken(data, pos, lineEnd);
+                }
+            }
+            // Older kernels pad the name with spaces before the tab
+            int trimmedEnd = nameEnd;
+            while (trimmedEnd > pos && isWhitespace(data[trimmedEnd - 1]))
+            {
+                trimmedEnd--;
+            }
+            if (trimmedEnd > pos)
+            {
+                ensureCapacity(mCount + 1);
+                int row = mCount++;
+                mNameIds[row] = mNames.intern(data, pos, trimmedEnd);
+                mActiveCounts[row] = 0;
+                mEventCounts[row] = 0;
+                mWakeupCounts[row] = 0;
+                mTotalTimes[row] = 0;
+                mMaxTimes[row] = 0;
+
+                int fieldPos = nameEnd;
+                column = 1;
+                while (fieldPos < lineEnd && column < MAX_COLUMNS)
+                {
+                    fieldPos = skipWhitespace(data, fieldPos, lineEnd);
+                    if (fieldPos >= lineEnd)
+                    {
+                        break;
+                    }
+                    int end = skipToken(data, fieldPos, lineEnd);
+                    int field = mColumnFields[column];
+                    if (field >= 0)
+                    {
+                        store(row, field, parseLong(data, fieldPos, end));
+                    }
+                    column++;
+                    fieldPos = end;
+                }
+            }
+            pos = lineEnd + 1;
+        }
+        return true;
+    }
+
+    public int getCount()
+    {
+        return mCount;
+    }
+
+    public int[] getNameIds()
+    {
+        return mNameIds;
+    }
+
+    public long[] getActiveCounts()
+    {
+        return mActiveCounts;
+    }
+
+    public long[] getEventCounts()
+    {
+        return mEventCounts;
+    }
+
+    public long[] getWakeupCounts()
+    {
+        return mWakeupCounts;
+    }
+
+    public long[] getTotalTimes()
+    {
+        return mTotalTimes;
+    }
+
+    public long[] getMaxTimes()
+    {
+        return mMaxTimes;
+    }
+
+    /**
+     * Changes whenever a new name is interned.
+     */
+    public long getNamesVersion()
+    {
+        return mNames.mVersion;
+    }
+
+    /**
+     * @return Every name seen so far, indexed by name id.
+     */
+    public String[] getNames()
+    {
+        return mNames.toArray();
+    }
+
+    private void store(int row, int field, long value)
+    {
+        switch (field)
+        {
+        case FIELD_ACTIVE_COUNT:
+            mActiveCounts[row] = value;
+            break;
+        case FIELD_EVENT_COUNT:
+            mEventCounts[row] = value;
+            break;
+        case FIELD_WAKEUP_COUNT:
+            mWakeupCounts[row] = value;
+            break;
+        case FIELD_TOTAL_TIME:
+            mTotalTimes[row] = value;
+            break;
+        case FIELD_MAX_TIME:
+            mMaxTimes[row] = value;
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void ensureCapacity(int size)
+    {
+        if (size > mNameIds.length)
+        {
+            int newSize = Math.max(size, mNameIds.length * 2);
+            mNameIds = Arrays.copyOf(mNameIds, newSize);
+            mActiveCounts = Arrays.copyOf(mActiveCounts, newSize);
+            mEventCounts = Arrays.copyOf(mEventCounts, newSize);
+            mWakeupCounts = Arrays.copyOf(mWakeupCounts, newSize);
+            mTotalTimes = Arrays.copyOf(mTotalTimes, newSize);
+            mMaxTimes = Arrays.copyOf(mMaxTimes, newSize);
+        }
+    }
+
+    private static int fieldFor(byte[] data, int start, int end)
+    {
+        if (matches(data, start, end, COL_ACTIVE_COUNT)) return FIELD_ACTIVE_COUNT;
+        if (matches(data, start, end, COL_EVENT_COUNT)) return FIELD_EVENT_COUNT;
+        if (matches(data, start, end, COL_WAKEUP_COUNT)) return FIELD_WAKEUP_COUNT;
+        if (matches(data, start, end, COL_TOTAL_TIME)) return FIELD_TOTAL_TIME;
+        if (matches(data, start, end, COL_MAX_TIME)) return FIELD_MAX_TIME;
+        return -1;
+    }
+
+    private static boolean matches(byte[] data, int start, int end, byte[] expected)
+    {
+        if (end - start != expected.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++)
+        {
+            if (data[start + i] != expected[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseLong(byte[] data, int start, int end)
+    {
+        long value = 0;
+        boolean negative = (start < end && data[start] == '-');
+        for (int i = negative ? start + 1 : start; i < end; i++)
+        {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9)
+            {
+                break;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (data[i] == b)
+            {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Finds where the last count whitespace separated values of a line start.
+     * @return Their start, or -1 if the line doesn't have a non-empty name
+     * before that many values
+     */
+    private static int valuesStart(byte[] data, int start, int end, int count)
+    {
+        int pos = end;
+        for (int i = 0; i < count; i++)
+        {
+            while (pos > start && isWhitespace(data[pos - 1]))
+            {
+                pos--;
+            }
+            while (pos > start && !isWhitespace(data[pos - 1]))
+            {
+                pos--;
+            }
+        }
+        return (pos > start && isWhitespace(data[pos - 1])) ? pos : -1;
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static int skipWhitespace(byte[] data, int pos, int end)
+    {
+        while (pos < end && isWhitespace(data[pos]))
+        {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipToken(byte[] data, int pos, int end)
+    {
+        while (pos < end && !isWhitespace(data[pos]))
+        {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        byte[] result = new byte[s.length()];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = (byte) s.charAt(i);
+        }
+        return result;
+    }
+
+    /**
+     * Open-addressed table interning names straight from byte ranges, so a
+     * name we've already seen costs a hash and a compare - no String.
+     */
+    private static final class NameTable {
+        private byte[][] mBytes = new byte[64][];
+        private String[] mStrings = new String[64];
+        private int[] mSlots = new int[128]; // id + 1, 0 = empty
+        private int mSize = 0;
+        long mVersion;
+
+        NameTable(long initialVersion)
+        {
+            mVersion = initialVersion;
+        }
+
+        int intern(byte[] data, int start, int end)
+        {
+            int hash = hash(data, start, end);
+            int mask = mSlots.length - 1;
+            int slot = hash & mask;
+            while (mSlots[slot] != 0)
+            {
+                int id = mSlots[slot] - 1;
+                if (matches(data, start, end, mBytes[id]))
+                {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int id = mSize++;
+            if (id == mBytes.length)
+            {
+                mBytes = Arrays.copyOf(mBytes, id * 2);
+                mStrings = Arrays.copyOf(mStrings, id * 2);
+            }
+            mBytes[id] = Arrays.copyOfRange(data, start, end);
+            mStrings[id] = new String(mBytes[id]);
+            mSlots[slot] = id + 1;
+            mVersion++;
+            if (mSize * 2 > mSlots.length)
+            {
+                rehash();
+            }
+            return id;
+        }
+
+        String[] toArray()
+        {
+            return Arrays.copyOf(mStrings, mSize);
+        }
+
+        private void rehash()
+        {
+            mSlots = new int[mSlots.length * 2];
+            int mask = mSlots.length - 1;
+            for (int id = 0; id < mSize; id++)
+            {
+                int slot = hash(mBytes[id], 0, mBytes[id].length) & mask;
+                while (mSlots[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                mSlots[slot] = id + 1;
+            }
+        }
+
+        private static int hash(byte[] data, int start, int end)
+        {
+            int hash = 0;
+            for (int i = start; i < end; i++)
+            {
+                hash = 31 * hash + data[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
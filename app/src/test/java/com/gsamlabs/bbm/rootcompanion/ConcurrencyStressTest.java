@@ -0,0 +1,433 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import android.os.RemoteException;
+
+import com.stericson.RootShell.exceptions.RootDeniedException;
+
+/**
+ * Hammers the state binder threads share: the reflective lookups done in
+ * holder classes, the limit on concurrent root shell reads, and the binder
+ * entry points themselves.  None of the framework classes the lookups look
+ * for exist on the JVM, so every call has to fail - but always as a
+ * RemoteException, however the first calls race.  The entry points are
+ * driven on a {@link BatteryStatsBinder} reading from stand-ins.
+ */
+public class ConcurrencyStressTest {
+    private static final int THREADS = 24;
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+
+    @After
+    public void tearDown()
+    {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void racingFirstLookupsAllSeeTheSameFailure() throws Exception
+    {
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            futures.add(mExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+                    int failures = 0;
+                    for (int i = 0; i < 500; i++)
+                    {
+                        try {
+                            BatteryStatsBinding.getStatisticsMethod();
+                        } catch (RemoteException e) {
+                            failures++;
+                        }
+                        try {
+                            StatisticsProjector.getCreator();
+                        } catch (RemoteException e) {
+                            failures++;
+                        }
+                    }
+                    return failures;
+                }
+            }));
+        }
+        // Anything but a RemoteException (NoClassDefFoundError from a failed
+        // initializer, say) comes out of get() as an ExecutionException.
+        for (Future<Integer> future : futures)
+        {
+            assertEquals(1000, (int) future.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void rootShellReadsNeverExceedTheLimit() throws Exception
+    {
+        final String[] fileNames = {"/proc/a", "/proc/b", "/proc/c"};
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        final SwitchableShell shell = new SwitchableShell();
+        final RootShellFileReader reader = new RootShellFileReader(2, 2000, shell);
+        shell.mDelegate = new RootShellFileReader.Shell() {
+            @Override
+            public String run(long timeoutMs, String command) throws Exception {
+                // One limit for the whole batch, less however long we waited for a turn
+                assertTrue("timeout " + timeoutMs, timeoutMs > 0 && timeoutMs <= 2000);
+                int now = running.incrementAndGet();
+                try {
+                    int max;
+                    while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now))
+                    {
+                        // Retry
+                    }
+                    int call = calls.incrementAndGet();
+                    Thread.sleep(1);
+                    // Some of the reads fail, to check those give their permit back too
+                    if (call % 7 == 0)
+                    {
+                        throw new RootDeniedException("denied");
+                    } else if (call % 11 == 0)
+                    {
+                        throw new IllegalStateException("shell died");
+                    }
+                    return catOutput(fileNames.length);
+                } finally
+                {
+                    running.decrementAndGet();
+                }
+            }
+        };
+
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            futures.add(mExecutor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() throws Exception {
+                    start.await();
+                    int[] statuses = new int[8];
+                    for (int i = 0; i < 40; i++)
+                    {
+                        ProcFileResult[] results = reader.read(fileNames);
+                        assertEquals(fileNames.length, results.length);
+                        for (int f = 0; f < results.length; f++)
+                        {
+                            statuses[results[f].status]++;
+                            if (results[f].status == ProcFileResult.STATUS_OK)
+                            {
+                                assertArrayEquals(("file " + f + "\n").getBytes(), results[f].content);
+                            } else
+                            {
+                                assertNull(results[f].content);
+                            }
+                        }
+                    }
+                    return statuses;
+                }
+            }));
+        }
+        int[] statuses = new int[8];
+        for (Future<int[]> future : futures)
+        {
+            int[] threadStatuses = future.get(60, TimeUnit.SECONDS);
+            for (int i = 0; i < statuses.length; i++)
+            {
+                statuses[i] += threadStatuses[i];
+            }
+        }
+
+        int reads = THREADS * 40;
+        assertEquals(reads, calls.get());
+        assertEquals(2, maxRunning.get());
+        assertEquals(reads / 7 * fileNames.length, statuses[ProcFileResult.STATUS_ROOT_DENIED]);
+        assertEquals(reads * fileNames.length, statuses[ProcFileResult.STATUS_OK]
+                + statuses[ProcFileResult.STATUS_ROOT_DENIED] + statuses[ProcFileResult.STATUS_ROOT_FAILED]);
+
+        // Every permit came back - and no more than that
+        assertPermits(reader, shell, fileNames, 2);
+    }
+
+    @Test
+    public void aReadThatCantGetATurnFailsInsteadOfWaitingForever() throws Exception
+    {
+        SwitchableShell shell = new SwitchableShell();
+        assertPermits(new RootShellFileReader(2, 200, shell), shell, new String[]{"/proc/a"}, 2);
+    }
+
+    @Test
+    public void binderEntryPointsServeConcurrentCallers() throws Exception
+    {
+        final byte[] statistics = StatisticsDeltaCodecTest.parcel(64 * 1024, 23);
+        final AtomicInteger systemCalls = new AtomicInteger();
+        final AtomicInteger shellCalls = new AtomicInteger();
+        BatteryStatsBinding binding = new BatteryStatsBinding() {
+            @Override
+            public byte[] getStatistics() throws RemoteException {
+                systemCalls.incrementAndGet();
+                return statistics.clone();
+            }
+        };
+        // Files under /proc/root only root can read; the rest we can read directly
+        ProcFileReader files = new ProcFileReader() {
+            @Override
+            public byte[] read(String fileName) throws IOException {
+                if (fileName.startsWith("/proc/root"))
+                {
+                    throw new IOException(fileName + ": open failed: EACCES (Permission denied)");
+                }
+                return content(fileName);
+            }
+        };
+        RootShellFileReader.Shell shell = new RootShellFileReader.Shell() {
+            @Override
+            public String run(long timeoutMs, String command) throws Exception {
+                shellCalls.incrementAndGet();
+                StringBuilder output = new StringBuilder();
+                Matcher cat = Pattern.compile("cat '([^']*)'").matcher(command);
+                while (cat.find())
+                {
+                    output.append(new String(content(cat.group(1)))).append("\n")
+                            .append(ShellCatCommand.EOF_MARKER).append(" 0\n");
+                }
+                return output.toString();
+            }
+        };
+        File dir = File.createTempFile("binder", "");
+        dir.delete();
+        dir.mkdir();
+        final BatteryStatsBinder binder = new BatteryStatsBinder(binding, files, null, shell, dir, dir, true);
+        final IBatteryStatsService service = binder;
+
+        final AtomicInteger readProcFileCalls = new AtomicInteger();
+        final AtomicInteger readProcFilesCalls = new AtomicInteger();
+        final AtomicInteger chunkCalls = new AtomicInteger();
+        final AtomicInteger chunkRestarts = new AtomicInteger();
+        final AtomicInteger statisticsCalls = new AtomicInteger();
+        final AtomicInteger rootReads = new AtomicInteger();
+        try {
+            final CyclicBarrier start = new CyclicBarrier(THREADS);
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++)
+            {
+                final int thread = t;
+                futures.add(mExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < 200; i++)
+                        {
+                            boolean root = (i / 4 + thread) % 2 == 0;
+                            String fileName = (root ? "/proc/root" : "/proc/direct") + (i % 3);
+                            switch ((i + thread) % 4)
+                            {
+                            case 0:
+                                assertArrayEquals(content(fileName), service.readProcFile(fileName));
+                                readProcFileCalls.incrementAndGet();
+                                rootReads.addAndGet(root ? 1 : 0);
+                                break;
+                            case 1:
+                                String[] fileNames = {"/proc/direct0", "/proc/root1", "/proc/direct2", "/proc/root2"};
+                                ByteBuffer blob = ByteBuffer.wrap(service.readProcFiles(fileNames));
+                                readProcFilesCalls.incrementAndGet();
+                                rootReads.incrementAndGet();
+                                assertEquals(fileNames.length, blob.getInt());
+                                for (String name : fileNames)
+                                {
+                                    byte[] content = new byte[blob.getInt()];
+                                    blob.get(content);
+                                    assertArrayEquals(content(name), content);
+                                }
+                                assertEquals(0, blob.remaining());
+                                break;
+                            case 2:
+                                assertArrayEquals(content(fileName), readInChunks(service, fileName, root));
+                                break;
+                            default:
+                                assertArrayEquals(statistics, service.getStatistics());
+                                statisticsCalls.incrementAndGet();
+                                break;
+                            }
+                        }
+                        return null;
+                    }
+
+                    private byte[] readInChunks(IBatteryStatsService service, String fileName, boolean root) throws RemoteException {
+                        while (true)
+                        {
+                            long[] chunkInfo = new long[2];
+                            byte[] content = null;
+                            int length = 0;
+                            try {
+                                do
+                                {
+                                    byte[] chunk = service.readProcFileChunk(fileName, length, 64, chunkInfo);
+                                    chunkCalls.incrementAndGet();
+                                    if (content == null)
+                                    {
+                                        content = new byte[(int) chunkInfo[0]];
+                                        rootReads.addAndGet(root ? 1 : 0);
+                                    }
+                                    System.arraycopy(chunk, 0, content, length, chunk.length);
+                                    length += chunk.length;
+                                } while (length < content.length);
+                                return content;
+                            } catch (RemoteException e) {
+                                // Our snapshot was evicted by everyone else's - start over
+                                chunkCalls.incrementAndGet();
+                                chunkRestarts.incrementAndGet();
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<Void> future : futures)
+            {
+                future.get(60, TimeUnit.SECONDS);
+            }
+
+            ServiceMetricsSnapshot metrics = service.getServiceMetrics();
+            assertEquals(readProcFileCalls.get(), metrics.calls[ServiceMetrics.READ_PROC_FILE]);
+            assertEquals(readProcFilesCalls.get(), metrics.calls[ServiceMetrics.READ_PROC_FILES]);
+            assertEquals(chunkCalls.get(), metrics.calls[ServiceMetrics.READ_PROC_FILE_CHUNK]);
+            assertEquals(chunkRestarts.get(), metrics.exceptions[ServiceMetrics.READ_PROC_FILE_CHUNK]);
+            assertEquals(statisticsCalls.get(), metrics.calls[ServiceMetrics.GET_STATISTICS]);
+            // Every root read was one shell command, whatever it was for
+            assertEquals(rootReads.get(), shellCalls.get());
+            assertEquals(rootReads.get(), metrics.calls[ServiceMetrics.ROOT_READ]);
+            for (int method : new int[]{ServiceMetrics.READ_PROC_FILE, ServiceMetrics.READ_PROC_FILES,
+                    ServiceMetrics.READ_PROC_FILE_CHUNK, ServiceMetrics.GET_STATISTICS, ServiceMetrics.ROOT_READ})
+            {
+                assertEquals(metrics.methodNames[method], 0, metrics.errors[method]);
+                assertEquals(metrics.methodNames[method], 0, metrics.rootDenied[method]);
+            }
+            // However the callers raced, each load from the system was a cache miss
+            assertEquals(systemCalls.get(), metrics.calls[ServiceMetrics.SYSTEM_GET_STATISTICS]);
+            assertEquals(systemCalls.get(), metrics.cacheStats[1]);
+            assertEquals(statisticsCalls.get(), metrics.cacheStats[0] + metrics.cacheStats[1] + metrics.cacheStats[2]);
+            // And what was learned along the way
+            List<String> strategies = Arrays.asList(service.getFileAccessStrategies());
+            assertEquals(6, strategies.size());
+            for (String strategy : strategies)
+            {
+                assertTrue(strategy, strategy.startsWith("/proc/root") ? strategy.contains("=ROOT ") : strategy.contains("=DIRECT "));
+            }
+        } finally
+        {
+            binder.shutdown();
+            deleteRecursively(dir);
+        }
+    }
+
+    private static byte[] content(String fileName)
+    {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+        {
+            content.append(fileName).append(" line ").append(i).append('\n');
+        }
+        return content.toString().getBytes();
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Blocks expected reads in the shell, checks one more is turned away, then
+     * lets them finish.
+     */
+    private void assertPermits(final RootShellFileReader reader, SwitchableShell shell, final String[] fileNames, int expected)
+            throws Exception
+    {
+        final CountDownLatch entered = new CountDownLatch(expected);
+        final CountDownLatch release = new CountDownLatch(1);
+        shell.mDelegate = new RootShellFileReader.Shell() {
+            @Override
+            public String run(long timeoutMs, String command) throws Exception {
+                entered.countDown();
+                release.await();
+                return catOutput(fileNames.length);
+            }
+        };
+        List<Future<ProcFileResult[]>> blocked = new ArrayList<Future<ProcFileResult[]>>();
+        for (int i = 0; i < expected; i++)
+        {
+            blocked.add(mExecutor.submit(new Callable<ProcFileResult[]>() {
+                @Override
+                public ProcFileResult[] call() {
+                    return reader.read(fileNames);
+                }
+            }));
+        }
+        assertTrue("the permitted reads should all get a shell", entered.await(10, TimeUnit.SECONDS));
+
+        long begin = System.nanoTime();
+        ProcFileResult[] turnedAway = reader.read(fileNames);
+        long waitedMs = (System.nanoTime() - begin) / 1000000;
+        release.countDown();
+
+        assertEquals(ProcFileResult.STATUS_ROOT_FAILED, turnedAway[0].status);
+        assertTrue("waited " + waitedMs + "ms", waitedMs < 10000);
+        for (Future<ProcFileResult[]> future : blocked)
+        {
+            assertEquals(ProcFileResult.STATUS_OK, future.get(10, TimeUnit.SECONDS)[0].status);
+        }
+    }
+
+    /** Lets a reader that's been stressed be checked afterwards, with the same permits */
+    private static final class SwitchableShell implements RootShellFileReader.Shell {
+        volatile RootShellFileReader.Shell mDelegate;
+
+        @Override
+        public String run(long timeoutMs, String command) throws Exception {
+            return mDelegate.run(timeoutMs, command);
+        }
+    }
+
+    /** What ShellCatCommand's command prints when every cat succeeds */
+    private static String catOutput(int fileCount)
+    {
+        StringBuilder output = new StringBuilder();
+        for (int f = 0; f < fileCount; f++)
+        {
+            output.append("file ").append(f).append("\n\n").append(ShellCatCommand.EOF_MARKER).append(" 0\n");
+        }
+        return output.toString();
+    }
+}
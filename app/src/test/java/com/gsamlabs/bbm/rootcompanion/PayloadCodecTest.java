@@ -0,0 +1,115 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * Round trips through each codec, and that decode won't trust a header's
+ * length.
+ */
+public class PayloadCodecTest {
+
+    @Test
+    public void everyCodecRoundTrips()
+    {
+        byte[][] inputs = {new byte[0], {42}, StatisticsDeltaCodecTest.parcel(300 * 1024, 1), new byte[100000]};
+        int[] levels = {Deflater.DEFAULT_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION};
+        for (byte[] input : inputs)
+        {
+            assertArrayEquals(input, PayloadCodec.decode(PayloadCodec.encode(PayloadCodec.CODEC_NONE, 0, input)));
+            assertArrayEquals(input, PayloadCodec.decode(PayloadCodec.encode(PayloadCodec.CODEC_LZ, 0, input)));
+            for (int level : levels)
+            {
+                assertArrayEquals(input, PayloadCodec.decode(PayloadCodec.encode(PayloadCodec.CODEC_DEFLATE, level, input)));
+            }
+        }
+    }
+
+    @Test
+    public void aBadLevelDoesntSpoilTheDeflatersForLaterCalls()
+    {
+        byte[] input = StatisticsDeltaCodecTest.parcel(10000, 2);
+        for (int i = 0; i < 5; i++)
+        {
+            try {
+                PayloadCodec.encode(PayloadCodec.CODEC_DEFLATE, 42, input);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertArrayEquals(input, PayloadCodec.decode(PayloadCodec.encode(PayloadCodec.CODEC_DEFLATE, 6, input)));
+        }
+    }
+
+    @Test
+    public void manyThreadsCanEncodeAtOnce() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 16; t++)
+            {
+                final byte[] input = StatisticsDeltaCodecTest.parcel(64 * 1024, t);
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (int i = 0; i < 20; i++)
+                        {
+                            assertArrayEquals(input, PayloadCodec.decode(PayloadCodec.encode(PayloadCodec.CODEC_DEFLATE, 1, input)));
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures)
+            {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aNegativeLengthIsRejected()
+    {
+        PayloadCodec.decode(withLength(PayloadCodec.encode(PayloadCodec.CODEC_LZ, 0, new byte[100]), -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aHugeLengthIsRejectedBeforeAllocating()
+    {
+        PayloadCodec.decode(withLength(PayloadCodec.encode(PayloadCodec.CODEC_DEFLATE, 1, new byte[100]), Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void theLengthLimitIsInclusive()
+    {
+        // Claims exactly the limit - gets as far as finding the data is short
+        try {
+            PayloadCodec.decode(withLength(PayloadCodec.encode(PayloadCodec.CODEC_NONE, 0, new byte[100]), PayloadCodec.MAX_DECODED_LENGTH));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Corrupt payload: length mismatch", e.getMessage());
+        }
+    }
+
+    private static byte[] withLength(byte[] encoded, int length)
+    {
+        ByteBuffer.wrap(encoded).putInt(1, length);
+        return encoded;
+    }
+}
@@ -0,0 +1,84 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * That what's remembered stays bounded, and that saving is left to the
+ * executor and batched.
+ */
+public class ProcFileAccessStrategiesTest {
+    private File mStateFile;
+    private final List<Runnable> mQueued = new ArrayList<Runnable>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueued.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mStateFile = File.createTempFile("access_strategies", "");
+        mStateFile.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        mStateFile.delete();
+    }
+
+    @Test
+    public void forgetsTheLeastRecentlyUsedPaths()
+    {
+        ProcFileAccessStrategies strategies = new ProcFileAccessStrategies(mStateFile, mExecutor);
+        strategies.learn("/proc/first", direct());
+        for (int i = 0; i < ProcFileAccessStrategies.MAX_ENTRIES; i++)
+        {
+            // Keep the first one in use
+            assertEquals(ProcFileAccessStrategies.STRATEGY_DIRECT, strategies.get("/proc/first"));
+            strategies.learn("/proc/file" + i, direct());
+        }
+        assertEquals(ProcFileAccessStrategies.MAX_ENTRIES, strategies.describe().length);
+        assertEquals(ProcFileAccessStrategies.STRATEGY_DIRECT, strategies.get("/proc/first"));
+        assertEquals(ProcFileAccessStrategies.STRATEGY_UNKNOWN, strategies.get("/proc/file0"));
+    }
+
+    @Test
+    public void aBurstOfChangesIsSavedOnce()
+    {
+        ProcFileAccessStrategies strategies = new ProcFileAccessStrategies(mStateFile, mExecutor);
+        for (int i = 0; i < 10; i++)
+        {
+            strategies.learn("/proc/file" + i, direct());
+        }
+        assertFalse(mStateFile.exists());
+        assertEquals(1, mQueued.size());
+        mQueued.remove(0).run();
+
+        ProcFileAccessStrategies reloaded = new ProcFileAccessStrategies(mStateFile, mExecutor);
+        assertEquals(10, reloaded.describe().length);
+        assertEquals(ProcFileAccessStrategies.STRATEGY_DIRECT, reloaded.get("/proc/file9"));
+
+        // And the next change queues another
+        strategies.learn("/proc/file10", direct());
+        assertEquals(1, mQueued.size());
+    }
+
+    private static ProcFileResult direct()
+    {
+        return ProcFileResult.success(ProcFileResult.SOURCE_DIRECT, new byte[0]);
+    }
+}
@@ -0,0 +1,103 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * That a big read doesn't leave a big buffer behind, and that what is kept
+ * across the open files stays under its cap.
+ */
+public class ProcFileReaderTest {
+    private File mDir;
+    private ProcFileReader mReader;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDir = File.createTempFile("procfilereader", "");
+        mDir.delete();
+        mDir.mkdir();
+        mReader = new ProcFileReader();
+    }
+
+    @After
+    public void tearDown()
+    {
+        mReader.closeAll();
+        for (File file : mDir.listFiles())
+        {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void keepsAModestlyGrownBuffer() throws IOException
+    {
+        byte[] content = text(48 * 1024);
+        String file = write("small", content);
+        assertArrayEquals(content, mReader.read(file));
+        assertEquals(ProcFileReader.MAX_RETAINED_BUFFER_SIZE, mReader.getRetainedSize());
+        assertArrayEquals(content, mReader.read(file));
+        mReader.closeAll();
+        assertEquals(0, mReader.getRetainedSize());
+    }
+
+    @Test
+    public void dropsTheBufferAfterABigRead() throws IOException
+    {
+        byte[] content = text(1024 * 1024);
+        String file = write("big", content);
+        for (int i = 0; i < 3; i++)
+        {
+            assertArrayEquals(content, mReader.read(file));
+            assertEquals(ProcFileReader.INITIAL_BUFFER_SIZE, mReader.getRetainedSize());
+        }
+    }
+
+    @Test
+    public void retainedTotalStaysUnderTheCap() throws IOException
+    {
+        byte[] content = text(48 * 1024);
+        for (int i = 0; i < 32; i++)
+        {
+            String file = write("file" + i, content);
+            assertArrayEquals(content, mReader.read(file));
+            assertArrayEquals(content, mReader.read(file));
+            assertTrue(mReader.getRetainedSize() <= ProcFileReader.MAX_TOTAL_RETAINED_SIZE);
+        }
+    }
+
+    /** No '\0's - the reader stops at the first one */
+    private static byte[] text(int length)
+    {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    private String write(String name, byte[] content) throws IOException
+    {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally
+        {
+            out.close();
+        }
+        return file.getPath();
+    }
+}
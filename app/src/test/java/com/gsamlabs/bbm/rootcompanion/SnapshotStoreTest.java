@@ -0,0 +1,301 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Durability (torn writes, reopening), rotation, range queries and a rough
+ * throughput floor for the on-disk snapshot log.  Torn writes are simulated
+ * by editing the segment files directly, using the record layout documented
+ * in {@link SnapshotStore}.
+ */
+public class SnapshotStoreTest {
+    private static final int MAGIC = 0x47534E50;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private SnapshotStore mStore;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDir = new File(mFolder.getRoot(), "snapshots");
+        mStore = new SnapshotStore(mDir, SEGMENT_SIZE, 3);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mStore.close();
+    }
+
+    @Test
+    public void appendedSnapshotsCanBeReadBack() throws IOException
+    {
+        mStore.append(100, payload(10, 1));
+        mStore.append(200, payload(20, 2));
+
+        assertArrayEquals(payload(10, 1), mStore.read(100));
+        assertArrayEquals(payload(20, 2), mStore.read(200));
+        assertNull(mStore.read(150));
+    }
+
+    @Test
+    public void timestampsNeverGoBackwards() throws IOException
+    {
+        mStore.append(100, payload(10, 1));
+        assertEquals(100, mStore.append(50, payload(10, 2)));
+        assertArrayEquals(new long[]{100, 100}, mStore.getTimestamps(0, Long.MAX_VALUE));
+        // The first record at a timestamp wins
+        assertArrayEquals(payload(10, 1), mStore.read(100));
+    }
+
+    @Test
+    public void rangeQueriesAreInclusiveAndSpanSegments() throws IOException
+    {
+        // Each record is about a third of a segment, so they spread over several
+        for (int i = 1; i <= 6; i++)
+        {
+            mStore.append(i * 10, payload(1200, i));
+        }
+        assertTrue(segmentFiles().length > 1);
+
+        assertArrayEquals(new long[]{10, 20, 30, 40, 50, 60}, mStore.getTimestamps(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertArrayEquals(new long[]{20, 30, 40}, mStore.getTimestamps(20, 40));
+        assertArrayEquals(new long[]{20, 30}, mStore.getTimestamps(15, 35));
+        assertArrayEquals(new long[0], mStore.getTimestamps(61, 100));
+        assertArrayEquals(new long[0], mStore.getTimestamps(0, 9));
+        assertArrayEquals(new long[]{60}, mStore.getTimestamps(60, 60));
+    }
+
+    @Test
+    public void rotationDeletesTheOldestSegments() throws IOException
+    {
+        for (int i = 1; i <= 20; i++)
+        {
+            mStore.append(i, payload(1500, i));
+        }
+        assertEquals(3, segmentFiles().length);
+
+        long[] times = mStore.getTimestamps(Long.MIN_VALUE, Long.MAX_VALUE);
+        // Whatever survived is the newest, in order, and still readable
+        assertEquals(20, times[times.length - 1]);
+        for (int i = 0; i < times.length; i++)
+        {
+            assertEquals(20 - times.length + 1 + i, times[i]);
+            assertArrayEquals(payload(1500, (int) times[i]), mStore.read(times[i]));
+        }
+        assertNull(mStore.read(1));
+    }
+
+    @Test
+    public void recordsLargerThanASegmentGetOneOfTheirOwn() throws IOException
+    {
+        mStore.append(1, payload(100, 1));
+        mStore.append(2, payload(3 * SEGMENT_SIZE, 2));
+        mStore.append(3, payload(100, 3));
+
+        assertArrayEquals(payload(3 * SEGMENT_SIZE, 2), mStore.read(2));
+        reopen();
+        assertArrayEquals(new long[]{1, 2, 3}, mStore.getTimestamps(0, 10));
+        assertArrayEquals(payload(3 * SEGMENT_SIZE, 2), mStore.read(2));
+    }
+
+    @Test
+    public void reopeningRebuildsTheIndexAndCarriesOnAppending() throws IOException
+    {
+        for (int i = 1; i <= 8; i++)
+        {
+            mStore.append(i, payload(700, i));
+        }
+        reopen();
+
+        assertArrayEquals(new long[]{1, 2, 3, 4, 5, 6, 7, 8}, mStore.getTimestamps(0, 100));
+        // The clock is kept non-decreasing across reopening too
+        assertEquals(8, mStore.append(5, payload(10, 9)));
+        mStore.append(9, payload(10, 10));
+        reopen();
+        assertArrayEquals(new long[]{1, 2, 3, 4, 5, 6, 7, 8, 8, 9}, mStore.getTimestamps(0, 100));
+        assertArrayEquals(payload(10, 10), mStore.read(9));
+    }
+
+    @Test
+    public void aRecordWithoutItsMagicIsDroppedAndItsTailZeroed() throws IOException
+    {
+        mStore.append(1, payload(100, 1));
+        int tornOffset = HEADER_SIZE + 100;
+        mStore.append(2, payload(100, 2));
+        mStore.close();
+
+        // A crash before the magic was written: the rest of the record is there
+        File segment = segmentFiles()[0];
+        writeInt(segment, tornOffset, 0);
+
+        mStore = new SnapshotStore(mDir, SEGMENT_SIZE, 3);
+        assertArrayEquals(new long[]{1}, mStore.getTimestamps(0, 100));
+        assertNull(mStore.read(2));
+        mStore.close();
+        assertTrue("torn tail should be zeroed", isZeroFrom(segment, tornOffset));
+
+        mStore = new SnapshotStore(mDir, SEGMENT_SIZE, 3);
+        mStore.append(3, payload(50, 3));
+        assertArrayEquals(new long[]{1, 3}, mStore.getTimestamps(0, 100));
+    }
+
+    @Test
+    public void aTornRecordCantResurfaceAfterAShorterOneIsWrittenOverIt() throws IOException
+    {
+        int shortLength = 16;
+        mStore.append(1, payload(100, 1));
+        int tornOffset = HEADER_SIZE + 100;
+        // Its payload has a complete record in it, just where a later, shorter
+        // record written at the same offset will end.
+        byte[] ghost = record(99, payload(30, 99));
+        byte[] tornPayload = new byte[shortLength + ghost.length];
+        System.arraycopy(ghost, 0, tornPayload, shortLength, ghost.length);
+        mStore.append(2, tornPayload);
+        mStore.close();
+        writeInt(segmentFiles()[0], tornOffset, 0);
+
+        mStore = new SnapshotStore(mDir, SEGMENT_SIZE, 3);
+        mStore.append(3, payload(shortLength, 3));
+        reopen();
+
+        assertArrayEquals(new long[]{1, 3}, mStore.getTimestamps(0, 1000));
+        assertNull(mStore.read(99));
+    }
+
+    @Test
+    public void aRecordWithABadCrcEndsTheSegment() throws IOException
+    {
+        mStore.append(1, payload(100, 1));
+        int corruptOffset = HEADER_SIZE + 100;
+        mStore.append(2, payload(100, 2));
+        mStore.append(3, payload(100, 3));
+        mStore.close();
+
+        // Power loss: the magic made it to disk but part of the payload didn't
+        writeInt(segmentFiles()[0], corruptOffset + HEADER_SIZE + 40, 0x12345678);
+
+        mStore = new SnapshotStore(mDir, SEGMENT_SIZE, 3);
+        assertArrayEquals(new long[]{1}, mStore.getTimestamps(0, 100));
+        mStore.append(4, payload(100, 4));
+        reopen();
+        assertArrayEquals(new long[]{1, 4}, mStore.getTimestamps(0, 100));
+    }
+
+    @Test
+    public void aSegmentWithNothingIntactIsDeleted() throws IOException
+    {
+        mStore.append(1, payload(100, 1));
+        mStore.close();
+        writeInt(segmentFiles()[0], 0, 0);
+
+        mStore = new SnapshotStore(mDir, SEGMENT_SIZE, 3);
+        assertEquals(0, segmentFiles().length);
+        assertArrayEquals(new long[0], mStore.getTimestamps(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void appendsAreFastEnoughToStayOffTheCallersPath() throws IOException
+    {
+        mStore.close();
+        mStore = new SnapshotStore(mDir, 1024 * 1024, 4);
+        byte[] data = payload(4096, 7);
+        int count = 5000;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+        {
+            mStore.append(i, data);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        // A very loose floor - 20MB through the page cache - to catch something
+        // like a sync per append creeping in, not to measure anything.
+        assertTrue("appending " + count + " records took " + elapsedMs + "ms", elapsedMs < 10000);
+        assertEquals(count - 1, mStore.getTimestamps(count - 1, count - 1)[0]);
+    }
+
+    private void reopen() throws IOException
+    {
+        mStore.close();
+        mStore = new SnapshotStore(mDir, SEGMENT_SIZE, 3);
+    }
+
+    private File[] segmentFiles()
+    {
+        File[] files = mDir.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static byte[] payload(int length, int seed)
+    {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            payload[i] = (byte) (seed * 31 + i * 7 + 1);
+        }
+        return payload;
+    }
+
+    /** A complete record, as SnapshotStore lays it out */
+    private static byte[] record(long timestamp, byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(MAGIC).putInt(payload.length).putLong(timestamp).putInt((int) crc.getValue()).put(payload);
+        return record.array();
+    }
+
+    private static void writeInt(File file, long offset, int value) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.writeInt(value);
+        } finally
+        {
+            raf.close();
+        }
+    }
+
+    private static boolean isZeroFrom(File file, long offset) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            int b;
+            while ((b = raf.read()) != -1)
+            {
+                if (b != 0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        } finally
+        {
+            raf.close();
+        }
+    }
+}
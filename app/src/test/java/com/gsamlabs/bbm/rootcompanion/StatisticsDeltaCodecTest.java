@@ -0,0 +1,211 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips through the delta codec for the kinds of change consecutive
+ * statistics parcels see, and that the deltas are actually worth sending.
+ */
+public class StatisticsDeltaCodecTest {
+
+    @Test
+    public void identicalInputRoundTripsToATinyDelta()
+    {
+        byte[] base = parcel(64 * 1024, 1);
+        byte[] delta = StatisticsDeltaCodec.encode(base, base.clone());
+
+        assertArrayEquals(base, StatisticsDeltaCodec.decode(base, delta));
+        assertTrue("delta was " + delta.length + " bytes", delta.length < 32);
+    }
+
+    @Test
+    public void countersChangedInPlaceRoundTrip()
+    {
+        byte[] base = parcel(64 * 1024, 2);
+        byte[] target = base.clone();
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++)
+        {
+            target[random.nextInt(target.length)]++;
+        }
+        assertRoundTrips(base, target);
+    }
+
+    @Test
+    public void appendedDataRoundTrips()
+    {
+        byte[] base = parcel(32 * 1024, 3);
+        byte[] target = new byte[base.length + 4000];
+        System.arraycopy(base, 0, target, 0, base.length);
+        System.arraycopy(parcel(4000, 33), 0, target, base.length, 4000);
+        assertRoundTrips(base, target);
+    }
+
+    @Test
+    public void shiftedDataRoundTrips()
+    {
+        // A new uid's entry inserted part way through moves everything after it
+        byte[] base = parcel(32 * 1024, 4);
+        byte[] inserted = parcel(333, 44);
+        int at = 10000;
+        byte[] target = new byte[base.length + inserted.length];
+        System.arraycopy(base, 0, target, 0, at);
+        System.arraycopy(inserted, 0, target, at, inserted.length);
+        System.arraycopy(base, at, target, at + inserted.length, base.length - at);
+        assertRoundTrips(base, target);
+
+        // ... and removed again
+        assertRoundTrips(target, base);
+    }
+
+    @Test
+    public void unrelatedAndEmptyInputsRoundTrip()
+    {
+        byte[] base = parcel(8 * 1024, 5);
+        byte[] other = parcel(9 * 1024, 55);
+        assertArrayEquals(other, StatisticsDeltaCodec.decode(base, StatisticsDeltaCodec.encode(base, other)));
+        assertArrayEquals(other, StatisticsDeltaCodec.decode(new byte[0], StatisticsDeltaCodec.encode(new byte[0], other)));
+        assertArrayEquals(new byte[0], StatisticsDeltaCodec.decode(base, StatisticsDeltaCodec.encode(base, new byte[0])));
+        byte[] tiny = {1, 2, 3};
+        assertArrayEquals(tiny, StatisticsDeltaCodec.decode(base, StatisticsDeltaCodec.encode(base, tiny)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aBaseTooShortForTheDeltaIsRejected()
+    {
+        byte[] base = parcel(16 * 1024, 6);
+        byte[] target = base.clone();
+        target[100]++;
+        byte[] delta = StatisticsDeltaCodec.encode(base, target);
+
+        byte[] wrongBase = new byte[base.length / 2];
+        System.arraycopy(base, 0, wrongBase, 0, wrongBase.length);
+        StatisticsDeltaCodec.decode(wrongBase, delta);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aTruncatedDeltaIsRejected()
+    {
+        byte[] base = parcel(16 * 1024, 7);
+        byte[] target = parcel(16 * 1024, 77);
+        byte[] delta = StatisticsDeltaCodec.encode(base, target);
+        byte[] truncated = new byte[delta.length / 2];
+        System.arraycopy(delta, 0, truncated, 0, truncated.length);
+        StatisticsDeltaCodec.decode(base, truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aNegativeTargetLengthIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aTargetLengthOverTheCapIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(StatisticsDeltaCodec.MAX_TARGET_LENGTH + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aCopyWhoseEndOverflowsIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(10, StatisticsDeltaCodec.OP_COPY, 10, Integer.MAX_VALUE - 5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aNegativeCopyLengthIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(10, StatisticsDeltaCodec.OP_COPY, 0, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aCopyPastTheTargetIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(10, StatisticsDeltaCodec.OP_COPY, 0, 8, StatisticsDeltaCodec.OP_COPY, 0, 8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anInsertWhoseEndOverflowsIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(10, StatisticsDeltaCodec.OP_INSERT, Integer.MAX_VALUE - 2, 1, 2, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aNegativeInsertLengthIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(10, StatisticsDeltaCodec.OP_INSERT, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anInsertPastTheTargetIsRejected()
+    {
+        StatisticsDeltaCodec.decode(new byte[16], varints(2, StatisticsDeltaCodec.OP_INSERT, 3, 1, 2, 3));
+    }
+
+    @Test
+    public void deltasOfTypicalChangesAreMuchSmallerThanTheParcel()
+    {
+        byte[] base = parcel(256 * 1024, 8);
+        byte[] target = base.clone();
+        // A few hundred counters ticking over between polls
+        Random random = new Random(8);
+        for (int i = 0; i < 500; i++)
+        {
+            int at = random.nextInt(target.length - 8) & ~7;
+            target[at + 7] += 1 + random.nextInt(100);
+        }
+        byte[] delta = StatisticsDeltaCodec.encode(base, target);
+
+        assertArrayEquals(target, StatisticsDeltaCodec.decode(base, delta));
+        assertTrue("delta was " + delta.length + " of " + target.length + " bytes", delta.length * 10 < target.length);
+    }
+
+    private static void assertRoundTrips(byte[] base, byte[] target)
+    {
+        byte[] delta = StatisticsDeltaCodec.encode(base, target);
+        assertArrayEquals(target, StatisticsDeltaCodec.decode(base, delta));
+        assertTrue("delta was " + delta.length + " of " + target.length + " bytes", delta.length < target.length);
+    }
+
+    /**
+     * A hand-built delta.  The ops are small enough that their varint is the
+     * op byte itself, and so is each literal byte of an insert.
+     */
+    private static byte[] varints(int... values)
+    {
+        byte[] out = new byte[values.length * 5];
+        int pos = 0;
+        for (int value : values)
+        {
+            while ((value & ~0x7F) != 0)
+            {
+                out[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[pos++] = (byte) value;
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    /** Parcel-like data: little-endian ints and longs, mostly small values */
+    static byte[] parcel(int length, long seed)
+    {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i + 4 <= length; i += 4)
+        {
+            int value = random.nextInt(8) == 0 ? random.nextInt() : random.nextInt(1000);
+            data[i] = (byte) value;
+            data[i + 1] = (byte) (value >> 8);
+            data[i + 2] = (byte) (value >> 16);
+            data[i + 3] = (byte) (value >> 24);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,152 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * The getStatisticsDelta responses: a client applying them the documented
+ * way always ends up with the current snapshot, and gets the full parcel
+ * whenever its base can't be used.
+ */
+public class StatisticsSnapshotHistoryTest {
+
+    @Test
+    public void aClientWithNoBaseGetsTheFullSnapshot()
+    {
+        StatisticsSnapshotHistory history = new StatisticsSnapshotHistory(4);
+        byte[] snapshot = StatisticsDeltaCodecTest.parcel(16 * 1024, 1);
+        ByteBuffer response = ByteBuffer.wrap(history.buildResponse(-1, snapshot));
+
+        assertEquals(StatisticsSnapshotHistory.TYPE_FULL, response.get());
+        response.getLong();
+        assertEquals(-1, response.getLong());
+        assertArrayEquals(snapshot, payload(response));
+    }
+
+    @Test
+    public void aClientFollowingAlongGetsDeltasThatRebuildEachSnapshot()
+    {
+        StatisticsSnapshotHistory history = new StatisticsSnapshotHistory(4);
+        Client client = new Client();
+        byte[] snapshot = StatisticsDeltaCodecTest.parcel(64 * 1024, 2);
+        for (int i = 0; i < 10; i++)
+        {
+            snapshot = snapshot.clone();
+            snapshot[i * 1000]++;
+            byte type = client.apply(history.buildResponse(client.mSeq, snapshot));
+
+            assertArrayEquals(snapshot, client.mSnapshot);
+            assertEquals((i == 0) ? StatisticsSnapshotHistory.TYPE_FULL : StatisticsSnapshotHistory.TYPE_DELTA, type);
+        }
+    }
+
+    @Test
+    public void anUnchangedSnapshotKeepsItsSequenceNumber()
+    {
+        StatisticsSnapshotHistory history = new StatisticsSnapshotHistory(4);
+        byte[] snapshot = StatisticsDeltaCodecTest.parcel(4096, 3);
+        long seq = history.record(snapshot);
+
+        assertEquals(seq, history.record(snapshot.clone()));
+        Client client = new Client();
+        client.apply(history.buildResponse(-1, snapshot));
+        assertEquals(seq, client.mSeq);
+    }
+
+    @Test
+    public void anEvictedOrUnknownBaseFallsBackToTheFullSnapshot()
+    {
+        StatisticsSnapshotHistory history = new StatisticsSnapshotHistory(2);
+        Client client = new Client();
+        byte[] snapshot = StatisticsDeltaCodecTest.parcel(16 * 1024, 4);
+        client.apply(history.buildResponse(-1, snapshot));
+        long oldSeq = client.mSeq;
+
+        // Two newer snapshots push the client's out of a history of two
+        for (int i = 0; i < 2; i++)
+        {
+            snapshot = snapshot.clone();
+            snapshot[i]++;
+            history.record(snapshot);
+        }
+        assertEquals(StatisticsSnapshotHistory.TYPE_FULL, client.apply(history.buildResponse(oldSeq, snapshot)));
+        assertArrayEquals(snapshot, client.mSnapshot);
+
+        // A sequence number we never handed out (say, from before a restart)
+        Client stranger = new Client();
+        stranger.mSeq = 12345;
+        stranger.mSnapshot = StatisticsDeltaCodecTest.parcel(16 * 1024, 44);
+        assertEquals(StatisticsSnapshotHistory.TYPE_FULL, stranger.apply(history.buildResponse(12345, snapshot)));
+        assertArrayEquals(snapshot, stranger.mSnapshot);
+    }
+
+    @Test
+    public void aDeltaIsOnlySentWhenItsSmaller()
+    {
+        StatisticsSnapshotHistory history = new StatisticsSnapshotHistory(4);
+        Client client = new Client();
+        client.apply(history.buildResponse(-1, StatisticsDeltaCodecTest.parcel(4096, 5)));
+        byte[] unrelated = StatisticsDeltaCodecTest.parcel(4096, 55);
+
+        assertEquals(StatisticsSnapshotHistory.TYPE_FULL, client.apply(history.buildResponse(client.mSeq, unrelated)));
+        assertArrayEquals(unrelated, client.mSnapshot);
+    }
+
+    @Test
+    public void aResponseBuiltForAnEarlierRecordStillAppliesToItsBase()
+    {
+        // How subscriptions use it: record once per pass, build per subscriber later
+        StatisticsSnapshotHistory history = new StatisticsSnapshotHistory(4);
+        Client client = new Client();
+        byte[] first = StatisticsDeltaCodecTest.parcel(16 * 1024, 6);
+        client.apply(history.buildResponse(-1, first));
+        byte[] second = first.clone();
+        second[500]++;
+        long secondSeq = history.record(second);
+        byte[] third = second.clone();
+        third[600]++;
+        history.record(third);
+
+        assertEquals(StatisticsSnapshotHistory.TYPE_DELTA, client.apply(history.buildResponse(client.mSeq, secondSeq, second)));
+        assertEquals(secondSeq, client.mSeq);
+        assertArrayEquals(second, client.mSnapshot);
+    }
+
+    private static byte[] payload(ByteBuffer response)
+    {
+        return Arrays.copyOfRange(response.array(), response.position(), response.limit());
+    }
+
+    /** Applies responses the way the getStatisticsDelta documentation says to */
+    private static final class Client {
+        long mSeq = -1;
+        byte[] mSnapshot;
+
+        byte apply(byte[] responseBytes)
+        {
+            ByteBuffer response = ByteBuffer.wrap(responseBytes);
+            byte type = response.get();
+            long seq = response.getLong();
+            long baseSeq = response.getLong();
+            byte[] payload = payload(response);
+            if (type == StatisticsSnapshotHistory.TYPE_DELTA)
+            {
+                assertEquals(mSeq, baseSeq);
+                mSnapshot = StatisticsDeltaCodec.decode(mSnapshot, payload);
+            } else
+            {
+                assertEquals(-1, baseSeq);
+                mSnapshot = payload;
+            }
+            assertTrue(seq >= 0);
+            mSeq = seq;
+            return type;
+        }
+    }
+}
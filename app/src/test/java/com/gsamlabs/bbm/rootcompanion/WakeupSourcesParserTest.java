@@ -0,0 +1,261 @@
+package com.gsamlabs.bbm.rootcompanion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The wakeup_sources layouts different kernels print, and the odd rows real
+ * devices produce.  The fixtures follow the kernel's own format strings
+ * (drivers/base/power/wakeup.c) for each version.
+ */
+public class WakeupSourcesParserTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** 3.4: no prevent_suspend_time yet, names padded to 12 with spaces */
+    private static final String KERNEL_3_4 =
+            "name\t\tactive_count\tevent_count\twakeup_count\texpire_count\tactive_since\ttotal_time\tmax_time\tlast_change\n"
+            + "ssp_sensorhub\t7\t\t7\t\t0\t\t0\t\t0\t\t1208\t\t441\t\t91623\n"
+            + "alarm       \t52\t\t52\t\t1\t\t0\t\t0\t\t3107\t\t388\t\t90012\n";
+
+    /** 3.10: prevent_suspend_time added */
+    private static final String KERNEL_3_10 =
+            "name\t\tactive_count\tevent_count\twakeup_count\texpire_count\tactive_since\ttotal_time\tmax_time\tlast_change\tprevent_suspend_time\n"
+            + "ssp_sensorhub\t7\t\t7\t\t0\t\t0\t\t0\t\t1208\t\t441\t\t91623\t\t0\n"
+            + "alarm       \t52\t\t52\t\t1\t\t0\t\t0\t\t3107\t\t388\t\t90012\t\t2201\n";
+
+    /** 3.18 (as on many android trees): names padded to 32, header padded to match */
+    private static final String KERNEL_3_18 =
+            String.format("%-32s\t%s\n", "name",
+                    "active_count\tevent_count\twakeup_count\texpire_count\tactive_since\ttotal_time\tmax_time\tlast_change\tprevent_suspend_time")
+            + String.format("%-32s\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\n", "ssp_sensorhub", 7, 7, 0, 0, 0, 1208, 441, 91623, 0)
+            + String.format("%-32s\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\n", "alarm", 52, 52, 1, 0, 0, 3107, 388, 90012, 2201);
+
+    private WakeupSourcesParser mParser;
+
+    @Before
+    public void setUp()
+    {
+        mParser = new WakeupSourcesParser(1000);
+    }
+
+    @Test
+    public void parsesTheKernel34Layout()
+    {
+        assertParsesTheTwoSources(KERNEL_3_4);
+    }
+
+    @Test
+    public void parsesTheKernel310Layout()
+    {
+        assertParsesTheTwoSources(KERNEL_3_10);
+    }
+
+    @Test
+    public void parsesTheKernel318Layout()
+    {
+        assertParsesTheTwoSources(KERNEL_3_18);
+    }
+
+    @Test
+    public void missingColumnsReadAsZero()
+    {
+        parse("name\tactive_count\ttotal_time\n"
+                + "alarm\t52\t3107\n");
+
+        assertEquals(1, mParser.getCount());
+        assertEquals(52, mParser.getActiveCounts()[0]);
+        assertEquals(3107, mParser.getTotalTimes()[0]);
+        assertEquals(0, mParser.getEventCounts()[0]);
+        assertEquals(0, mParser.getWakeupCounts()[0]);
+        assertEquals(0, mParser.getMaxTimes()[0]);
+    }
+
+    @Test
+    public void extraAndReorderedColumnsAreSkipped()
+    {
+        parse("name\tvendor_a\tmax_time\tvendor_b\tactive_count\tvendor_c\n"
+                + "alarm\t-1\t388\t999\t52\t12345678901234\n");
+
+        assertEquals(1, mParser.getCount());
+        assertEquals(388, mParser.getMaxTimes()[0]);
+        assertEquals(52, mParser.getActiveCounts()[0]);
+        assertEquals(0, mParser.getTotalTimes()[0]);
+    }
+
+    @Test
+    public void columnsPastTheLimitDontShiftTheOnesWeRead()
+    {
+        StringBuilder header = new StringBuilder("name\tactive_count");
+        StringBuilder row = new StringBuilder("alarm\t52");
+        for (int i = 0; i < 40; i++)
+        {
+            header.append("\tvendor_").append(i);
+            row.append('\t').append(i);
+        }
+        parse(header + "\n" + row + "\n" + row.toString().replace("alarm", "alarm two") + "\n");
+
+        assertEquals(2, mParser.getCount());
+        assertEquals("alarm two", name(1));
+        assertEquals(52, mParser.getActiveCounts()[0]);
+        assertEquals(52, mParser.getActiveCounts()[1]);
+    }
+
+    @Test
+    public void namesWithSpacesAreKeptWhole()
+    {
+        parse(KERNEL_3_10
+                + "ipc00000012_1234_rild rtr\t3\t\t3\t\t0\t\t0\t\t0\t\t17\t\t9\t\t92000\t\t0\n"
+                + String.format("%-32s\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\t\t%d\n", "qcom rx wakelock", 4, 4, 4, 0, 0, 60, 20, 93000, 0));
+
+        assertEquals(4, mParser.getCount());
+        assertEquals("ipc00000012_1234_rild rtr", name(2));
+        assertEquals(3, mParser.getActiveCounts()[2]);
+        assertEquals(17, mParser.getTotalTimes()[2]);
+        assertEquals("qcom rx wakelock", name(3));
+        assertEquals(4, mParser.getWakeupCounts()[3]);
+        assertEquals(20, mParser.getMaxTimes()[3]);
+    }
+
+    @Test
+    public void namesWithTabsAreKeptWhole()
+    {
+        parse(KERNEL_3_10
+                + "vendor\tsource\t3\t\t3\t\t0\t\t0\t\t0\t\t17\t\t9\t\t92000\t\t0\n");
+
+        assertEquals(3, mParser.getCount());
+        assertEquals("vendor\tsource", name(2));
+        assertEquals(3, mParser.getActiveCounts()[2]);
+        assertEquals(17, mParser.getTotalTimes()[2]);
+        assertEquals(9, mParser.getMaxTimes()[2]);
+    }
+
+    @Test
+    public void aTruncatedLastRowKeepsWhatItHas()
+    {
+        parse(KERNEL_3_10 + "wlan_rx\t5\t\t6\t\t");
+
+        assertEquals(3, mParser.getCount());
+        assertEquals("wlan_rx", name(2));
+        assertEquals(5, mParser.getActiveCounts()[2]);
+        assertEquals(6, mParser.getEventCounts()[2]);
+        assertEquals(0, mParser.getTotalTimes()[2]);
+    }
+
+    @Test
+    public void blankAndCrlfLinesAreHandled()
+    {
+        parse(KERNEL_3_10.replace("\n", "\r\n") + "\r\n\n");
+
+        assertParsed();
+    }
+
+    @Test
+    public void somethingElseEntirelyIsRejected()
+    {
+        assertFalse(mParser.parse(bytes("Inter-|   Receive\n face |bytes\n"), 30));
+        assertFalse(mParser.parse(new byte[0], 0));
+        assertEquals(0, mParser.getCount());
+    }
+
+    @Test
+    public void nameIdsAreStableAndTheVersionOnlyMovesForNewNames()
+    {
+        parse(KERNEL_3_10);
+        long version = mParser.getNamesVersion();
+        int alarmId = mParser.getNameIds()[1];
+
+        // Same sources, different layout and order
+        parse(KERNEL_3_18.replace("alarm", "wlan_rx"));
+        parse(KERNEL_3_4);
+        assertEquals(version + 1, mParser.getNamesVersion());
+        assertEquals(alarmId, mParser.getNameIds()[1]);
+        parse(KERNEL_3_10);
+        assertEquals(version + 1, mParser.getNamesVersion());
+        assertArrayEquals(new String[]{"ssp_sensorhub", "alarm", "wlan_rx"}, mParser.getNames());
+    }
+
+    @Test
+    public void manySourcesGrowTheTables()
+    {
+        StringBuilder data = new StringBuilder(KERNEL_3_10);
+        for (int i = 0; i < 1000; i++)
+        {
+            data.append("source_").append(i).append("\t").append(i).append("\t\t0\t\t0\t\t0\t\t0\t\t").append(i * 10)
+                    .append("\t\t0\t\t0\t\t0\n");
+        }
+        parse(data.toString());
+
+        assertEquals(1002, mParser.getCount());
+        assertEquals("source_999", name(1001));
+        assertEquals(9990, mParser.getTotalTimes()[1001]);
+    }
+
+    @Test
+    public void theTableSnapshotsTheParseAndOnlySendsNamesWhenAsked()
+    {
+        parse(KERNEL_3_10);
+        WakeupSourceTable withNames = new WakeupSourceTable(mParser, true);
+        WakeupSourceTable withoutNames = new WakeupSourceTable(mParser, false);
+        parse("name\tactive_count\nother\t1\n");
+
+        assertEquals(2, withNames.count);
+        assertEquals(2, withNames.nameIds.length);
+        assertArrayEquals(new String[]{"ssp_sensorhub", "alarm"}, withNames.names);
+        assertArrayEquals(new long[]{7, 52}, withNames.activeCounts);
+        assertArrayEquals(new long[]{1208, 3107}, withNames.totalTimes);
+        assertNull(withoutNames.names);
+        assertEquals(withNames.namesVersion, withoutNames.namesVersion);
+        assertNull(withNames.withoutNames().names);
+        assertArrayEquals(withNames.maxTimes, withNames.withoutNames().maxTimes);
+    }
+
+    private void assertParsesTheTwoSources(String data)
+    {
+        parse(data);
+        assertParsed();
+    }
+
+    private void assertParsed()
+    {
+        assertEquals(2, mParser.getCount());
+        assertEquals("ssp_sensorhub", name(0));
+        assertEquals("alarm", name(1));
+        assertArrayEquals(new long[]{7, 52}, head(mParser.getActiveCounts()));
+        assertArrayEquals(new long[]{7, 52}, head(mParser.getEventCounts()));
+        assertArrayEquals(new long[]{0, 1}, head(mParser.getWakeupCounts()));
+        assertArrayEquals(new long[]{1208, 3107}, head(mParser.getTotalTimes()));
+        assertArrayEquals(new long[]{441, 388}, head(mParser.getMaxTimes()));
+    }
+
+    private void parse(String data)
+    {
+        // Trailing garbage past len must be ignored
+        byte[] raw = bytes(data + "\0\0garbage");
+        assertTrue(mParser.parse(raw, raw.length - "\0\0garbage".length()));
+    }
+
+    private String name(int row)
+    {
+        return mParser.getNames()[mParser.getNameIds()[row]];
+    }
+
+    private long[] head(long[] values)
+    {
+        long[] result = new long[mParser.getCount()];
+        System.arraycopy(values, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(UTF_8);
+    }
+}
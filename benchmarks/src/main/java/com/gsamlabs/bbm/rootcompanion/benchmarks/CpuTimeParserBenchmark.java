@@ -0,0 +1,54 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gsamlabs.bbm.rootcompanion.CpuTimeParser;
+
+/**
+ * Parsing a core's time_in_state and the per-uid CPU times - what
+ * CpuTimeCollector does for each file it reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CpuTimeParserBenchmark {
+    @Param({"100", "1000"})
+    public int uids;
+
+    private byte[] mTimeInState;
+    private byte[] mUidCpuTimes;
+
+    @Setup
+    public void setUp()
+    {
+        mTimeInState = Fixtures.timeInState(24, 1);
+        mUidCpuTimes = Fixtures.uidCpuTimes(uids, 1);
+    }
+
+    @Benchmark
+    public long[] parseTimeInState()
+    {
+        return CpuTimeParser.parseTimeInState(mTimeInState, mTimeInState.length);
+    }
+
+    @Benchmark
+    public long[] parseUidCpuTimes()
+    {
+        return CpuTimeParser.parseUidCpuTimes(mUidCpuTimes, mUidCpuTimes.length);
+    }
+}
@@ -0,0 +1,180 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.gsamlabs.bbm.rootcompanion.ShellCatCommand;
+
+/**
+ * Generates the benchmark inputs.  Everything is seeded, so each run sees
+ * exactly the same data and results are comparable between runs.
+ */
+final class Fixtures {
+    private static final String WAKEUP_SOURCES_HEADER = "name\t\tactive_count\tevent_count\twakeup_count\texpire_count"
+            + "\tactive_since\ttotal_time\tmax_time\tlast_change\tprevent_suspend_time\n";
+    private static final String[] WAKEUP_SOURCE_NAMES = {
+        "PowerManagerService.WakeLocks", "PowerManagerService.Display", "alarmtimer", "qcom_rx_wakelock",
+        "ipc0000001f_sensors.qcom", "wlan_rx_wake", "NETLINK", "eventpoll", "event0", "radio-interface",
+        "qpnp_fg_memaccess", "battery", "msm_otg", "KeyEvents", "suspend_backoff", "ssr(modem)",
+    };
+    private static final String[] PACKAGES = {
+        "com.android.systemui", "com.google.android.gms", "com.google.android.gms.persistent",
+        "com.android.phone", "com.whatsapp", "com.facebook.katana", "com.spotify.music",
+        "com.google.android.apps.maps", "com.gsamlabs.bbm", "android.process.media",
+    };
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return A wakeup_sources dump of roughly targetSize bytes, laid out the way
+     * the kernel prints it (names padded to 12 characters, tab separated counters).
+     */
+    static byte[] wakeupSources(int targetSize, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder dump = new StringBuilder(targetSize + 256);
+        dump.append(WAKEUP_SOURCES_HEADER);
+        int row = 0;
+        while (dump.length() < targetSize)
+        {
+            String name = WAKEUP_SOURCE_NAMES[row % WAKEUP_SOURCE_NAMES.length];
+            if (row >= WAKEUP_SOURCE_NAMES.length)
+            {
+                name = name + "." + row;
+            }
+            long activeCount = random.nextInt(100000);
+            dump.append(String.format("%-12s", name))
+                .append('\t').append(activeCount)
+                .append('\t').append(activeCount + random.nextInt(10))
+                .append('\t').append(random.nextInt(500))
+                .append('\t').append(random.nextInt(3))
+                .append('\t').append(random.nextInt(4) == 0 ? random.nextInt(5000) : 0)
+                .append('\t').append(Math.abs(random.nextLong() % 100000000L))
+                .append('\t').append(random.nextInt(600000))
+                .append('\t').append(Math.abs(random.nextLong() % 1000000000L))
+                .append('\t').append(0)
+                .append('\n');
+            row++;
+        }
+        return dump.toString().getBytes();
+    }
+
+    /**
+     * @return Something shaped like a BatteryStatsImpl parcel: per-package records
+     * of UTF-16 names and mostly small little-endian counters, so lots of zero bytes
+     * and repetition - which is what the codecs see in practice.
+     */
+    static byte[] statisticsParcel(int targetSize, long seed)
+    {
+        Random random = new Random(seed);
+        ByteBuffer parcel = ByteBuffer.allocate(targetSize).order(ByteOrder.LITTLE_ENDIAN);
+        int uid = 10000;
+        while (parcel.remaining() > 512)
+        {
+            String name = PACKAGES[random.nextInt(PACKAGES.length)];
+            parcel.putInt(uid++);
+            parcel.putInt(name.length());
+            for (int i = 0; i < name.length(); i++)
+            {
+                parcel.putChar(name.charAt(i));
+            }
+            if ((name.length() & 1) != 0)
+            {
+                parcel.putChar((char) 0);
+            }
+            int counters = 16 + random.nextInt(48);
+            parcel.putInt(counters);
+            for (int i = 0; i < counters; i++)
+            {
+                parcel.putLong(random.nextInt(4) == 0 ? 0 : random.nextInt(1 << (4 * random.nextInt(6))));
+            }
+        }
+        return parcel.array();
+    }
+
+    /**
+     * @return A copy of the parcel with a few percent of its counters changed,
+     * as a later snapshot of the same stats would have.
+     */
+    static byte[] mutate(byte[] parcel, long seed)
+    {
+        Random random = new Random(seed);
+        byte[] mutated = parcel.clone();
+        int changes = Math.max(1, parcel.length / 8 / 50);
+        for (int i = 0; i < changes; i++)
+        {
+            int pos = random.nextInt(parcel.length / 8) * 8;
+            mutated[pos] = (byte) (mutated[pos] + 1 + random.nextInt(100));
+        }
+        return mutated;
+    }
+
+    /**
+     * @return A cpufreq time_in_state dump: one "frequency time" line per
+     * frequency step, from 300MHz up.
+     */
+    static byte[] timeInState(int frequencies, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder dump = new StringBuilder(frequencies * 20);
+        for (int i = 0; i < frequencies; i++)
+        {
+            dump.append(300000 + i * 76800).append(' ')
+                .append(random.nextInt(4) == 0 ? 0 : random.nextInt(10000000)).append('\n');
+        }
+        return dump.toString().getBytes();
+    }
+
+    /**
+     * @return A /proc/uid_cputime/show_uid_stat dump: "uid: user system" for each
+     * uid, in uid order.
+     */
+    static byte[] uidCpuTimes(int uids, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder dump = new StringBuilder(uids * 32);
+        for (int i = 0; i < uids; i++)
+        {
+            dump.append(i < 10 ? i * 1000 : 10000 + i).append(": ")
+                .append(Math.abs(random.nextLong() % 100000000000L)).append(' ')
+                .append(Math.abs(random.nextLong() % 10000000000L)).append('\n');
+        }
+        return dump.toString().getBytes();
+    }
+
+    /**
+     * @return What the root shell prints for ShellCatCommand.build over files with these contents.
+     */
+    static String shellOutput(byte[][] contents)
+    {
+        StringBuilder output = new StringBuilder();
+        for (byte[] content : contents)
+        {
+            output.append(new String(content)).append('\n')
+                .append(ShellCatCommand.EOF_MARKER).append(" 0\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * Writes the content to a temp file that is deleted when the JVM exits.
+     */
+    static File tempFile(String prefix, byte[] content) throws IOException
+    {
+        File file = File.createTempFile(prefix, ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
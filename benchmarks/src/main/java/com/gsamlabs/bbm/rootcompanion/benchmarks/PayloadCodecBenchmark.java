@@ -0,0 +1,61 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gsamlabs.bbm.rootcompanion.PayloadCodec;
+
+/**
+ * Encode and decode time for each getStatisticsCompressed codec.  The
+ * compressed size of each is printed during setup, so a run gives the
+ * whole size/time trade off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PayloadCodecBenchmark {
+    @Param({"0", "1", "2"})
+    public int codec;
+
+    @Param({"65536", "524288"})
+    public int size;
+
+    private byte[] mParcel;
+    private byte[] mEncoded;
+
+    @Setup
+    public void setUp()
+    {
+        mParcel = Fixtures.statisticsParcel(size, 1);
+        mEncoded = PayloadCodec.encode(codec, Deflater.DEFAULT_COMPRESSION, mParcel);
+        System.out.println("codec " + codec + ": " + mParcel.length + " -> " + mEncoded.length + " bytes ("
+                + (100L * mEncoded.length / mParcel.length) + "%)");
+    }
+
+    @Benchmark
+    public byte[] encode()
+    {
+        return PayloadCodec.encode(codec, Deflater.DEFAULT_COMPRESSION, mParcel);
+    }
+
+    @Benchmark
+    public byte[] decode()
+    {
+        return PayloadCodec.decode(mEncoded);
+    }
+}
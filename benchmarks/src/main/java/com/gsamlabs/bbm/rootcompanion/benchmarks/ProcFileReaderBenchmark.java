@@ -0,0 +1,88 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gsamlabs.bbm.rootcompanion.ProcFileReader;
+
+/**
+ * readProcFile's direct path: re-reading a kept-open file, against opening and
+ * streaming it every time, plus the '\0' truncation applied to root reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcFileReaderBenchmark {
+    @Param({"5120", "51200", "204800"})
+    public int size;
+
+    private final ProcFileReader mReader = new ProcFileReader();
+    private String mPath;
+    private byte[] mNulPadded;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        byte[] content = Fixtures.wakeupSources(size, 1);
+        mPath = Fixtures.tempFile("wakeup_sources", content).getPath();
+        // Some files come back from cat with a NUL terminated tail
+        mNulPadded = Arrays.copyOf(content, content.length + 4096);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        mReader.closeAll();
+    }
+
+    @Benchmark
+    public byte[] readKeptOpen() throws IOException
+    {
+        return mReader.read(mPath);
+    }
+
+    @Benchmark
+    public byte[] readOpenEachTime() throws IOException
+    {
+        FileInputStream in = new FileInputStream(new File(mPath));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] truncateAtNul()
+    {
+        return ProcFileReader.truncateAtNul(mNulPadded);
+    }
+}
@@ -0,0 +1,63 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gsamlabs.bbm.rootcompanion.ShellCatCommand;
+
+/**
+ * The root shell fallback: building the batched cat command and splitting
+ * its output back into per-file contents.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShellCatCommandBenchmark {
+    @Param({"5120", "51200", "204800"})
+    public int size;
+
+    @Param({"1", "4"})
+    public int fileCount;
+
+    private String[] mFileNames;
+    private String mOutput;
+
+    @Setup
+    public void setUp()
+    {
+        mFileNames = new String[fileCount];
+        byte[][] contents = new byte[fileCount][];
+        for (int i = 0; i < fileCount; i++)
+        {
+            mFileNames[i] = "/sys/kernel/debug/wakeup_sources" + i;
+            contents[i] = Fixtures.wakeupSources(size, i);
+        }
+        mOutput = Fixtures.shellOutput(contents);
+    }
+
+    @Benchmark
+    public String build()
+    {
+        return ShellCatCommand.build(mFileNames);
+    }
+
+    @Benchmark
+    public byte[][] parseOutput()
+    {
+        return ShellCatCommand.parseOutput(mOutput, fileCount, new String[fileCount]);
+    }
+}
@@ -0,0 +1,66 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gsamlabs.bbm.rootcompanion.SnapshotStore;
+
+/**
+ * Appending compressed snapshot sized records to the history store,
+ * segment rotation included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotStoreBenchmark {
+    private File mDir;
+    private SnapshotStore mStore;
+    private byte[] mPayload;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        mDir = File.createTempFile("snapshots", "");
+        mDir.delete();
+        mStore = new SnapshotStore(mDir, 4 * 1024 * 1024, 2);
+        mPayload = Fixtures.statisticsParcel(64 * 1024, 1);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        mStore.close();
+        File[] files = mDir.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public long append() throws IOException
+    {
+        return mStore.append(mTimestamp++, mPayload);
+    }
+}
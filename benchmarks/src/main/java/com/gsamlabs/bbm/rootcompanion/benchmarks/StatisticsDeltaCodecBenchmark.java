@@ -0,0 +1,56 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gsamlabs.bbm.rootcompanion.StatisticsDeltaCodec;
+
+/**
+ * getStatisticsDelta's diff between consecutive snapshots, and the client's patch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StatisticsDeltaCodecBenchmark {
+    @Param({"65536", "524288"})
+    public int size;
+
+    private byte[] mBase;
+    private byte[] mTarget;
+    private byte[] mDelta;
+
+    @Setup
+    public void setUp()
+    {
+        mBase = Fixtures.statisticsParcel(size, 1);
+        mTarget = Fixtures.mutate(mBase, 2);
+        mDelta = StatisticsDeltaCodec.encode(mBase, mTarget);
+        System.out.println("delta: " + mTarget.length + " -> " + mDelta.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode()
+    {
+        return StatisticsDeltaCodec.encode(mBase, mTarget);
+    }
+
+    @Benchmark
+    public byte[] decode()
+    {
+        return StatisticsDeltaCodec.decode(mBase, mDelta);
+    }
+}
@@ -0,0 +1,49 @@
+package com.gsamlabs.bbm.rootcompanion.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gsamlabs.bbm.rootcompanion.WakeupSourcesParser;
+
+/**
+ * Parsing wakeup_sources into primitive arrays, with the parser warmed up
+ * (names interned) the way the sampler uses it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WakeupSourcesParserBenchmark {
+    @Param({"5120", "51200", "204800"})
+    public int size;
+
+    private final WakeupSourcesParser mParser = new WakeupSourcesParser(0);
+    private byte[] mContent;
+
+    @Setup
+    public void setUp()
+    {
+        mContent = Fixtures.wakeupSources(size, 1);
+        mParser.parse(mContent, mContent.length);
+    }
+
+    @Benchmark
+    public int parse()
+    {
+        mParser.parse(mContent, mContent.length);
+        return mParser.getCount();
+    }
+}